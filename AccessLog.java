@@ -0,0 +1,281 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Registo de acessos do servidor no formato combinado do Apache
+ * ({@code host - - [data] "pedido" código bytes "referer" "user-agent"}). Os threads que respondem aos pedidos
+ * apenas colocam cada entrada num buffer circular sem locks, e um thread de escrita formata e escreve as entradas
+ * em blocos, para que o registo não serialize os pedidos. Caso o buffer esteja cheio a entrada é descartada em
+ * vez de bloquear o pedido. Quando o ficheiro excede o tamanho máximo é rodado (access.log passa a access.log.1)
+ */
+public class AccessLog implements Closeable {
+
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int ROTATED_FILES = 5;
+    private static final long MAX_IDLE_WAIT = 10_000_000;
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final Path file;
+    private final long maxBytes;
+    private final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    // próxima posição a ser ocupada pelos threads do servidor
+    private final AtomicLong tail = new AtomicLong();
+    // próxima posição a ser lida pelo thread de escrita
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean closed;
+    private OutputStream output;
+    private long written;
+    private long timeSecond = -1;
+    private String timeText;
+
+    /**
+     * Cria o registo de acessos e inicia o thread de escrita
+     * @param destination O caminho do ficheiro ou {@link ServerConfig#ACCESS_LOG_STDOUT} para a consola
+     * @param maxBytes O tamanho a partir do qual o ficheiro é rodado
+     * @throws IOException Caso não seja possivel abrir o ficheiro
+     * @requires {@code destination != null && maxBytes > 0}
+     */
+    public AccessLog(String destination, long maxBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        if (destination.equals(ServerConfig.ACCESS_LOG_STDOUT)) {
+            this.file = null;
+            this.output = System.out;
+        } else {
+            this.file = Paths.get(destination);
+            this.output = new FileOutputStream(this.file.toFile(), true);
+            this.written = Files.size(this.file);
+        }
+        this.writer = new Thread(this::drain);
+        this.writer.setName("AccessLogWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Regista um pedido respondido, sem bloquear
+     * @param remoteAddress O endereço do cliente
+     * @param request O pedido, null caso estivesse mal formatado
+     * @param response A resposta enviada
+     * @requires {@code remoteAddress != null && response != null}
+     */
+    public void log(String remoteAddress, HttpRequest request, HttpResponse response) {
+        Entry entry = new Entry(System.currentTimeMillis(), remoteAddress, request, response);
+        long position;
+        do {
+            position = this.tail.get();
+            if (position - this.head >= CAPACITY) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.tail.compareAndSet(position, position + 1));
+        this.slots.set((int) (position & (CAPACITY - 1)), entry);
+    }
+
+    /**
+     * Retorna o número de entradas descartadas por o buffer estar cheio
+     * @return O número de entradas descartadas
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Escreve as entradas pendentes e fecha o ficheiro
+     */
+    @Override
+    public void close() {
+        if (this.closed)
+            return;
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Ciclo do thread de escrita: junta as entradas disponiveis num bloco e escreve-o de uma só vez,
+     * esperando cada vez mais tempo (até 10 ms) enquanto não houver entradas
+     */
+    private void drain() {
+        StringBuilder batch = new StringBuilder(BATCH_BYTES);
+        long wait = 0;
+        while (true) {
+            boolean stopping = this.closed;
+            long position = this.head;
+            while (batch.length() < BATCH_BYTES) {
+                int index = (int) (position & (CAPACITY - 1));
+                Entry entry = this.slots.get(index);
+                // a posição já foi ocupada mas a entrada ainda não foi publicada, ou o buffer está vazio
+                if (entry == null)
+                    break;
+                this.slots.set(index, null);
+                this.head = ++position;
+                entry.appendTo(batch, this);
+            }
+            if (batch.length() > 0) {
+                write(batch);
+                batch.setLength(0);
+                wait = 0;
+            } else if (stopping) {
+                break;
+            } else {
+                wait = Math.min(MAX_IDLE_WAIT, Math.max(100_000, wait * 2));
+                LockSupport.parkNanos(wait);
+            }
+        }
+        if (this.file != null) {
+            try {
+                this.output.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Escreve um bloco de entradas, rodando o ficheiro caso exceda o tamanho máximo
+     * @param batch As entradas formatadas
+     */
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (this.file != null && this.written > 0 && this.written + bytes.length > this.maxBytes)
+                rotate();
+            this.output.write(bytes);
+            this.output.flush();
+            this.written += bytes.length;
+        } catch (IOException e) {
+            System.err.println("Could not write the access log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fecha o ficheiro atual, renomeia os ficheiros anteriores (access.log.1 passa a access.log.2, ...)
+     * e abre um ficheiro novo
+     * @throws IOException Caso não seja possivel renomear ou abrir os ficheiros
+     */
+    private void rotate() throws IOException {
+        this.output.close();
+        for (int i = ROTATED_FILES - 1; i >= 1; i--) {
+            Path older = Paths.get(this.file + "." + i);
+            if (Files.exists(older))
+                Files.move(older, Paths.get(this.file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(this.file, Paths.get(this.file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        this.output = new FileOutputStream(this.file.toFile(), true);
+        this.written = 0;
+    }
+
+    /**
+     * Formata a data de uma entrada, reutilizando o texto enquanto o segundo não mudar.
+     * Só é chamado pelo thread de escrita
+     * @param millis A data em milissegundos desde 1970
+     * @return A data formatada
+     */
+    private String formatTime(long millis) {
+        long second = millis / 1000;
+        if (second != this.timeSecond) {
+            this.timeSecond = second;
+            this.timeText = TIME_FORMAT.format(Instant.ofEpochMilli(second * 1000));
+        }
+        return this.timeText;
+    }
+
+    /**
+     * Dados de um pedido registado, formatados apenas pelo thread de escrita
+     */
+    private static class Entry {
+
+        private final long time;
+        private final String remoteAddress;
+        private final String requestLine;
+        private final int statusCode;
+        private final String length;
+        private final String referer;
+        private final String userAgent;
+
+        /**
+         * Guarda os dados de um pedido
+         * @param time O momento em que o pedido foi respondido
+         * @param remoteAddress O endereço do cliente
+         * @param request O pedido, null caso estivesse mal formatado
+         * @param response A resposta enviada
+         */
+        private Entry(long time, String remoteAddress, HttpRequest request, HttpResponse response) {
+            this.time = time;
+            this.remoteAddress = remoteAddress;
+            this.requestLine = request == null ? null
+                : request.getMethod() + " " + request.getUrl() + " " + request.getVersion();
+            this.statusCode = response.getStatusCode();
+            this.length = response.getHeaders().get("Content-Length");
+            this.referer = request == null ? null : request.getHeaders().get("Referer");
+            this.userAgent = request == null ? null : request.getHeaders().get("User-Agent");
+        }
+
+        /**
+         * Escreve a entrada no formato combinado
+         * @param sb Onde escrever
+         * @param log O registo, usado para formatar a data
+         */
+        private void appendTo(StringBuilder sb, AccessLog log) {
+            sb.append(this.remoteAddress).append(" - - [").append(log.formatTime(this.time)).append("] ");
+            appendQuoted(sb, this.requestLine);
+            sb.append(' ').append(this.statusCode).append(' ')
+                .append(this.length == null || this.length.equals("0") ? "-" : this.length).append(' ');
+            appendQuoted(sb, this.referer);
+            sb.append(' ');
+            appendQuoted(sb, this.userAgent);
+            sb.append('\n');
+        }
+
+        /**
+         * Escreve um campo entre aspas, escapando as aspas e os caracteres de controlo
+         * @param sb Onde escrever
+         * @param value O valor do campo, "-" caso seja null
+         */
+        private static void appendQuoted(StringBuilder sb, String value) {
+            sb.append('"');
+            if (value == null) {
+                sb.append('-');
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c == '"' || c == '\\')
+                        sb.append('\\').append(c);
+                    else if (c < 0x20 || c == 0x7f)
+                        sb.append(String.format("\\x%02x", (int) c));
+                    else
+                        sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+}
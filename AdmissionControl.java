@@ -0,0 +1,215 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Controlo de admissão dos clientes do servidor. Cada ligação aceite recebe um {@link Ticket}: os primeiros
+ * maxClients clientes são admitidos, os seguintes ficam em espera, até maxQueued, e recebem 503 até haver um
+ * lugar livre, e os restantes são rejeitados no primeiro pedido e a ligação é fechada. Enquanto o tempo médio de
+ * resposta estiver acima do limite configurado não são admitidos novos clientes, para proteger a latência dos
+ * que já estão a ser servidos. A média decai com o tempo, para que a admissão recomece quando deixa de haver
+ * pedidos lentos, mesmo que os clientes admitidos fiquem inativos. Todas as decisões usam apenas contadores
+ * atómicos, pelo que têm custo constante qualquer que seja o número de clientes ligados
+ */
+public class AdmissionControl {
+
+    // cada nova amostra conta 1/16 na média do tempo de resposta
+    private static final int LATENCY_SMOOTHING = 16;
+    // tempo sem amostras ao fim do qual a média do tempo de resposta cai para metade
+    private static final long LATENCY_HALF_LIFE = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int ADMITTED = 0;
+    private static final int QUEUED = 1;
+    private static final int SHED = 2;
+    private static final int RELEASED = 3;
+
+    private final int maxClients;
+    private final int maxQueued;
+    private final long shedLatencyNanos;
+    private final int retryAfterSeconds;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    // média móvel exponencial do tempo de resposta aos clientes admitidos
+    private volatile long averageLatency;
+    // momento da última amostra, a partir do qual a média decai
+    private volatile long lastSample = System.nanoTime();
+
+    /**
+     * Cria o controlo de admissão com os limites dados
+     * @param maxClients O número máximo de clientes servidos ao mesmo tempo
+     * @param maxQueued O número máximo de clientes em espera, os restantes são rejeitados
+     * @param shedLatencyMillis O tempo médio de resposta em ms acima do qual não são admitidos novos clientes,
+     * 0 para não limitar
+     * @param retryAfterSeconds O tempo em segundos indicado aos clientes rejeitados no cabeçalho Retry-After
+     * @requires {@code maxClients > 0 && maxQueued >= 0 && shedLatencyMillis >= 0 && retryAfterSeconds >= 0}
+     */
+    public AdmissionControl(int maxClients, int maxQueued, long shedLatencyMillis, int retryAfterSeconds) {
+        this.maxClients = maxClients;
+        this.maxQueued = maxQueued;
+        this.shedLatencyNanos = TimeUnit.MILLISECONDS.toNanos(shedLatencyMillis);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Decide a admissão de uma ligação acabada de aceitar
+     * @param clientId O id do cliente
+     * @return O ticket da ligação, admitido, em espera ou rejeitado
+     * @ensures {@code \result != null}
+     */
+    public Ticket connect(int clientId) {
+        if (tryAdmit())
+            return new Ticket(clientId, ADMITTED);
+        if (this.queued.incrementAndGet() <= this.maxQueued)
+            return new Ticket(clientId, QUEUED);
+        this.queued.decrementAndGet();
+        return new Ticket(clientId, SHED);
+    }
+
+    /**
+     * Ocupa um dos lugares de cliente admitido, caso exista algum livre e o servidor não esteja sobrecarregado.
+     * Sem clientes admitidos o limite de latência é ignorado, já que a média só é atualizada por eles
+     * @return true caso o lugar tenha sido ocupado
+     */
+    private boolean tryAdmit() {
+        int current;
+        do {
+            current = this.admitted.get();
+            if (current >= this.maxClients || (current > 0 && isOverloaded()))
+                return false;
+        } while (!this.admitted.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Verifica se o tempo médio de resposta está acima do limite
+     * @return true caso os novos clientes não devam ser admitidos
+     */
+    public boolean isOverloaded() {
+        return this.shedLatencyNanos > 0 && currentLatency(System.nanoTime()) > this.shedLatencyNanos;
+    }
+
+    /**
+     * Regista o tempo de resposta a um pedido de um cliente admitido. A média é atualizada sem sincronização,
+     * pelo que uma amostra pode perder-se quando dois threads a atualizam ao mesmo tempo, o que não altera a média
+     * de forma significativa
+     * @param nanos O tempo em nanossegundos
+     */
+    public void recordLatency(long nanos) {
+        long now = System.nanoTime();
+        long average = currentLatency(now);
+        this.averageLatency = average + (nanos - average) / LATENCY_SMOOTHING;
+        this.lastSample = now;
+    }
+
+    /**
+     * Calcula a média do tempo de resposta no momento dado, que cai para metade a cada {@link #LATENCY_HALF_LIFE}
+     * sem amostras. Sem este decaimento, enquanto os novos clientes são rejeitados não chegam amostras e a média
+     * nunca desceria
+     * @param now O momento atual, de System.nanoTime()
+     * @return A média em nanossegundos
+     */
+    private long currentLatency(long now) {
+        long average = this.averageLatency;
+        long elapsed = now - this.lastSample;
+        if (elapsed <= 0 || average == 0)
+            return average;
+        return (long) (average / Math.pow(2, (double) elapsed / LATENCY_HALF_LIFE));
+    }
+
+    /**
+     * Retorna o valor do cabeçalho Retry-After das respostas 503
+     * @return O tempo em segundos que o cliente deve esperar
+     */
+    public String getRetryAfter() {
+        return String.valueOf(this.retryAfterSeconds);
+    }
+
+    /**
+     * Retorna o número de clientes admitidos
+     * @return O número de clientes admitidos
+     */
+    public int getAdmitted() {
+        return this.admitted.get();
+    }
+
+    /**
+     * Retorna o número de clientes em espera
+     * @return O número de clientes em espera
+     */
+    public int getQueued() {
+        return this.queued.get();
+    }
+
+    /**
+     * Estado de admissão de uma ligação. O estado é atómico porque no motor nio a ligação pode ser fechada pelo
+     * thread de eventos enquanto um thread de trabalho responde a um pedido
+     */
+    public class Ticket {
+
+        private final int clientId;
+        private final AtomicInteger state;
+
+        /**
+         * Cria o ticket com o estado dado
+         * @param clientId O id do cliente
+         * @param state O estado inicial
+         */
+        private Ticket(int clientId, int state) {
+            this.clientId = clientId;
+            this.state = new AtomicInteger(state);
+        }
+
+        /**
+         * Retorna o id do cliente
+         * @return O id do cliente
+         */
+        public int getClientId() {
+            return this.clientId;
+        }
+
+        /**
+         * Tenta admitir o cliente, caso esteja em espera
+         * @return true caso o cliente esteja admitido e o pedido deva ser servido
+         */
+        public boolean admit() {
+            if (this.state.get() == QUEUED && tryAdmit()) {
+                if (this.state.compareAndSet(QUEUED, ADMITTED))
+                    queued.decrementAndGet();
+                else
+                    admitted.decrementAndGet();
+            }
+            return this.state.get() == ADMITTED;
+        }
+
+        /**
+         * Verifica se o cliente está admitido
+         * @return true caso o cliente esteja admitido
+         */
+        public boolean isAdmitted() {
+            return this.state.get() == ADMITTED;
+        }
+
+        /**
+         * Verifica se a ligação foi rejeitada, devendo ser fechada depois de responder ao primeiro pedido
+         * @return true caso a ligação tenha sido rejeitada
+         */
+        public boolean isShed() {
+            return this.state.get() == SHED;
+        }
+
+        /**
+         * Liberta o lugar ocupado pelo cliente, quando a ligação é fechada
+         */
+        public void release() {
+            int previous = this.state.getAndSet(RELEASED);
+            if (previous == ADMITTED)
+                admitted.decrementAndGet();
+            else if (previous == QUEUED)
+                queued.decrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Cliente HTTP assíncrono com I/O não bloqueante: um único thread de eventos, com o seu Selector, envia os pedidos
+ * e lê as respostas de várias ligações keep-alive ao mesmo servidor, enviando os pedidos de cada ligação sem esperar
+ * pelas respostas (pipelining). Cada pedido retorna logo um CompletableFuture, completado quando a resposta chega
+ * através de um executor próprio, para que as funções encadeadas no futuro não corram no thread de eventos
+ */
+public class AsyncHttpClient implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final InetSocketAddress address;
+    private final int maxConnections;
+    private final Executor callbackExecutor;
+    private final Selector selector;
+    private final Queue<Exchange> pending = new ConcurrentLinkedQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Cria um cliente assíncrono para o servidor dado, com o número de ligações por omissão
+     * @param hostName O nome do servidor
+     * @param portNumber A porta do servidor
+     * @throws IOException Caso não seja possivel abrir o Selector
+     * @requires {@code hostName != null}
+     */
+    public AsyncHttpClient(String hostName, int portNumber) throws IOException {
+        this(hostName, portNumber, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Cria um cliente assíncrono para o servidor dado, cujos futuros são completados pelo ForkJoinPool comum
+     * @param hostName O nome do servidor
+     * @param portNumber A porta do servidor
+     * @param maxConnections O número máximo de ligações abertas ao servidor
+     * @throws IOException Caso não seja possivel abrir o Selector
+     * @requires {@code hostName != null && maxConnections > 0}
+     */
+    public AsyncHttpClient(String hostName, int portNumber, int maxConnections) throws IOException {
+        this(hostName, portNumber, maxConnections, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Cria um cliente assíncrono para o servidor dado e inicia o seu thread de eventos
+     * @param hostName O nome do servidor
+     * @param portNumber A porta do servidor
+     * @param maxConnections O número máximo de ligações abertas ao servidor
+     * @param callbackExecutor O executor que completa os futuros, onde correm as funções encadeadas neles
+     * @throws IOException Caso não seja possivel abrir o Selector
+     * @requires {@code hostName != null && maxConnections > 0 && callbackExecutor != null}
+     */
+    public AsyncHttpClient(String hostName, int portNumber, int maxConnections, Executor callbackExecutor) throws IOException {
+        this.address = new InetSocketAddress(hostName, portNumber);
+        this.maxConnections = maxConnections;
+        this.callbackExecutor = callbackExecutor;
+        this.selector = Selector.open();
+        Thread thread = new Thread(this::run);
+        thread.setName("AsyncHttpClient-" + hostName + ":" + portNumber);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Envia um pedido HTTP sem bloquear
+     * @param request O texto do pedido
+     * @return Futuro completado com a resposta, ou com uma IOException caso não seja possivel comunicar com o
+     * servidor ou a resposta esteja mal formatada
+     * @requires {@code request != null}
+     * @ensures {@code \result != null}
+     */
+    public CompletableFuture<HttpResponse> send(String request) {
+        Exchange exchange = new Exchange(request.getBytes(Charset.defaultCharset()));
+        if (this.closed) {
+            exchange.future.completeExceptionally(new IOException("Client closed"));
+            return exchange.future;
+        }
+        this.pending.add(exchange);
+        this.selector.wakeup();
+        return exchange.future;
+    }
+
+    /**
+     * Envia um pedido HTTP sem bloquear
+     * @param request O pedido
+     * @return Futuro completado com a resposta
+     * @requires {@code request != null}
+     * @ensures {@code \result != null}
+     * @see #send(String)
+     */
+    public CompletableFuture<HttpResponse> send(HttpRequest request) {
+        return send(request.toString());
+    }
+
+    /**
+     * Fecha todas as ligações, falhando os pedidos que ainda não tiveram resposta
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Ciclo do thread de eventos. Uma falha ao processar uma ligação, por exemplo uma resposta que o analisador
+     * ou a descompressão não aceitam, fecha apenas essa ligação. Uma falha do próprio ciclo termina o cliente,
+     * falhando todos os pedidos que ainda não tiveram resposta
+     */
+    private void run() {
+        IOException closed = new IOException("Client closed");
+        while (!this.closed) {
+            try {
+                this.selector.select();
+                Exchange exchange;
+                while ((exchange = this.pending.poll()) != null) {
+                    try {
+                        dispatch(exchange);
+                    } catch (RuntimeException e) {
+                        fail(exchange, new IOException("Could not send the request", e));
+                    }
+                }
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isConnectable())
+                            connection.onConnectable(key);
+                        if (key.isValid() && key.isReadable())
+                            connection.onReadable(key);
+                        if (key.isValid() && key.isWritable())
+                            connection.onWritable(key);
+                    } catch (IOException e) {
+                        connection.close(key, e);
+                    } catch (RuntimeException e) {
+                        connection.close(key, new IOException("Could not process the connection", e));
+                    }
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                System.err.println("Async client failed: " + e);
+                closed = new IOException("Async client failed", e);
+                break;
+            }
+        }
+        // os pedidos feitos depois de uma falha do ciclo também falham, em vez de ficarem à espera
+        this.closed = true;
+        for (Connection connection : new ArrayList<>(this.connections))
+            connection.close(connection.channel.keyFor(this.selector), closed);
+        Exchange exchange;
+        while ((exchange = this.pending.poll()) != null)
+            fail(exchange, closed);
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    /**
+     * Atribui um pedido à ligação com menos pedidos à espera de resposta, abrindo uma nova ligação
+     * caso todas estejam ocupadas e ainda não tenha sido atingido o máximo
+     * @param exchange O pedido
+     */
+    private void dispatch(Exchange exchange) {
+        Connection best = null;
+        for (Connection connection : this.connections) {
+            if (!connection.closing && (best == null || connection.inFlight.size() < best.inFlight.size()))
+                best = connection;
+        }
+        if (best == null || (!best.inFlight.isEmpty() && this.connections.size() < this.maxConnections)) {
+            try {
+                best = open();
+            } catch (IOException e) {
+                if (best == null) {
+                    fail(exchange, e);
+                    return;
+                }
+            }
+        }
+        best.inFlight.add(exchange);
+        best.toWrite.add(ByteBuffer.wrap(exchange.request));
+        SelectionKey key = best.channel.keyFor(this.selector);
+        if (best.connected)
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Completa o futuro de um pedido com a sua resposta, no executor dos futuros
+     * @param exchange O pedido
+     * @param response A resposta
+     */
+    private void succeed(Exchange exchange, HttpResponse response) {
+        exchange.future.completeAsync(() -> response, this.callbackExecutor);
+    }
+
+    /**
+     * Completa o futuro de um pedido com uma falha, no executor dos futuros
+     * @param exchange O pedido
+     * @param cause A causa da falha
+     */
+    private void fail(Exchange exchange, Throwable cause) {
+        this.callbackExecutor.execute(() -> exchange.future.completeExceptionally(cause));
+    }
+
+    /**
+     * Abre uma nova ligação ao servidor
+     * @return A ligação, ainda a ligar
+     * @throws IOException Caso não seja possivel iniciar a ligação
+     */
+    private Connection open() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            if (channel.connect(this.address)) {
+                connection.connected = true;
+                channel.register(this.selector, SelectionKey.OP_READ, connection);
+            } else {
+                channel.register(this.selector, SelectionKey.OP_CONNECT, connection);
+            }
+            this.connections.add(connection);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Pedido enviado e o futuro da sua resposta
+     */
+    private static class Exchange {
+
+        private final byte[] request;
+        private final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        /**
+         * Cria o pedido
+         * @param request Os bytes do pedido
+         */
+        private Exchange(byte[] request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Estado de uma ligação ao servidor
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final HttpParser parser = HttpParser.forResponses();
+        private final Queue<ByteBuffer> toWrite = new ArrayDeque<>();
+        // pedidos enviados ou por enviar, pela ordem em que as respostas vão chegar
+        private final Queue<Exchange> inFlight = new ArrayDeque<>();
+        private boolean connected;
+        // o servidor indicou que vai fechar a ligação, pelo que não lhe são atribuídos novos pedidos
+        private boolean closing;
+
+        /**
+         * Inicializa o estado da ligação
+         * @param channel O canal da ligação
+         */
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Termina a ligação ao servidor e começa a enviar os pedidos pendentes
+         * @param key A chave da ligação no Selector
+         * @throws IOException Caso não tenha sido possivel ligar ao servidor
+         */
+        private void onConnectable(SelectionKey key) throws IOException {
+            this.channel.finishConnect();
+            this.connected = true;
+            key.interestOps(SelectionKey.OP_READ | (this.toWrite.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        /**
+         * Lê todos os bytes disponiveis, completando o futuro de cada resposta completa
+         * @param key A chave da ligação no Selector
+         * @throws IOException Caso não seja possivel ler do canal ou o servidor tenha fechado a ligação
+         */
+        private void onReadable(SelectionKey key) throws IOException {
+            int read;
+            while ((read = this.channel.read(this.readBuffer)) > 0) {
+                this.readBuffer.flip();
+                while (this.readBuffer.hasRemaining()) {
+                    if (this.parser.feed(this.readBuffer))
+                        complete();
+                }
+                this.readBuffer.clear();
+            }
+            if (read == -1) {
+                if (this.parser.hasStarted() && this.parser.finish())
+                    complete();
+                close(key, new IOException("Connection closed by the server"));
+            }
+        }
+
+        /**
+         * Escreve os pedidos pendentes, pedindo ao Selector para avisar quando o canal
+         * voltar a aceitar bytes caso não seja possivel escrever tudo
+         * @param key A chave da ligação no Selector
+         * @throws IOException Caso não seja possivel escrever no canal
+         */
+        private void onWritable(SelectionKey key) throws IOException {
+            ByteBuffer next;
+            while ((next = this.toWrite.peek()) != null) {
+                this.channel.write(next);
+                if (next.hasRemaining())
+                    return;
+                this.toWrite.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Completa o futuro do pedido mais antigo com a resposta lida, descomprimindo o corpo caso necessário
+         * @throws IOException Caso chegue uma resposta sem pedido correspondente ou mal formatada, deixando a
+         * ligação de estar sincronizada com o servidor
+         */
+        private void complete() throws IOException {
+            Exchange exchange = this.inFlight.poll();
+            HttpResponse response = this.parser.getResponse();
+            this.parser.reset();
+            if (exchange == null)
+                throw new IOException("Unexpected response from the server");
+            if (response == null) {
+                IOException malformed = new IOException("Malformed response from the server");
+                fail(exchange, malformed);
+                throw malformed;
+            }
+            String connection = response.getHeaders().get("Connection");
+            if (connection != null && connection.equalsIgnoreCase("close"))
+                this.closing = true;
+            String encoding = response.getHeaders().get("Content-Encoding");
+            if (encoding != null) {
+                try {
+                    response.setBody(ContentEncoding.decode(response.getBodyBytes(), encoding))
+                        .removeHeader("Content-Encoding");
+                } catch (IOException e) {
+                    fail(exchange, e);
+                    return;
+                }
+            }
+            succeed(exchange, response);
+        }
+
+        /**
+         * Fecha a ligação, falhando os pedidos que ainda não tiveram resposta
+         * @param key A chave da ligação no Selector, pode ser null
+         * @param cause A causa da falha
+         */
+        private void close(SelectionKey key, IOException cause) {
+            connections.remove(this);
+            if (key != null)
+                key.cancel();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            Exchange exchange;
+            while ((exchange = this.inFlight.poll()) != null)
+                fail(exchange, cause);
+        }
+    }
+
+}
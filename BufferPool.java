@@ -0,0 +1,282 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Conjunto de ByteBuffers diretos reutilizados nas leituras e escritas dos sockets, para que o servidor não crie
+ * buffers a cada pedido. Os buffers estão divididos em classes de tamanho fixo; os threads que duram toda a vida
+ * do servidor guardam alguns buffers de cada classe numa cache própria, sem sincronização, e os restantes ficam
+ * numa lista global sem locks, de tamanho limitado. Os pedidos maiores que a maior classe recebem um buffer
+ * normal, que não é reutilizado.
+ * Em modo de depuração é registado onde foi obtido cada buffer, sendo avisados os buffers que deixaram de ser
+ * usados sem terem sido devolvidos e os que foram devolvidos duas vezes
+ */
+public class BufferPool {
+
+    public static final int MAX_POOLED_SIZE = 64 * 1024;
+
+    private static final int[] SIZES = {1024, 8 * 1024, MAX_POOLED_SIZE};
+
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final int GLOBAL_SIZE = 256;
+
+    private final FreeList[] global = new FreeList[SIZES.length];
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<>();
+    private final boolean detectLeaks;
+    // em modo de depuração, os buffers entregues e ainda não devolvidos, por identityHashCode
+    private final HashMap<Integer, List<Allocation>> allocations;
+    private final ReferenceQueue<ByteBuffer> unreachable;
+
+    /**
+     * Cria o conjunto de buffers
+     * @param detectLeaks true para registar onde foi obtido cada buffer e avisar os buffers perdidos
+     */
+    public BufferPool(boolean detectLeaks) {
+        for (int i = 0; i < SIZES.length; i++)
+            this.global[i] = new FreeList(GLOBAL_SIZE);
+        this.detectLeaks = detectLeaks;
+        this.allocations = detectLeaks ? new HashMap<>() : null;
+        this.unreachable = detectLeaks ? new ReferenceQueue<>() : null;
+    }
+
+    /**
+     * Cria uma cache de buffers para o thread atual. Só deve ser usado por threads que são reutilizados, como os
+     * threads de eventos, já que os buffers guardados na cache de um thread que termina são perdidos
+     */
+    public void useThreadCache() {
+        if (this.caches.get() == null)
+            this.caches.set(new ThreadCache());
+    }
+
+    /**
+     * Obtém um buffer com pelo menos o tamanho dado, vazio e com o limite igual à capacidade
+     * @param size O número mínimo de bytes
+     * @return Um buffer direto da classe de tamanho adequada, ou um buffer normal caso size seja maior
+     * que {@link #MAX_POOLED_SIZE}
+     * @requires {@code size >= 0}
+     * @ensures {@code \result != null && \result.remaining() >= size}
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass == -1)
+            return ByteBuffer.allocate(size);
+        ThreadCache cache = this.caches.get();
+        ByteBuffer buffer = cache != null ? cache.poll(sizeClass) : null;
+        if (buffer == null)
+            buffer = this.global[sizeClass].poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(SIZES[sizeClass]);
+        buffer.clear();
+        if (this.detectLeaks)
+            track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Devolve um buffer obtido com {@link #acquire(int)}, que não pode voltar a ser usado. Os buffers que não
+     * pertencem a nenhuma classe de tamanho são ignorados
+     * @param buffer O buffer a devolver, pode ser null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return;
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass == -1 || SIZES[sizeClass] != buffer.capacity())
+            return;
+        if (this.detectLeaks && !untrack(buffer))
+            return;
+        ThreadCache cache = this.caches.get();
+        if (cache == null || !cache.offer(sizeClass, buffer))
+            this.global[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Retorna a classe de tamanho de um pedido
+     * @param size O número de bytes pedido
+     * @return O índice da menor classe com pelo menos size bytes, -1 caso seja maior que todas
+     */
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Regista onde foi obtido um buffer e avisa os buffers perdidos desde o último registo
+     * @param buffer O buffer entregue
+     */
+    private void track(ByteBuffer buffer) {
+        Allocation lost;
+        while ((lost = (Allocation) this.unreachable.poll()) != null) {
+            synchronized (this.allocations) {
+                List<Allocation> same = this.allocations.get(lost.hash);
+                if (same == null || !same.remove(lost))
+                    continue;
+                if (same.isEmpty())
+                    this.allocations.remove(lost.hash);
+            }
+            System.err.println("BufferPool: a buffer was never released, it was acquired at:");
+            lost.site.printStackTrace();
+        }
+        Allocation allocation = new Allocation(buffer, this.unreachable);
+        synchronized (this.allocations) {
+            this.allocations.computeIfAbsent(allocation.hash, hash -> new ArrayList<>(1)).add(allocation);
+        }
+    }
+
+    /**
+     * Retira o registo de um buffer devolvido
+     * @param buffer O buffer devolvido
+     * @return true caso o buffer estivesse entregue, false caso já tenha sido devolvido
+     */
+    private boolean untrack(ByteBuffer buffer) {
+        int hash = System.identityHashCode(buffer);
+        synchronized (this.allocations) {
+            List<Allocation> same = this.allocations.get(hash);
+            for (int i = 0; same != null && i < same.size(); i++) {
+                if (same.get(i).get() == buffer) {
+                    same.remove(i);
+                    if (same.isEmpty())
+                        this.allocations.remove(hash);
+                    return true;
+                }
+            }
+        }
+        System.err.println("BufferPool: a buffer was released twice or was not acquired from this pool");
+        new Throwable("released at").printStackTrace();
+        return false;
+    }
+
+    /**
+     * Registo de um buffer entregue, usado em modo de depuração. A referência é fraca, pelo que quando o buffer
+     * deixa de ser usado sem ser devolvido o registo é colocado na fila de buffers perdidos
+     */
+    private static class Allocation extends WeakReference<ByteBuffer> {
+
+        private final int hash;
+        private final Throwable site = new Throwable("acquired at");
+
+        private Allocation(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+        }
+    }
+
+    /**
+     * Cache de buffers de um thread, só usada por esse thread
+     */
+    private static class ThreadCache {
+
+        private final ByteBuffer[][] buffers = new ByteBuffer[SIZES.length][THREAD_CACHE_SIZE];
+        private final int[] counts = new int[SIZES.length];
+
+        /**
+         * Retira um buffer da cache
+         * @param sizeClass A classe de tamanho
+         * @return O buffer, null caso a cache esteja vazia
+         */
+        private ByteBuffer poll(int sizeClass) {
+            if (this.counts[sizeClass] == 0)
+                return null;
+            int index = --this.counts[sizeClass];
+            ByteBuffer buffer = this.buffers[sizeClass][index];
+            this.buffers[sizeClass][index] = null;
+            return buffer;
+        }
+
+        /**
+         * Guarda um buffer na cache
+         * @param sizeClass A classe de tamanho
+         * @param buffer O buffer
+         * @return false caso a cache esteja cheia
+         */
+        private boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (this.counts[sizeClass] == THREAD_CACHE_SIZE)
+                return false;
+            this.buffers[sizeClass][this.counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+
+    /**
+     * Fila limitada sem locks partilhada por todos os threads (algoritmo de Vyukov): cada posição tem um número
+     * de sequência que indica se está livre para escrita ou para leitura na volta atual, e as posições são
+     * reservadas com compareAndSet, pelo que nem colocar nem retirar um buffer cria objetos
+     */
+    private static class FreeList {
+
+        private final AtomicReferenceArray<ByteBuffer> items;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Cria a fila
+         * @param capacity A capacidade, uma potência de 2
+         */
+        private FreeList(int capacity) {
+            this.items = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                this.sequences.set(i, i);
+        }
+
+        /**
+         * Coloca um buffer na fila
+         * @param buffer O buffer
+         * @return false caso a fila esteja cheia, ficando o buffer para o garbage collector
+         */
+        private boolean offer(ByteBuffer buffer) {
+            while (true) {
+                long position = this.tail.get();
+                int index = (int) position & this.mask;
+                long difference = this.sequences.get(index) - position;
+                if (difference == 0) {
+                    if (this.tail.compareAndSet(position, position + 1)) {
+                        this.items.set(index, buffer);
+                        this.sequences.set(index, position + 1);
+                        return true;
+                    }
+                } else if (difference < 0) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Retira um buffer da fila
+         * @return O buffer, null caso a fila esteja vazia
+         */
+        private ByteBuffer poll() {
+            while (true) {
+                long position = this.head.get();
+                int index = (int) position & this.mask;
+                long difference = this.sequences.get(index) - (position + 1);
+                if (difference == 0) {
+                    if (this.head.compareAndSet(position, position + 1)) {
+                        ByteBuffer buffer = this.items.getAndSet(index, null);
+                        this.sequences.set(index, position + this.mask + 1);
+                        return buffer;
+                    }
+                } else if (difference < 0) {
+                    return null;
+                }
+            }
+        }
+    }
+
+}
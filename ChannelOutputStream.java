@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Stream que escreve num canal bloqueante através de um buffer direto obtido de um {@link BufferPool}, pelo que
+ * os bytes são copiados uma só vez antes de chegarem ao socket. Os blocos maiores que o buffer são escritos
+ * diretamente no canal. O buffer é devolvido ao pool quando o stream é fechado
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private final WritableByteChannel channel;
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+
+    /**
+     * Cria o stream sobre o canal dado
+     * @param channel O canal, em modo bloqueante
+     * @param pool O pool de onde é obtido o buffer
+     * @param size O tamanho do buffer
+     * @requires {@code channel != null && pool != null && 0 < size && size <= BufferPool.MAX_POOLED_SIZE}
+     */
+    public ChannelOutputStream(WritableByteChannel channel, BufferPool pool, int size) {
+        this.channel = channel;
+        this.pool = pool;
+        this.buffer = pool.acquire(size);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!this.buffer.hasRemaining())
+            flushBuffer();
+        this.buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len > this.buffer.remaining()) {
+            flushBuffer();
+            if (len >= this.buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        this.buffer.put(b, off, len);
+    }
+
+    /**
+     * Escreve no canal os bytes guardados no buffer
+     * @throws IOException Caso não seja possivel escrever
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    /**
+     * Escreve os bytes pendentes e devolve o buffer ao pool. O canal não é fechado
+     * @throws IOException Caso não seja possivel escrever os bytes pendentes
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.buffer == null)
+            return;
+        try {
+            flushBuffer();
+        } finally {
+            this.pool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Escreve o conteúdo do buffer no canal e esvazia-o
+     * @throws IOException Caso não seja possivel escrever
+     */
+    private void flushBuffer() throws IOException {
+        this.buffer.flip();
+        try {
+            writeFully(this.buffer);
+        } finally {
+            this.buffer.clear();
+        }
+    }
+
+    /**
+     * Escreve todos os bytes restantes de um buffer no canal
+     * @param source O buffer a escrever
+     * @throws IOException Caso não seja possivel escrever
+     */
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining())
+            this.channel.write(source);
+    }
+
+    /**
+     * Verifica que o stream não foi fechado
+     * @throws IOException Caso o stream já tenha sido fechado
+     */
+    private void ensureOpen() throws IOException {
+        if (this.buffer == null)
+            throw new IOException("Stream closed");
+    }
+
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Stream que escreve um corpo com {@code Transfer-Encoding: chunked}. Os bytes são juntados num buffer de tamanho
+ * fixo e cada vez que o buffer enche, ou que é chamado {@link #flush()}, é enviado um chunk, pelo que o corpo
+ * pode ter qualquer tamanho e o cliente começa a recebê-lo antes de estar todo criado
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private static final byte[] LINE_FEED = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+    private boolean finished;
+
+    /**
+     * Cria o stream com chunks de tamanho {@link #DEFAULT_CHUNK_SIZE}
+     * @param out O stream onde escrever o corpo codificado
+     * @requires {@code out != null}
+     */
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Cria o stream com chunks do tamanho dado
+     * @param out O stream onde escrever o corpo codificado
+     * @param chunkSize O tamanho máximo de cada chunk
+     * @requires {@code out != null && chunkSize > 0}
+     */
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = out;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (this.finished)
+            throw new IOException("Chunked body already finished");
+        if (this.count == this.buffer.length)
+            writeChunk();
+        this.buffer[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.finished)
+            throw new IOException("Chunked body already finished");
+        while (len > 0) {
+            int count = Math.min(len, this.buffer.length - this.count);
+            System.arraycopy(b, off, this.buffer, this.count, count);
+            this.count += count;
+            off += count;
+            len -= count;
+            if (this.count == this.buffer.length)
+                writeChunk();
+        }
+    }
+
+    /**
+     * Envia os bytes pendentes como um chunk e faz flush do stream de destino
+     * @throws IOException Caso não seja possivel escrever
+     */
+    @Override
+    public void flush() throws IOException {
+        writeChunk();
+        this.out.flush();
+    }
+
+    /**
+     * Envia os bytes pendentes e o chunk vazio que termina o corpo, sem fechar o stream de destino,
+     * que continua a ser usado pelas respostas seguintes
+     * @throws IOException Caso não seja possivel escrever
+     */
+    public void finish() throws IOException {
+        if (this.finished)
+            return;
+        writeChunk();
+        this.out.write(LAST_CHUNK);
+        this.finished = true;
+    }
+
+    /**
+     * Termina o corpo, como {@link #finish()}
+     * @throws IOException Caso não seja possivel escrever
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Escreve os bytes do buffer como um chunk: o tamanho em hexadecimal, os dados e "\r\n"
+     * @throws IOException Caso não seja possivel escrever
+     */
+    private void writeChunk() throws IOException {
+        if (this.count == 0)
+            return;
+        this.out.write(Integer.toHexString(this.count).getBytes(StandardCharsets.ISO_8859_1));
+        this.out.write(LINE_FEED);
+        this.out.write(this.buffer, 0, this.count);
+        this.out.write(LINE_FEED);
+        this.count = 0;
+    }
+
+}
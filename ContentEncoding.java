@@ -0,0 +1,142 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Classe usada para escolher, aplicar e remover a compressão (Content-Encoding) do corpo das mensagens HTTP
+ */
+public class ContentEncoding {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE;
+
+    /**
+     * Escolhe a compressão a usar a partir do cabeçalho Accept-Encoding do cliente, preferindo gzip. Uma
+     * compressão listada com q=0 é recusada, e "*" só se aplica às compressões que o cliente não listou,
+     * pelo que "gzip;q=0, *" escolhe deflate
+     * @param acceptEncoding O valor do cabeçalho Accept-Encoding, pode ser null
+     * @return {@link #GZIP}, {@link #DEFLATE} ou null caso o cliente não aceite nenhuma das duas
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        // null enquanto a compressão não for listada pelo cliente
+        Boolean gzip = null, deflate = null, any = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++)
+                accepted &= !isZeroQuality(parts[i]);
+            if (name.equals(GZIP) || name.equals("x-gzip"))
+                gzip = gzip == Boolean.TRUE || accepted;
+            else if (name.equals(DEFLATE))
+                deflate = deflate == Boolean.TRUE || accepted;
+            else if (name.equals("*"))
+                any = any == Boolean.TRUE || accepted;
+        }
+        if (gzip == null)
+            gzip = any == Boolean.TRUE;
+        if (deflate == null)
+            deflate = any == Boolean.TRUE;
+        return gzip ? GZIP : deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Verifica se um tipo de conteúdo é texto e portanto vale a pena comprimir
+     * @param contentType O valor do cabeçalho Content-Type, pode ser null
+     * @return true caso o conteúdo seja texto
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null)
+            return false;
+        return contentType.startsWith("text/") || contentType.startsWith("application/json")
+            || contentType.startsWith("application/xml") || contentType.startsWith("application/javascript")
+            || contentType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * Comprime os bytes dados
+     * @param data Os bytes a comprimir
+     * @param encoding {@link #GZIP} ou {@link #DEFLATE}
+     * @return Os bytes comprimidos
+     * @requires {@code data != null && (encoding == GZIP || encoding == DEFLATE)}
+     * @ensures {@code \result != null}
+     */
+    public static byte[] encode(byte[] data, String encoding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 32);
+        try (DeflaterOutputStream compressor = encoding.equals(GZIP) ? new GZIPOutputStream(out) : new DeflaterOutputStream(out)) {
+            compressor.write(data);
+        } catch (IOException e) {
+            // não acontece ao escrever para memória
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Comprime os bytes lidos de um stream à medida que são lidos, escrevendo-os comprimidos noutro stream,
+     * sem guardar o conteúdo todo em memória. No fim o stream de destino é fechado
+     * @param in O stream com os bytes a comprimir
+     * @param out O stream onde escrever os bytes comprimidos
+     * @param encoding {@link #GZIP} ou {@link #DEFLATE}
+     * @throws IOException Caso não seja possivel ler ou escrever
+     * @requires {@code in != null && out != null && (encoding == GZIP || encoding == DEFLATE)}
+     */
+    public static void encode(InputStream in, OutputStream out, String encoding) throws IOException {
+        try (DeflaterOutputStream compressor = encoding.equals(GZIP) ? new GZIPOutputStream(out) : new DeflaterOutputStream(out)) {
+            in.transferTo(compressor);
+        }
+    }
+
+    /**
+     * Descomprime os bytes dados
+     * @param data Os bytes comprimidos
+     * @param encoding O valor do cabeçalho Content-Encoding
+     * @return Os bytes descomprimidos
+     * @throws IOException Caso a compressão não seja suportada ou os bytes sejam inválidos
+     * @requires {@code data != null && encoding != null}
+     * @ensures {@code \result != null}
+     */
+    public static byte[] decode(byte[] data, String encoding) throws IOException {
+        String name = encoding.trim().toLowerCase();
+        InputStream in;
+        if (name.equals(GZIP) || name.equals("x-gzip"))
+            in = new GZIPInputStream(new ByteArrayInputStream(data));
+        else if (name.equals(DEFLATE))
+            in = new InflaterInputStream(new ByteArrayInputStream(data));
+        else
+            throw new IOException("Unsupported Content-Encoding: " + encoding);
+        try (InputStream decompressor = in) {
+            return decompressor.readAllBytes();
+        }
+    }
+
+    /**
+     * Verifica se um parâmetro q de Accept-Encoding é zero
+     * @param parameter O parâmetro, por exemplo "q=0"
+     * @return true caso o parâmetro seja q=0
+     */
+    private static boolean isZeroQuality(String parameter) {
+        String[] q = parameter.trim().split("=", 2);
+        if (q.length != 2 || !q[0].trim().equalsIgnoreCase("q"))
+            return false;
+        try {
+            return Double.parseDouble(q[1].trim()) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+}
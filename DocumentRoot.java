@@ -0,0 +1,150 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Diretoria cujos ficheiros são servidos pelo servidor. Converte o caminho de um url no ficheiro correspondente,
+ * impedindo o acesso a ficheiros fora da diretoria, e indica o Content-Type de cada ficheiro pela sua extensão
+ */
+public class DocumentRoot {
+
+    private static final String INDEX_FILE = "index.html";
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final HashMap<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("htm", "text/html");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("js", "text/javascript");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("csv", "text/csv");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+    }
+
+    private final Path root;
+
+    /**
+     * Cria a raiz de documentos a partir da diretoria dada
+     * @param directory O caminho da diretoria
+     * @throws IOException Caso a diretoria não exista
+     * @requires {@code directory != null}
+     */
+    public DocumentRoot(String directory) throws IOException {
+        this.root = Paths.get(directory).toRealPath();
+        if (!Files.isDirectory(this.root))
+            throw new IOException("Not a directory: " + directory);
+    }
+
+    /**
+     * Converte o url de um pedido no ficheiro correspondente dentro da diretoria. O url de uma diretoria
+     * corresponde ao ficheiro index.html dentro dela
+     * @param url O url do pedido, podendo conter query string
+     * @return O ficheiro pedido, null caso o url seja inválido ou o ficheiro esteja fora da diretoria
+     * @requires {@code url != null}
+     */
+    public File resolve(String url) {
+        String path = decode(pathOf(url));
+        if (path == null || !path.startsWith("/") || path.indexOf('\0') != -1)
+            return null;
+        Path file = this.root.resolve(path.substring(1)).normalize();
+        if (!file.startsWith(this.root))
+            return null;
+        if (Files.isDirectory(file))
+            file = file.resolve(INDEX_FILE);
+        if (Files.exists(file)) {
+            // as ligações simbólicas também não podem apontar para fora da diretoria
+            try {
+                if (!file.toRealPath().startsWith(this.root))
+                    return null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return file.toFile();
+    }
+
+    /**
+     * Retorna a parte do url antes da query string
+     * @param url O url do pedido
+     * @return O caminho do url
+     * @requires {@code url != null}
+     */
+    public static String pathOf(String url) {
+        int end = url.length();
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        return end == url.length() ? url : url.substring(0, end);
+    }
+
+    /**
+     * Retorna o Content-Type de um ficheiro pela sua extensão
+     * @param file O ficheiro
+     * @return O Content-Type do ficheiro, "application/octet-stream" caso a extensão seja desconhecida
+     * @requires {@code file != null}
+     */
+    public static String contentType(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String type = dot == -1 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+        return type == null ? DEFAULT_CONTENT_TYPE : type;
+    }
+
+    /**
+     * Descodifica as sequências %XX de um caminho em UTF-8
+     * @param path O caminho a descodificar
+     * @return O caminho descodificado, null caso contenha uma sequência inválida
+     */
+    private static String decode(String path) {
+        if (path.indexOf('%') == -1)
+            return path;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= path.length())
+                    return null;
+                int high = Character.digit(path.charAt(i + 1), 16);
+                int low = Character.digit(path.charAt(i + 2), 16);
+                if (high == -1 || low == -1)
+                    return null;
+                bytes.write((high << 4) | low);
+                i += 2;
+            } else {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
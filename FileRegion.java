@@ -0,0 +1,69 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Parte de um ficheiro a ser enviada como corpo de uma resposta. Os bytes são transferidos diretamente do
+ * ficheiro para o socket com {@link FileChannel#transferTo}, que usa o sendfile do sistema operativo quando o
+ * destino é um SocketChannel, sem que o corpo passe pela memória da JVM
+ */
+public class FileRegion implements Closeable {
+
+    private final FileChannel file;
+    private long position;
+    private final long end;
+
+    /**
+     * Abre o ficheiro dado para ser enviado desde o inicio
+     * @param path O caminho do ficheiro
+     * @param length O número de bytes a enviar
+     * @throws IOException Caso não seja possivel abrir o ficheiro
+     * @requires {@code path != null && length >= 0}
+     */
+    public FileRegion(Path path, long length) throws IOException {
+        this.file = FileChannel.open(path, StandardOpenOption.READ);
+        this.position = 0;
+        this.end = length;
+    }
+
+    /**
+     * Transfere o máximo de bytes que o destino aceitar sem bloquear
+     * @param target O canal de destino
+     * @return O número de bytes transferidos
+     * @throws IOException Caso não seja possivel transferir ou o ficheiro tenha ficado mais pequeno
+     * @requires {@code target != null}
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = this.file.transferTo(this.position, this.end - this.position, target);
+        if (transferred == 0 && this.position >= this.file.size())
+            throw new EOFException("File truncated while being sent");
+        this.position += transferred;
+        return transferred;
+    }
+
+    /**
+     * Verifica se todos os bytes já foram transferidos
+     * @return true caso a região tenha sido toda enviada
+     */
+    public boolean isDone() {
+        return this.position >= this.end;
+    }
+
+    /**
+     * Fecha o ficheiro
+     * @throws IOException Caso não seja possivel fechar o ficheiro
+     */
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+}
@@ -0,0 +1,382 @@
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Campos de um formulário HTML, codificados e descodificados no formato application/x-www-form-urlencoded
+ * ({@code nome=valor&nome=valor}, com os bytes UTF-8 fora do conjunto não reservado escritos como %XX e os
+ * espaços como '+'). A descodificação é feita numa só passagem sobre os bytes do corpo, à medida que são lidos,
+ * sem criar o corpo como String. Os formulários recebidos estão limitados a {@link #MAX_FIELDS} campos de no
+ * máximo {@link #MAX_FIELD_LENGTH} bytes, e o corpo pode ser limitado a um número total de bytes
+ */
+public class FormData {
+
+    public static final String URLENCODED = "application/x-www-form-urlencoded";
+    public static final int MAX_FIELD_LENGTH = 64 * 1024;
+    public static final int MAX_FIELDS = 1000;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // caracteres que não precisam de ser codificados
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++)
+            UNRESERVED[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++)
+            UNRESERVED[c] = true;
+        for (char c = '0'; c <= '9'; c++)
+            UNRESERVED[c] = true;
+        for (char c : "-_.*".toCharArray())
+            UNRESERVED[c] = true;
+    }
+
+    private final LinkedHashMap<String, List<String>> fields = new LinkedHashMap<>();
+    // número de valores de todos os campos
+    private int valueCount;
+
+    /**
+     * Adiciona um campo ao formulário, mantendo os valores anteriores com o mesmo nome
+     * @param name O nome do campo
+     * @param value O valor do campo
+     * @return O próprio FormData com o campo adicionado
+     * @requires {@code name != null && value != null}
+     */
+    public FormData add(String name, String value) {
+        List<String> values = this.fields.get(name);
+        if (values == null) {
+            // a maioria dos campos tem um único valor
+            values = new ArrayList<>(1);
+            this.fields.put(name, values);
+        }
+        values.add(value);
+        this.valueCount++;
+        return this;
+    }
+
+    /**
+     * Retorna o primeiro valor de um campo
+     * @param name O nome do campo
+     * @return O valor do campo, null caso não exista
+     * @requires {@code name != null}
+     */
+    public String get(String name) {
+        List<String> values = this.fields.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Retorna todos os valores de um campo, pela ordem em que foram recebidos
+     * @param name O nome do campo
+     * @return Os valores do campo, vazio caso não exista
+     * @requires {@code name != null}
+     */
+    public List<String> getAll(String name) {
+        List<String> values = this.fields.get(name);
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Retorna os nomes dos campos, pela ordem em que foram recebidos
+     * @return Os nomes dos campos
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(this.fields.keySet());
+    }
+
+    /**
+     * Retorna o número de campos diferentes
+     * @return O número de nomes de campos
+     */
+    public int size() {
+        return this.fields.size();
+    }
+
+    /**
+     * Codifica os campos no formato application/x-www-form-urlencoded
+     * @return O corpo do formulário
+     * @ensures {@code \result != null}
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : this.fields.keySet()) {
+            for (String value : this.fields.get(name)) {
+                if (sb.length() > 0)
+                    sb.append('&');
+                appendEncoded(sb, name);
+                sb.append('=');
+                appendEncoded(sb, value);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+
+    /**
+     * Escreve um texto codificado no formato application/x-www-form-urlencoded. Os caracteres ASCII são
+     * codificados diretamente e os restantes são convertidos para UTF-8 um a um, sem criar um array para o texto todo
+     * @param sb Onde escrever
+     * @param text O texto a codificar
+     * @requires {@code sb != null && text != null}
+     */
+    public static void appendEncoded(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 128 && UNRESERVED[c]) {
+                sb.append(c);
+            } else if (c == ' ') {
+                sb.append('+');
+            } else if (c < 0x80) {
+                appendByte(sb, c);
+            } else if (c < 0x800) {
+                appendByte(sb, 0xC0 | (c >> 6));
+                appendByte(sb, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                appendByte(sb, 0xF0 | (codePoint >> 18));
+                appendByte(sb, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // um surrogate sem par é codificado como '?', tal como faz String.getBytes
+                appendByte(sb, '?');
+            } else {
+                appendByte(sb, 0xE0 | (c >> 12));
+                appendByte(sb, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Lê o formulário do corpo de um pedido, no formato indicado pelo Content-Type. Um pedido sem Content-Type
+     * é lido como application/x-www-form-urlencoded. Nos corpos multipart/form-data o valor de cada campo com
+     * um ficheiro é o nome do ficheiro e o conteúdo é descartado, devendo ser usado o {@link MultipartReader}
+     * para ler os ficheiros. A leitura pára assim que o corpo excede o tamanho máximo, incluindo os ficheiros
+     * descartados, pelo que nesse caso o número de bytes lidos do corpo do pedido é maior que maxBytes
+     * @param request O pedido, cujo corpo ainda não foi lido
+     * @param maxBytes O número máximo de bytes do corpo
+     * @return Os campos do formulário, null caso o corpo não seja um formulário
+     * @throws IOException Caso não seja possivel ler o corpo ou o corpo multipart esteja mal formatado
+     * @throws IllegalArgumentException Caso o formulário esteja mal codificado, tenha um campo demasiado longo
+     * ou campos a mais, ou o corpo exceda o tamanho máximo
+     * @requires {@code request != null && maxBytes >= 0}
+     */
+    public static FormData of(HttpRequest request, long maxBytes) throws IOException {
+        String contentType = request.getHeaders().get("Content-Type");
+        String boundary = MultipartReader.boundaryOf(contentType);
+        if (boundary != null) {
+            FormData form = new FormData();
+            MultipartReader reader = new MultipartReader(new LimitedInputStream(request.getBodyStream(), maxBytes), boundary);
+            MultipartReader.Part part;
+            while ((part = reader.next()) != null) {
+                if (part.getName() == null)
+                    continue;
+                checkFieldCount(form);
+                form.add(part.getName(), part.getFileName() != null ? part.getFileName() : part.readString(MAX_FIELD_LENGTH));
+            }
+            return form;
+        }
+        if (contentType == null || contentType.toLowerCase().startsWith(URLENCODED))
+            return parse(request.getBodyStream(), maxBytes);
+        return null;
+    }
+
+    /**
+     * Descodifica um formulário no formato application/x-www-form-urlencoded
+     * @param text O corpo do formulário
+     * @return Os campos do formulário
+     * @throws IllegalArgumentException Caso o formulário esteja mal codificado, tenha um campo demasiado longo
+     * ou campos a mais
+     * @requires {@code text != null}
+     * @ensures {@code \result != null}
+     */
+    public static FormData parse(String text) {
+        try {
+            return parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            // não acontece ao ler da memória
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Descodifica um formulário no formato application/x-www-form-urlencoded à medida que é lido do stream dado
+     * @param in O stream com o corpo do formulário, lido até ao fim
+     * @return Os campos do formulário
+     * @throws IOException Caso não seja possivel ler do stream
+     * @throws IllegalArgumentException Caso o formulário esteja mal codificado, tenha um campo demasiado longo
+     * ou campos a mais
+     * @requires {@code in != null}
+     * @ensures {@code \result != null}
+     * @see #parse(InputStream, long)
+     */
+    public static FormData parse(InputStream in) throws IOException {
+        return parse(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * Descodifica um formulário no formato application/x-www-form-urlencoded à medida que é lido do stream dado,
+     * numa só passagem: os bytes de cada nome e valor são descodificados para um buffer reutilizado, que só é
+     * convertido em String no fim de cada nome ou valor. A leitura pára assim que o corpo excede o tamanho máximo
+     * @param in O stream com o corpo do formulário, lido até ao fim
+     * @param maxBytes O número máximo de bytes do corpo
+     * @return Os campos do formulário
+     * @throws IOException Caso não seja possivel ler do stream
+     * @throws IllegalArgumentException Caso o formulário esteja mal codificado, tenha um campo demasiado longo
+     * ou campos a mais, ou o corpo exceda o tamanho máximo
+     * @requires {@code in != null && maxBytes >= 0}
+     * @ensures {@code \result != null}
+     */
+    public static FormData parse(InputStream in, long maxBytes) throws IOException {
+        InputStream limited = new LimitedInputStream(in, maxBytes);
+        FormData form = new FormData();
+        byte[] block = new byte[8192];
+        byte[] token = new byte[64];
+        int tokenLength = 0;
+        String name = null;
+        // número de dígitos hexadecimais ainda por ler depois de um '%', e o valor já lido
+        int pendingHex = 0;
+        int escaped = 0;
+        int read;
+        while ((read = limited.read(block)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = block[i];
+                if (pendingHex > 0) {
+                    int digit = Character.digit(b, 16);
+                    if (digit == -1)
+                        throw new IllegalArgumentException("Malformed escape in form data");
+                    escaped = (escaped << 4) | digit;
+                    if (--pendingHex > 0)
+                        continue;
+                    b = (byte) escaped;
+                } else if (b == '%') {
+                    pendingHex = 2;
+                    escaped = 0;
+                    continue;
+                } else if (b == '+') {
+                    b = ' ';
+                } else if (b == '=' && name == null) {
+                    name = utf8(token, tokenLength);
+                    tokenLength = 0;
+                    continue;
+                } else if (b == '&') {
+                    addField(form, name, token, tokenLength);
+                    name = null;
+                    tokenLength = 0;
+                    continue;
+                }
+                if (tokenLength == token.length) {
+                    if (tokenLength == MAX_FIELD_LENGTH)
+                        throw new IllegalArgumentException("Form field longer than " + MAX_FIELD_LENGTH + " bytes");
+                    byte[] bigger = new byte[Math.min(token.length * 2, MAX_FIELD_LENGTH)];
+                    System.arraycopy(token, 0, bigger, 0, tokenLength);
+                    token = bigger;
+                }
+                token[tokenLength++] = b;
+            }
+        }
+        if (pendingHex > 0)
+            throw new IllegalArgumentException("Malformed escape in form data");
+        addField(form, name, token, tokenLength);
+        return form;
+    }
+
+    /**
+     * Adiciona o campo que acabou de ser lido, ignorando os segmentos vazios (por exemplo "a=1&&b=2")
+     * @param form O formulário
+     * @param name O nome já lido, null caso o campo não tenha '='
+     * @param token Os bytes do valor, ou do nome caso o campo não tenha '='
+     * @param length O número de bytes
+     * @throws IllegalArgumentException Caso o formulário já tenha o número máximo de campos
+     */
+    private static void addField(FormData form, String name, byte[] token, int length) {
+        if (name == null) {
+            if (length > 0) {
+                checkFieldCount(form);
+                form.add(utf8(token, length), "");
+            }
+        } else {
+            checkFieldCount(form);
+            form.add(name, utf8(token, length));
+        }
+    }
+
+    /**
+     * Verifica se é possivel adicionar mais um campo a um formulário recebido
+     * @param form O formulário
+     * @throws IllegalArgumentException Caso o formulário já tenha o número máximo de campos
+     */
+    private static void checkFieldCount(FormData form) {
+        if (form.valueCount == MAX_FIELDS)
+            throw new IllegalArgumentException("Form with more than " + MAX_FIELDS + " fields");
+    }
+
+    /**
+     * Cria uma String a partir de bytes UTF-8
+     * @param bytes Os bytes
+     * @param length O número de bytes
+     * @return O texto descodificado
+     */
+    private static String utf8(byte[] bytes, int length) {
+        return length == 0 ? "" : new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escreve um byte como %XX
+     * @param sb Onde escrever
+     * @param b O byte
+     */
+    private static void appendByte(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Stream que falha assim que são lidos mais bytes que o máximo dado
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private final long maxBytes;
+        private long remaining;
+
+        /**
+         * Limita o stream dado
+         * @param in O stream a limitar
+         * @param maxBytes O número máximo de bytes que podem ser lidos
+         */
+        private LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = this.in.read(b, off, len);
+            if (read > 0 && (this.remaining -= read) < 0)
+                throw new IllegalArgumentException("Form data longer than " + this.maxBytes + " bytes");
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+    }
+
+}
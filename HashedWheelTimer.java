@@ -0,0 +1,213 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Temporizador de roda (hashed wheel) usado para os prazos das ligações. A roda tem um número fixo de posições,
+ * cada uma correspondente a um tick, e cada prazo é colocado na posição do tick em que expira, com o número de
+ * voltas que ainda faltam. Um único thread avança a roda a cada tick e só percorre os prazos da posição atual,
+ * pelo que agendar um prazo tem custo constante e milhares de ligações partilham o mesmo thread, com uma
+ * precisão de um tick
+ */
+public class HashedWheelTimer {
+
+    private final long tickNanos;
+    private final Queue<Entry>[] wheel;
+    // entradas agendadas por outros threads, colocadas na roda pelo thread do temporizador no tick seguinte
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long start;
+    private volatile boolean stopped;
+
+    /**
+     * Cria e inicia o temporizador
+     * @param tickMillis A duração de cada tick em ms
+     * @param ticksPerWheel O número de posições da roda
+     * @param name O nome do thread do temporizador
+     * @requires {@code tickMillis > 0 && ticksPerWheel > 0 && name != null}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(long tickMillis, int ticksPerWheel, String name) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Queue[ticksPerWheel];
+        for (int i = 0; i < ticksPerWheel; i++)
+            this.wheel[i] = new ArrayDeque<>();
+        this.start = System.nanoTime();
+        this.thread = new Thread(this::run);
+        this.thread.setName(name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Cria um prazo que pode ser alterado várias vezes sem criar uma nova entrada na roda de cada vez
+     * @param onExpired A tarefa executada no thread do temporizador quando o prazo expirar
+     * @return O prazo, inicialmente sem data
+     * @requires {@code onExpired != null}
+     * @ensures {@code \result != null}
+     */
+    public Deadline newDeadline(Runnable onExpired) {
+        return new Deadline(onExpired);
+    }
+
+    /**
+     * Para o temporizador, os prazos pendentes deixam de expirar
+     */
+    public void stop() {
+        this.stopped = true;
+        this.thread.interrupt();
+    }
+
+    /**
+     * Agenda uma entrada para o momento dado
+     * @param deadline O prazo a avisar
+     * @param at O momento, no relógio de System.nanoTime
+     */
+    private void schedule(Deadline deadline, long at) {
+        this.pending.add(new Entry(deadline, at));
+    }
+
+    /**
+     * Avança a roda a cada tick, expirando as entradas da posição atual
+     */
+    private void run() {
+        long tick = 0;
+        while (!this.stopped) {
+            long sleep = this.start + (tick + 1) * this.tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            Entry entry;
+            while ((entry = this.pending.poll()) != null) {
+                // o tick em que a entrada expira, arredondado para cima, nunca anterior ao atual
+                long expiresTick = Math.max(tick, (entry.at - this.start + this.tickNanos - 1) / this.tickNanos - 1);
+                entry.rounds = (expiresTick - tick) / this.wheel.length;
+                this.wheel[(int) (expiresTick % this.wheel.length)].add(entry);
+            }
+            Queue<Entry> bucket = this.wheel[(int) (tick % this.wheel.length)];
+            for (int i = bucket.size(); i > 0; i--) {
+                entry = bucket.poll();
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                    bucket.add(entry);
+                } else {
+                    try {
+                        entry.deadline.fire(entry.at);
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed: " + e);
+                    }
+                }
+            }
+            tick++;
+        }
+    }
+
+    /**
+     * Entrada da roda, só usada pelo thread do temporizador depois de agendada
+     */
+    private static class Entry {
+
+        private final Deadline deadline;
+        private final long at;
+        private long rounds;
+
+        private Entry(Deadline deadline, long at) {
+            this.deadline = deadline;
+            this.at = at;
+        }
+    }
+
+    /**
+     * Prazo de uma ligação. Alterar o prazo só agenda uma nova entrada na roda quando o novo prazo é anterior ao
+     * da entrada já agendada; caso contrário, quando a entrada expira o prazo é verificado e a entrada é
+     * reagendada para o tempo que falta. Assim uma ligação que é servida dentro do prazo não cria entradas
+     * a cada pedido
+     */
+    public class Deadline {
+
+        private final Runnable onExpired;
+        // 0 caso não haja prazo
+        private long expiresAt;
+        // momento da entrada mais próxima agendada na roda, Long.MAX_VALUE caso não haja nenhuma
+        private long scheduledFor = Long.MAX_VALUE;
+        private boolean cancelled;
+
+        /**
+         * Cria o prazo
+         * @param onExpired A tarefa executada quando o prazo expirar
+         */
+        private Deadline(Runnable onExpired) {
+            this.onExpired = onExpired;
+        }
+
+        /**
+         * Define o prazo a partir do momento atual
+         * @param delayNanos O tempo até o prazo expirar, em nanossegundos
+         */
+        public synchronized void set(long delayNanos) {
+            if (this.cancelled)
+                return;
+            long at = System.nanoTime() + delayNanos;
+            this.expiresAt = at == 0 ? 1 : at;
+            if (this.scheduledFor == Long.MAX_VALUE || this.expiresAt - this.scheduledFor < 0) {
+                this.scheduledFor = this.expiresAt;
+                schedule(this, this.expiresAt);
+            }
+        }
+
+        /**
+         * Retira o prazo, que deixa de expirar até ser definido outra vez
+         */
+        public synchronized void clear() {
+            this.expiresAt = 0;
+        }
+
+        /**
+         * Retira o prazo definitivamente, quando a ligação é fechada
+         */
+        public synchronized void cancel() {
+            this.cancelled = true;
+            this.expiresAt = 0;
+        }
+
+        /**
+         * Verifica se o prazo já expirou
+         * @return true caso exista um prazo e o momento atual seja posterior a ele
+         */
+        public synchronized boolean isExpired() {
+            return this.expiresAt != 0 && System.nanoTime() - this.expiresAt >= 0;
+        }
+
+        /**
+         * Chamado pelo thread do temporizador quando uma entrada deste prazo expira
+         * @param at O momento para que a entrada foi agendada
+         */
+        private void fire(long at) {
+            synchronized (this) {
+                if (at == this.scheduledFor)
+                    this.scheduledFor = Long.MAX_VALUE;
+                if (this.expiresAt == 0)
+                    return;
+                if (System.nanoTime() - this.expiresAt < 0) {
+                    // o prazo foi adiado depois de a entrada ter sido agendada
+                    if (this.scheduledFor == Long.MAX_VALUE || this.expiresAt - this.scheduledFor < 0) {
+                        this.scheduledFor = this.expiresAt;
+                        schedule(this, this.expiresAt);
+                    }
+                    return;
+                }
+            }
+            this.onExpired.run();
+        }
+    }
+
+}
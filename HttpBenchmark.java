@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Benchmarks do analisador, da serialização e do servidor, para medir o efeito das alterações no débito
+ * (operações por segundo) e na taxa de alocação (bytes alocados por operação). Cada benchmark é corrido para
+ * vários tamanhos de corpo e números de cabeçalhos, com iterações de aquecimento antes das iterações medidas.
+ *
+ * Uso: java HttpBenchmark [option=value...] [benchmark...]
+ * Benchmarks: parseRequest, parseResponse, responseToString, roundTrip (por omissão são corridos todos)
+ * Opções: warmup, iterations, time (duração de cada iteração em ms), port, engine (do servidor do roundTrip)
+ *
+ * As mesmas operações são medidas pelos benchmarks JMH em jmh/, através de {@link #operation(String, int, int)}
+ * e {@link #roundTrip(String, int, int, int)}
+ */
+public class HttpBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = {0, 1024, 64 * 1024};
+    private static final int[] HEADER_COUNTS = {4, 16, 64};
+
+    // os resultados são guardados aqui para que o JIT não elimine o trabalho medido
+    private static volatile Object sink;
+
+    private final int warmup;
+    private final int iterations;
+    private final long iterationMillis;
+    private final int port;
+    private final String engine;
+    private final PrintStream out;
+
+    /**
+     * Cria o executor de benchmarks
+     * @param warmup O número de iterações de aquecimento
+     * @param iterations O número de iterações medidas
+     * @param iterationMillis A duração de cada iteração em milissegundos
+     * @param port A porta do servidor do benchmark roundTrip
+     * @param engine O motor do servidor do benchmark roundTrip
+     * @param out Onde escrever os resultados
+     */
+    private HttpBenchmark(int warmup, int iterations, long iterationMillis, int port, String engine, PrintStream out) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+        this.port = port;
+        this.engine = engine;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmup = 3, iterations = 5, time = 1000, port = 18080;
+        String engine = ServerConfig.ENGINE_BLOCKING;
+        List<String> selected = new ArrayList<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length == 1) {
+                selected.add(arg);
+                continue;
+            }
+            switch (option[0]) {
+                case "warmup": warmup = Integer.parseInt(option[1]); break;
+                case "iterations": iterations = Integer.parseInt(option[1]); break;
+                case "time": time = Integer.parseInt(option[1]); break;
+                case "port": port = Integer.parseInt(option[1]); break;
+                case "engine": engine = option[1]; break;
+                default:
+                    System.err.println("Unknown option: " + option[0]);
+                    return;
+            }
+        }
+        if (selected.isEmpty())
+            selected = Arrays.asList("parseRequest", "parseResponse", "responseToString", "roundTrip");
+
+        // o servidor escreve cada pedido na consola, o que não deve aparecer nos resultados
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        HttpBenchmark benchmark = new HttpBenchmark(warmup, iterations, time, port, engine, out);
+        out.printf("%-18s %8s %8s %14s %12s %12s%n", "Benchmark", "payload", "headers", "ops/s", "error", "B/op");
+        for (String name : selected) {
+            switch (name) {
+                case "parseRequest": benchmark.parseRequest(); break;
+                case "parseResponse": benchmark.parseResponse(); break;
+                case "responseToString": benchmark.responseToString(); break;
+                case "roundTrip": benchmark.roundTrip(); break;
+                default: out.println("Unknown benchmark: " + name);
+            }
+        }
+    }
+
+    /**
+     * Mede HttpRequest.parseRequest
+     * @throws Exception Nunca
+     */
+    private void parseRequest() throws Exception {
+        measureAll("parseRequest");
+    }
+
+    /**
+     * Mede HttpResponse.parseResponse
+     * @throws Exception Nunca
+     */
+    private void parseResponse() throws Exception {
+        measureAll("parseResponse");
+    }
+
+    /**
+     * Mede HttpResponse.toString
+     * @throws Exception Nunca
+     */
+    private void responseToString() throws Exception {
+        measureAll("responseToString");
+    }
+
+    /**
+     * Mede um pedido GET e a sua resposta por uma ligação keep-alive a um MyHttpServer local,
+     * que serve ficheiros com os tamanhos de corpo medidos
+     * @throws Exception Caso não seja possivel iniciar o servidor ou comunicar com ele
+     */
+    private void roundTrip() throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            for (int headers : HEADER_COUNTS) {
+                try (RoundTrip roundTrip = roundTrip(this.engine, this.port, size, headers)) {
+                    measure("roundTrip", size, headers, roundTrip);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mede uma operação sem estado para todos os tamanhos de corpo e números de cabeçalhos
+     * @param name O nome da operação, como em {@link #operation(String, int, int)}
+     * @throws Exception Nunca
+     */
+    private void measureAll(String name) throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            for (int headers : HEADER_COUNTS)
+                measure(name, size, headers, operation(name, size, headers));
+        }
+    }
+
+    /**
+     * Cria uma das operações sem estado medidas, para o tamanho de corpo e o número de cabeçalhos dados
+     * @param name parseRequest, parseResponse ou responseToString
+     * @param size O tamanho do corpo
+     * @param headers O número de cabeçalhos
+     * @return A operação, que retorna o seu resultado para que não seja eliminada pelo JIT
+     * @requires {@code name != null && size >= 0 && headers >= 0}
+     * @ensures {@code \result != null}
+     */
+    public static Callable<Object> operation(String name, int size, int headers) {
+        switch (name) {
+            case "parseRequest":
+                String request = requestText("POST", size, headers);
+                return () -> HttpRequest.parseRequest(request);
+            case "parseResponse":
+                String responseText = response(size, headers).toString();
+                return () -> HttpResponse.parseResponse(responseText);
+            case "responseToString":
+                return response(size, headers)::toString;
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + name);
+        }
+    }
+
+    /**
+     * Inicia um MyHttpServer local que serve um ficheiro com o tamanho de corpo dado e abre uma ligação
+     * keep-alive até ele. A operação retornada envia um GET desse ficheiro e lê a resposta, e deve ser fechada
+     * no fim para parar o servidor
+     * @param engine O motor do servidor
+     * @param port A porta do servidor
+     * @param size O tamanho do corpo da resposta
+     * @param headers O número de cabeçalhos do pedido
+     * @return A operação, que também é AutoCloseable
+     * @throws IOException Caso não seja possivel iniciar o servidor ou ligar-se a ele
+     * @requires {@code engine != null && size >= 0 && headers >= 0}
+     * @ensures {@code \result != null}
+     */
+    public static RoundTrip roundTrip(String engine, int port, int size, int headers) throws IOException {
+        Path root = Files.createTempDirectory("http-benchmark");
+        Files.write(root.resolve(size + ".bin"), payload(size).getBytes(StandardCharsets.US_ASCII));
+        ServerConfig config = ServerConfig.parse(new String[] {"engine=" + engine, "root=" + root, "accessLog=off"});
+        MyHttpServer server = new MyHttpServer(port, config);
+        server.start();
+        try {
+            HttpRequest request = HttpRequest.createDefaultHeaders("GET", "/" + size + ".bin", "HTTP/1.1", "", "localhost");
+            for (int i = request.getHeaders().size(); i < headers; i++)
+                request.setHeader("X-Benchmark-" + i, "value-" + i);
+            return new RoundTrip(server, new HttpConnection("localhost", port), request.toString());
+        } catch (IOException e) {
+            server.stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Corre uma operação durante as iterações de aquecimento e as iterações medidas, escrevendo
+     * a média de operações por segundo, o erro (desvio padrão) e os bytes alocados por operação
+     * @param name O nome do benchmark
+     * @param size O tamanho do corpo
+     * @param headers O número de cabeçalhos
+     * @param operation A operação a medir
+     * @throws Exception Caso a operação falhe
+     */
+    private void measure(String name, int size, int headers, Callable<Object> operation) throws Exception {
+        for (int i = 0; i < this.warmup; i++)
+            iteration(operation);
+        double[] throughput = new double[this.iterations];
+        long totalOps = 0, totalBytes = 0;
+        for (int i = 0; i < this.iterations; i++) {
+            long[] result = iteration(operation);
+            throughput[i] = result[0] * 1e9 / result[1];
+            totalOps += result[0];
+            totalBytes += result[2];
+        }
+        double mean = 0;
+        for (double value : throughput)
+            mean += value / throughput.length;
+        double variance = 0;
+        for (double value : throughput)
+            variance += (value - mean) * (value - mean) / Math.max(1, throughput.length - 1);
+        String bytesPerOp = totalBytes < 0 ? "n/a" : String.format(Locale.ROOT, "%.0f", (double) totalBytes / totalOps);
+        this.out.printf(Locale.ROOT, "%-18s %8d %8d %14.1f %12.1f %12s%n",
+            name, size, headers, mean, Math.sqrt(variance), bytesPerOp);
+    }
+
+    /**
+     * Corre uma iteração de uma operação
+     * @param operation A operação
+     * @return O número de operações, a duração em nanossegundos e os bytes alocados (-1 caso a JVM não os meça)
+     * @throws Exception Caso a operação falhe
+     */
+    private long[] iteration(Callable<Object> operation) throws Exception {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + this.iterationMillis * 1_000_000;
+        long ops = 0, now;
+        do {
+            // a hora só é lida a cada 16 operações para não pesar nas operações mais rápidas
+            for (int i = 0; i < 16; i++)
+                sink = operation.call();
+            ops += 16;
+        } while ((now = System.nanoTime()) < end);
+        long allocatedAfter = allocatedBytes();
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+        return new long[] {ops, now - start, allocated};
+    }
+
+    /**
+     * Retorna o total de bytes alocados pelo thread atual, que corre o benchmark. As alocações dos threads do
+     * servidor no roundTrip não são contadas, sendo medidas pelo JMH com {@code -prof gc}
+     * @return O número de bytes alocados, -1 caso a JVM não suporte esta medição
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Cria o texto de um pedido com o tamanho de corpo e o número de cabeçalhos dados
+     * @param method O método do pedido
+     * @param size O tamanho do corpo
+     * @param headers O número de cabeçalhos
+     * @return O texto do pedido
+     */
+    private static String requestText(String method, int size, int headers) {
+        HttpRequest request = HttpRequest.createDefaultHeaders(method, "/benchmark", "HTTP/1.1", payload(size), "localhost");
+        for (int i = request.getHeaders().size(); i < headers; i++)
+            request.setHeader("X-Benchmark-" + i, "value-" + i);
+        return request.toString();
+    }
+
+    /**
+     * Cria uma resposta com o tamanho de corpo e o número de cabeçalhos dados
+     * @param size O tamanho do corpo
+     * @param headers O número de cabeçalhos
+     * @return A resposta
+     */
+    private static HttpResponse response(int size, int headers) {
+        HttpResponse response = HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", payload(size));
+        for (int i = response.getHeaders().size(); i < headers; i++)
+            response.setHeader("X-Benchmark-" + i, "value-" + i);
+        return response;
+    }
+
+    /**
+     * Cria um corpo de texto com o tamanho dado
+     * @param size O tamanho do corpo
+     * @return O corpo
+     */
+    private static String payload(int size) {
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++)
+            chars[i] = (char) ('a' + i % 26);
+        return new String(chars);
+    }
+
+    /**
+     * Pedido GET enviado por uma ligação keep-alive a um servidor local, criado por
+     * {@link #roundTrip(String, int, int, int)}
+     */
+    public static class RoundTrip implements Callable<Object>, AutoCloseable {
+
+        private final MyHttpServer server;
+        private final HttpConnection connection;
+        private final String request;
+
+        /**
+         * Cria a operação
+         * @param server O servidor iniciado
+         * @param connection A ligação ao servidor
+         * @param request O texto do pedido enviado em cada operação
+         */
+        private RoundTrip(MyHttpServer server, HttpConnection connection, String request) {
+            this.server = server;
+            this.connection = connection;
+            this.request = request;
+        }
+
+        @Override
+        public Object call() throws IOException {
+            this.connection.write(this.request);
+            this.connection.flush();
+            HttpResponse response = this.connection.readResponse();
+            if (response == null || response.getStatusCode() != 200)
+                throw new IOException("Unexpected response: " + response);
+            return response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.connection.close();
+            } finally {
+                this.server.stop();
+            }
+        }
+    }
+
+}
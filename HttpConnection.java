@@ -0,0 +1,160 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Ligação keep-alive do cliente a um servidor, usada por um único thread de cada vez.
+ * As ligações são criadas e reutilizadas pelo {@link HttpConnectionPool}
+ */
+public class HttpConnection implements Closeable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final String host;
+    private final int port;
+    private final Socket socket;
+    private final OutputStream output;
+    private final InputStream input;
+    private final HttpParser parser = HttpParser.forResponses();
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readStart, readEnd;
+    private long lastUsed;
+
+    /**
+     * Abre uma ligação ao servidor dado
+     * @param host O nome do servidor
+     * @param port A porta do servidor
+     * @throws IOException Caso não seja possivel ligar ao servidor
+     * @requires {@code host != null}
+     */
+    public HttpConnection(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.socket = new Socket(host, port);
+        this.output = new BufferedOutputStream(this.socket.getOutputStream(), READ_BUFFER_SIZE);
+        this.input = this.socket.getInputStream();
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Escreve um pedido HTTP, que só é enviado quando for chamado {@link #flush()}
+     * @param request O texto do pedido
+     * @throws IOException Caso não seja possivel escrever
+     * @requires {@code request != null}
+     */
+    public void write(String request) throws IOException {
+        this.output.write(request.getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * Envia os pedidos escritos
+     * @throws IOException Caso não seja possivel enviar
+     */
+    public void flush() throws IOException {
+        this.output.flush();
+    }
+
+    /**
+     * Lê a próxima resposta da ligação. Os bytes são lidos em blocos e a resposta é delimitada pelo HttpParser,
+     * ficando guardados os bytes que sobrarem para a resposta seguinte. Um corpo comprimido é descomprimido
+     * @return A resposta lida, null caso esteja mal formatada
+     * @throws IOException Caso a ligação seja fechada antes de a resposta estar completa ou o corpo não possa ser descomprimido
+     */
+    public HttpResponse readResponse() throws IOException {
+        this.parser.reset();
+        while (!this.parser.isComplete()) {
+            if (this.readStart == this.readEnd) {
+                int read = this.input.read(this.readBuffer);
+                if (read == -1) {
+                    if (this.parser.finish())
+                        break;
+                    throw new IOException("Connection closed by the server");
+                }
+                this.readStart = 0;
+                this.readEnd = read;
+            }
+            this.readStart += this.parser.feed(this.readBuffer, this.readStart, this.readEnd - this.readStart);
+        }
+        this.lastUsed = System.currentTimeMillis();
+        HttpResponse response = this.parser.getResponse();
+        String encoding = response == null ? null : response.getHeaders().get("Content-Encoding");
+        if (encoding != null) {
+            response.setBody(ContentEncoding.decode(response.getBodyBytes(), encoding))
+                .removeHeader("Content-Encoding");
+        }
+        return response;
+    }
+
+    /**
+     * Verifica se a ligação pode ser reutilizada depois da resposta dada
+     * @param response A última resposta lida, null caso estivesse mal formatada
+     * @return true caso a ligação continue aberta e sincronizada com o servidor
+     */
+    public boolean isReusable(HttpResponse response) {
+        if (response == null || this.socket.isClosed())
+            return false;
+        String connection = response.getHeaders().get("Connection");
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    /**
+     * Verifica se uma ligação inativa continua utilizável, tentando ler com um timeout de 1 ms:
+     * se o servidor a tiver fechado a leitura retorna -1, e se chegarem bytes não pedidos a ligação está dessincronizada
+     * @return true caso a ligação esteja aberta e sem bytes pendentes
+     */
+    public boolean isHealthy() {
+        if (this.socket.isClosed() || this.readStart != this.readEnd)
+            return false;
+        try {
+            this.socket.setSoTimeout(1);
+            try {
+                this.input.read(this.readBuffer);
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                this.socket.setSoTimeout(0);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retorna o momento em que a ligação foi usada pela última vez
+     * @return O momento em milissegundos desde 1970
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Retorna a chave do servidor desta ligação, usada pelo pool
+     * @return O nome e porta do servidor no formato {@code host:port}
+     */
+    public String getHostKey() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Fecha a ligação
+     */
+    @Override
+    public void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+}
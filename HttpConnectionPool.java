@@ -0,0 +1,176 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Pool de ligações keep-alive do cliente, para que pedidos seguidos ao mesmo servidor reutilizem a mesma ligação
+ * em vez de abrirem uma nova ligação TCP. Cada servidor tem um número máximo de ligações abertas, e as ligações
+ * inativas há mais tempo do que o timeout são fechadas quando são encontradas. As ligações inativas há pouco tempo
+ * são reutilizadas sem verificação, e as restantes são verificadas antes de serem reutilizadas
+ */
+public class HttpConnectionPool implements Closeable {
+
+    public static final int DEFAULT_MAX_PER_HOST = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30_000;
+    public static final long DEFAULT_VALIDATE_AFTER = 2_000;
+
+    private final int maxPerHost;
+    private final long idleTimeout;
+    private final long validateAfter;
+    private final HashMap<String, HostPool> hosts = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Cria um pool com os limites por omissão
+     */
+    public HttpConnectionPool() {
+        this(DEFAULT_MAX_PER_HOST, DEFAULT_IDLE_TIMEOUT, DEFAULT_VALIDATE_AFTER);
+    }
+
+    /**
+     * Cria um pool de ligações
+     * @param maxPerHost O número máximo de ligações abertas a cada servidor
+     * @param idleTimeout O tempo em milissegundos depois do qual uma ligação inativa é fechada
+     * @param validateAfter O tempo de inatividade em milissegundos depois do qual uma ligação é verificada antes de ser reutilizada
+     * @requires {@code maxPerHost > 0 && idleTimeout > 0 && validateAfter >= 0}
+     */
+    public HttpConnectionPool(int maxPerHost, long idleTimeout, long validateAfter) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.validateAfter = validateAfter;
+    }
+
+    /**
+     * Obtém uma ligação ao servidor dado, reutilizando uma ligação inativa caso exista. Caso já estejam abertas
+     * o número máximo de ligações ao servidor, espera que uma seja devolvida
+     * @param host O nome do servidor
+     * @param port A porta do servidor
+     * @return Uma ligação ao servidor, que tem de ser devolvida com {@link #release(HttpConnection, boolean)}
+     * @throws IOException Caso não seja possivel ligar ao servidor ou o pool esteja fechado
+     * @requires {@code host != null}
+     * @ensures {@code \result != null}
+     */
+    public HttpConnection acquire(String host, int port) throws IOException {
+        if (isClosed())
+            throw new IOException("Connection pool closed");
+        HostPool pool = hostPool(host + ":" + port);
+        try {
+            pool.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection", e);
+        }
+        try {
+            // o pool pode ter sido fechado enquanto este thread esperava por uma ligação
+            if (isClosed())
+                throw new IOException("Connection pool closed");
+            HttpConnection connection;
+            while ((connection = pool.poll()) != null) {
+                long idle = System.currentTimeMillis() - connection.getLastUsed();
+                if (idle < this.idleTimeout && (idle < this.validateAfter || connection.isHealthy()))
+                    return connection;
+                connection.close();
+            }
+            return new HttpConnection(host, port);
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Devolve uma ligação obtida com {@link #acquire(String, int)}
+     * @param connection A ligação a devolver
+     * @param reusable true caso a ligação possa ser usada por outro pedido, false para a fechar
+     * @requires {@code connection != null}
+     */
+    public void release(HttpConnection connection, boolean reusable) {
+        HostPool pool = hostPool(connection.getHostKey());
+        if (!reusable || !pool.offer(connection))
+            connection.close();
+        pool.permits.release();
+    }
+
+    /**
+     * Fecha todas as ligações inativas. As ligações em uso são fechadas quando forem devolvidas
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.closed = true;
+        }
+        for (HostPool pool : snapshot())
+            pool.closeIdle();
+    }
+
+    /**
+     * Retorna o pool de ligações de um servidor, criando-o caso ainda não exista
+     * @param key O nome e porta do servidor
+     * @return O pool do servidor
+     */
+    private synchronized HostPool hostPool(String key) {
+        return this.hosts.computeIfAbsent(key, k -> new HostPool());
+    }
+
+    /**
+     * Retorna os pools de todos os servidores
+     * @return Cópia da lista de pools
+     */
+    private synchronized HostPool[] snapshot() {
+        return this.hosts.values().toArray(new HostPool[0]);
+    }
+
+    /**
+     * Verifica se o pool foi fechado
+     * @return true caso o pool tenha sido fechado
+     */
+    private synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Ligações a um servidor
+     */
+    private class HostPool {
+
+        private final Semaphore permits = new Semaphore(maxPerHost, true);
+        // a última ligação devolvida é a primeira a ser reutilizada, para que as restantes possam expirar
+        private final ArrayDeque<HttpConnection> idle = new ArrayDeque<>();
+
+        /**
+         * Retira a ligação inativa usada mais recentemente
+         * @return A ligação, null caso não existam ligações inativas
+         */
+        private synchronized HttpConnection poll() {
+            return this.idle.pollFirst();
+        }
+
+        /**
+         * Guarda uma ligação inativa
+         * @param connection A ligação
+         * @return false caso o pool esteja fechado e a ligação não tenha sido guardada
+         */
+        private synchronized boolean offer(HttpConnection connection) {
+            if (isClosed())
+                return false;
+            this.idle.offerFirst(connection);
+            return true;
+        }
+
+        /**
+         * Fecha todas as ligações inativas
+         */
+        private synchronized void closeIdle() {
+            for (HttpConnection connection : this.idle)
+                connection.close();
+            this.idle.clear();
+        }
+    }
+
+}
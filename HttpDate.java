@@ -0,0 +1,82 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Classe usada para converter datas de e para o formato usado nos cabeçalhos HTTP
+ * (por exemplo "Sun, 06 Nov 1994 08:49:37 GMT")
+ */
+public class HttpDate {
+
+    private static final DateTimeFormatter FORMAT =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile CachedDate current = new CachedDate(0, format(0));
+
+    /**
+     * Formata uma data no formato dos cabeçalhos HTTP
+     * @param millis A data em milissegundos desde 1970
+     * @return A data formatada
+     * @ensures {@code \result != null}
+     */
+    public static String format(long millis) {
+        return FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Retorna a data atual no formato dos cabeçalhos HTTP, usada no cabeçalho Date. Como a precisão é ao
+     * segundo, a data formatada é guardada e só volta a ser formatada quando o segundo muda
+     * @return A data atual formatada
+     * @ensures {@code \result != null}
+     */
+    public static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = current;
+        if (date.second != second) {
+            date = new CachedDate(second, format(second * 1000));
+            current = date;
+        }
+        return date.text;
+    }
+
+    /**
+     * Lê uma data no formato dos cabeçalhos HTTP
+     * @param text O texto a ser lido
+     * @return A data em milissegundos desde 1970, -1 caso o texto não seja uma data válida
+     * @requires {@code text != null}
+     */
+    public static long parse(String text) {
+        try {
+            return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Data formatada de um segundo
+     */
+    private static class CachedDate {
+
+        private final long second;
+        private final String text;
+
+        /**
+         * Guarda a data formatada de um segundo
+         * @param second O segundo desde 1970
+         * @param text A data formatada
+         */
+        private CachedDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+}
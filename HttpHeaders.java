@@ -0,0 +1,316 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Cabeçalhos de um pedido ou de uma resposta HTTP, guardados por ordem num único array com o nome e o valor de
+ * cada cabeçalho em posições seguidas. Os nomes não distinguem maiúsculas de minúsculas e os nomes mais comuns
+ * são sempre guardados como as constantes desta classe, pelo que uma pesquisa com uma dessas constantes (ou com
+ * o mesmo literal) é resolvida comparando referências, sem calcular hashes. Uma mensagem com poucos cabeçalhos
+ * ocupa apenas este objeto, o array e as strings dos valores
+ */
+public class HttpHeaders {
+
+    public static final String ACCEPT = "Accept";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ACCEPT_LANGUAGE = "Accept-Language";
+    public static final String AUTHORIZATION = "Authorization";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String CONNECTION = "Connection";
+    public static final String CONTENT_DISPOSITION = "Content-Disposition";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CONTENT_LENGTH = "Content-Length";
+    public static final String CONTENT_TYPE = "Content-Type";
+    public static final String COOKIE = "Cookie";
+    public static final String DATE = "Date";
+    public static final String ETAG = "ETag";
+    public static final String EXPECT = "Expect";
+    public static final String HOST = "Host";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String LOCATION = "Location";
+    public static final String REFERER = "Referer";
+    public static final String RETRY_AFTER = "Retry-After";
+    public static final String SERVER = "Server";
+    public static final String SET_COOKIE = "Set-Cookie";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String USER_AGENT = "User-Agent";
+    public static final String VARY = "Vary";
+
+    private static final String[] KNOWN_NAMES = {HOST, CONNECTION, CONTENT_LENGTH, CONTENT_TYPE, DATE, SERVER,
+        ACCEPT, ACCEPT_ENCODING, USER_AGENT, CONTENT_ENCODING, TRANSFER_ENCODING, LAST_MODIFIED, ETAG, VARY,
+        CACHE_CONTROL, IF_NONE_MATCH, IF_MODIFIED_SINCE, ACCEPT_LANGUAGE, REFERER, COOKIE, SET_COOKIE, EXPECT,
+        LOCATION, RETRY_AFTER, AUTHORIZATION, CONTENT_DISPOSITION};
+    // o nome de cada cabeçalho conhecido seguido de ": ", já codificado
+    private static final byte[][] ENCODED_NAMES = new byte[KNOWN_NAMES.length][];
+    private static final byte[] COLON_SPACE = {':', ' '};
+    private static final byte[] LINE_FEED = {'\r', '\n'};
+    private static final int INITIAL_CAPACITY = 8;
+
+    static {
+        for (int i = 0; i < KNOWN_NAMES.length; i++)
+            ENCODED_NAMES[i] = (KNOWN_NAMES[i] + ": ").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // nome e valor de cada cabeçalho, em posições seguidas
+    private String[] slots = new String[INITIAL_CAPACITY * 2];
+    private int size;
+
+    /**
+     * Retorna a constante do nome de um cabeçalho conhecido
+     * @param name O nome do cabeçalho, com quaisquer maiúsculas
+     * @return A constante com o mesmo nome, ou o próprio nome caso não seja um cabeçalho conhecido
+     * @requires {@code name != null}
+     * @ensures {@code \result != null && \result.equalsIgnoreCase(name)}
+     */
+    public static String intern(String name) {
+        for (String known : KNOWN_NAMES) {
+            if (known == name)
+                return known;
+        }
+        for (String known : KNOWN_NAMES) {
+            if (known.length() == name.length() && known.equalsIgnoreCase(name))
+                return known;
+        }
+        return name;
+    }
+
+    /**
+     * Retorna o nome de um cabeçalho codificado em ASCII, sem criar uma nova string caso seja um cabeçalho conhecido
+     * @param data O array com o nome
+     * @param offset A posição do primeiro byte do nome
+     * @param length O número de bytes do nome
+     * @return A constante do cabeçalho conhecido com o mesmo nome, ou uma nova string com o nome
+     * @requires {@code data != null && 0 <= offset && 0 <= length && offset + length <= data.length}
+     * @ensures {@code \result != null}
+     */
+    public static String intern(byte[] data, int offset, int length) {
+        for (String known : KNOWN_NAMES) {
+            if (known.length() == length && equalsIgnoreCase(known, data, offset))
+                return known;
+        }
+        return new String(data, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compara um nome conhecido com os bytes dados, sem distinguir maiúsculas de minúsculas
+     * @param known O nome conhecido
+     * @param data O array com o nome a comparar, com pelo menos known.length() bytes a partir de offset
+     * @param offset A posição do primeiro byte do nome a comparar
+     * @return true caso os nomes sejam iguais
+     */
+    private static boolean equalsIgnoreCase(String known, byte[] data, int offset) {
+        for (int i = 0; i < known.length(); i++) {
+            if (toLowerCase(known.charAt(i)) != toLowerCase((char) (data[offset + i] & 0xFF)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Converte uma letra ASCII em minúscula
+     * @param c O caracter
+     * @return A minúscula de c caso seja uma letra maiúscula, o próprio c caso contrário
+     */
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Retorna o valor de um cabeçalho
+     * @param name O nome do cabeçalho, com quaisquer maiúsculas
+     * @return O valor do cabeçalho, null caso não exista
+     * @requires {@code name != null}
+     */
+    public String get(String name) {
+        int index = indexOf(name);
+        return index == -1 ? null : this.slots[index + 1];
+    }
+
+    /**
+     * Verifica se existe um cabeçalho
+     * @param name O nome do cabeçalho, com quaisquer maiúsculas
+     * @return true caso o cabeçalho exista
+     * @requires {@code name != null}
+     */
+    public boolean contains(String name) {
+        return indexOf(name) != -1;
+    }
+
+    /**
+     * Define o valor de um cabeçalho, substituindo o valor anterior caso já exista
+     * @param name O nome do cabeçalho
+     * @param value O valor do cabeçalho
+     * @return Os próprios cabeçalhos
+     * @requires {@code name != null && value != null}
+     */
+    public HttpHeaders set(String name, String value) {
+        int index = indexOf(name);
+        if (index != -1) {
+            this.slots[index + 1] = value;
+            return this;
+        }
+        return add(intern(name), value);
+    }
+
+    /**
+     * Acrescenta um cabeçalho no fim, sem procurar um cabeçalho com o mesmo nome, pelo que o custo não depende
+     * do número de cabeçalhos. Usado pelo analisador, que guarda os cabeçalhos repetidos tal como foram recebidos;
+     * {@link #get(String)} retorna o valor do primeiro
+     * @param name O nome do cabeçalho, já obtido com {@link #intern(String)} caso seja um cabeçalho conhecido
+     * @param value O valor do cabeçalho
+     * @return Os próprios cabeçalhos
+     * @requires {@code name != null && value != null}
+     */
+    public HttpHeaders add(String name, String value) {
+        if (this.size * 2 == this.slots.length) {
+            String[] slots = new String[this.slots.length * 2];
+            System.arraycopy(this.slots, 0, slots, 0, this.slots.length);
+            this.slots = slots;
+        }
+        this.slots[this.size * 2] = name;
+        this.slots[this.size * 2 + 1] = value;
+        this.size++;
+        return this;
+    }
+
+    /**
+     * Remove todos os cabeçalhos com o nome dado
+     * @param name O nome do cabeçalho, com quaisquer maiúsculas
+     * @return O valor que o primeiro desses cabeçalhos tinha, null caso não existisse
+     * @requires {@code name != null}
+     */
+    public String remove(String name) {
+        String value = null;
+        int index;
+        while ((index = indexOf(name)) != -1) {
+            if (value == null)
+                value = this.slots[index + 1];
+            System.arraycopy(this.slots, index + 2, this.slots, index, this.size * 2 - index - 2);
+            this.size--;
+            this.slots[this.size * 2] = null;
+            this.slots[this.size * 2 + 1] = null;
+        }
+        return value;
+    }
+
+    /**
+     * Retorna o número de cabeçalhos
+     * @return O número de cabeçalhos
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Retorna o nome do cabeçalho na posição dada, pela ordem em que foram definidos
+     * @param index A posição do cabeçalho
+     * @return O nome do cabeçalho
+     * @requires {@code 0 <= index && index < size()}
+     */
+    public String getName(int index) {
+        return this.slots[index * 2];
+    }
+
+    /**
+     * Retorna o valor do cabeçalho na posição dada, pela ordem em que foram definidos
+     * @param index A posição do cabeçalho
+     * @return O valor do cabeçalho
+     * @requires {@code 0 <= index && index < size()}
+     */
+    public String getValue(int index) {
+        return this.slots[index * 2 + 1];
+    }
+
+    /**
+     * Calcula o número de bytes dos cabeçalhos codificados, sem a linha vazia final
+     * @return O número de bytes escritos por {@link #writeTo(ByteBuffer)}
+     */
+    public int encodedLength() {
+        int length = 0;
+        for (int i = 0; i < this.size * 2; i += 2)
+            length += this.slots[i].length() + COLON_SPACE.length + this.slots[i + 1].length() + LINE_FEED.length;
+        return length;
+    }
+
+    /**
+     * Escreve cada cabeçalho numa linha {@code nome: valor} em bytes ASCII no buffer dado. Os nomes dos cabeçalhos
+     * conhecidos são escritos a partir de bytes já codificados
+     * @param buffer O buffer onde escrever, com pelo menos {@link #encodedLength()} bytes livres
+     * @throws java.nio.BufferOverflowException Caso o buffer não tenha espaço suficiente
+     * @requires {@code buffer != null}
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < this.size * 2; i += 2) {
+            byte[] encoded = encodedName(this.slots[i]);
+            if (encoded != null) {
+                buffer.put(encoded);
+            } else {
+                putAscii(buffer, this.slots[i]);
+                buffer.put(COLON_SPACE);
+            }
+            putAscii(buffer, this.slots[i + 1]);
+            buffer.put(LINE_FEED);
+        }
+    }
+
+    /**
+     * Converte os cabeçalhos para as linhas {@code nome: valor} de uma mensagem HTTP, sem a linha vazia final
+     * @ensures {@code \result != null}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.size * 2; i += 2)
+            sb.append(this.slots[i]).append(": ").append(this.slots[i + 1]).append("\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Procura um cabeçalho. Os nomes guardados que são a mesma string são encontrados sem comparar caracteres
+     * @param name O nome do cabeçalho, com quaisquer maiúsculas
+     * @return A posição do nome do cabeçalho no array, -1 caso não exista
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < this.size * 2; i += 2) {
+            if (this.slots[i] == name)
+                return i;
+        }
+        for (int i = 0; i < this.size * 2; i += 2) {
+            String stored = this.slots[i];
+            if (stored.length() == name.length() && stored.equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Retorna os bytes já codificados de um nome de cabeçalho conhecido
+     * @param name O nome guardado
+     * @return O nome seguido de ": ", null caso não seja um cabeçalho conhecido
+     */
+    private static byte[] encodedName(String name) {
+        for (int i = 0; i < KNOWN_NAMES.length; i++) {
+            if (KNOWN_NAMES[i] == name)
+                return ENCODED_NAMES[i];
+        }
+        return null;
+    }
+
+    /**
+     * Escreve uma string ASCII no buffer, um byte por caracter
+     * @param buffer O buffer onde escrever
+     * @param text A string a escrever
+     */
+    private static void putAscii(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            buffer.put(c < 0x100 ? (byte) c : (byte) '?');
+        }
+    }
+
+}
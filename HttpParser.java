@@ -0,0 +1,741 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Analisador incremental de mensagens HTTP que consome os bytes à medida que chegam do socket, podendo uma
+ * mensagem estar dividida por várias leituras. Cada objeto analisa uma mensagem de cada vez, devendo ser
+ * chamado {@link #reset()} depois de obter a mensagem completa para analisar a seguinte. Com um
+ * {@link BodyStreamer} o corpo de um pedido pode ser entregue a um {@link BodySink} à medida que chega, em vez
+ * de ser guardado em memória. Os corpos guardados em memória crescem à medida que os bytes chegam e não podem
+ * exceder o tamanho máximo definido, sendo a mensagem rejeitada com 413. Da mesma forma, as mensagens com
+ * demasiados cabeçalhos são rejeitadas com 431
+ */
+public class HttpParser {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    // limites dos cabeçalhos de cada mensagem, incluindo a linha inicial e os cabeçalhos finais dos chunks
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    // maior array que a JVM consegue criar
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    // array para onde são copiados os bytes dos buffers diretos, reutilizado por cada thread
+    private static final ThreadLocal<byte[]> DIRECT_CHUNK = ThreadLocal.withInitial(() -> new byte[MAX_LINE_LENGTH]);
+
+    private static final int START_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    private static final int BODY_UNTIL_CLOSE = 3;
+    private static final int CHUNK_SIZE = 4;
+    private static final int CHUNK_DATA = 5;
+    private static final int CHUNK_END = 6;
+    private static final int TRAILERS = 7;
+    private static final int COMPLETE = 8;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+
+    private final boolean parsesRequests;
+    private int state;
+    private boolean malformed;
+    // código de estado da mensagem abandonada antes do fim, 0 caso não tenha sido abandonada
+    private int errorStatus;
+    private int maxBodySize = MAX_ARRAY_SIZE;
+    private int headerBytes;
+    private byte[] line = new byte[128];
+    private int lineLength;
+    private String startLine1, startLine2, startLine3;
+    private HttpHeaders headers;
+    private byte[] body;
+    private int bodyLength;
+    private int chunkRemaining;
+    private BodyStreamer streamer;
+    private BodySink sink;
+    private HttpRequest streamedHead;
+    private long bodyRemaining;
+    private long streamed;
+
+    /**
+     * Cria um analisador para o tipo de mensagem indicado
+     * @param parsesRequests true para analisar pedidos, false para analisar respostas
+     */
+    private HttpParser(boolean parsesRequests) {
+        this.parsesRequests = parsesRequests;
+        reset();
+    }
+
+    /**
+     * Cria um analisador de pedidos HTTP, usado pelo servidor
+     * @return HttpParser de pedidos
+     * @ensures {@code \result != null}
+     */
+    public static HttpParser forRequests() {
+        return new HttpParser(true);
+    }
+
+    /**
+     * Cria um analisador de respostas HTTP, usado pelo cliente
+     * @return HttpParser de respostas
+     * @ensures {@code \result != null}
+     */
+    public static HttpParser forResponses() {
+        return new HttpParser(false);
+    }
+
+    /**
+     * Prepara o analisador para a próxima mensagem
+     */
+    public void reset() {
+        this.state = START_LINE;
+        this.malformed = false;
+        this.errorStatus = 0;
+        this.headerBytes = 0;
+        this.lineLength = 0;
+        this.startLine1 = this.startLine2 = this.startLine3 = null;
+        this.headers = new HttpHeaders();
+        this.body = null;
+        this.bodyLength = 0;
+        this.chunkRemaining = 0;
+        this.sink = null;
+        this.streamedHead = null;
+        this.bodyRemaining = 0;
+        this.streamed = 0;
+    }
+
+    /**
+     * Define o tamanho máximo dos corpos guardados em memória. Os corpos entregues em streaming não são limitados
+     * @param maxBytes O número máximo de bytes do corpo
+     * @requires {@code maxBytes > 0}
+     */
+    public void setMaxBodySize(long maxBytes) {
+        this.maxBodySize = (int) Math.min(maxBytes, MAX_ARRAY_SIZE);
+    }
+
+    /**
+     * Define quem decide, no fim dos cabeçalhos de cada pedido, se o corpo é entregue em streaming
+     * @param streamer O objeto consultado em cada pedido com corpo, null para guardar sempre o corpo em memória
+     */
+    public void setBodyStreamer(BodyStreamer streamer) {
+        this.streamer = streamer;
+    }
+
+    /**
+     * Consome bytes do buffer dado até ao fim da mensagem atual, avançando a sua posição. Os bytes de um
+     * buffer direto são copiados em blocos para um array reutilizado pelo thread atual
+     * @param buffer O buffer com os bytes recebidos
+     * @return true caso a mensagem esteja completa, false caso sejam precisos mais bytes
+     * @requires {@code buffer != null}
+     */
+    public boolean feed(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            int consumed = feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.position() + consumed);
+        } else {
+            byte[] chunk = DIRECT_CHUNK.get();
+            while (buffer.hasRemaining() && !isComplete()) {
+                int length = Math.min(buffer.remaining(), chunk.length);
+                buffer.get(chunk, 0, length);
+                int consumed = feed(chunk, 0, length);
+                buffer.position(buffer.position() - (length - consumed));
+                // o corpo em streaming não aceita mais bytes por agora
+                if (consumed < length && !isComplete())
+                    break;
+            }
+        }
+        return isComplete();
+    }
+
+    /**
+     * Consome bytes do array dado até ao fim da mensagem atual
+     * @param data O array com os bytes recebidos
+     * @param offset A posição do primeiro byte a ser consumido
+     * @param length O número de bytes disponiveis
+     * @return O número de bytes consumidos, menor que length caso a mensagem termine antes do fim dos dados
+     * ou caso o {@link BodySink} do corpo em streaming não aceite mais bytes
+     * @requires {@code data != null && offset >= 0 && length >= 0 && offset + length <= data.length}
+     */
+    public int feed(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && this.state != COMPLETE) {
+            switch (this.state) {
+                case START_LINE:
+                case HEADERS:
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILERS:
+                    byte b = data[i++];
+                    if (b == LF)
+                        endOfLine();
+                    else
+                        appendToLine(b);
+                    break;
+                case BODY:
+                    if (this.sink != null) {
+                        int offered = (int) Math.min(end - i, this.bodyRemaining);
+                        int accepted = this.sink.write(data, i, offered);
+                        this.streamed += accepted;
+                        this.bodyRemaining -= accepted;
+                        i += accepted;
+                        if (this.bodyRemaining == 0)
+                            this.state = COMPLETE;
+                        else if (accepted < offered)
+                            return i - offset;
+                        break;
+                    }
+                    int count = (int) Math.min(end - i, this.bodyRemaining);
+                    ensureBodyCapacity(this.bodyLength + count);
+                    System.arraycopy(data, i, this.body, this.bodyLength, count);
+                    this.bodyLength += count;
+                    this.bodyRemaining -= count;
+                    i += count;
+                    if (this.bodyRemaining == 0)
+                        this.state = COMPLETE;
+                    break;
+                case BODY_UNTIL_CLOSE:
+                    if (end - i > this.maxBodySize - this.bodyLength) {
+                        reject(413);
+                        break;
+                    }
+                    ensureBodyCapacity(this.bodyLength + end - i);
+                    System.arraycopy(data, i, this.body, this.bodyLength, end - i);
+                    this.bodyLength += end - i;
+                    i = end;
+                    break;
+                case CHUNK_DATA:
+                    if (this.sink != null) {
+                        int offered = Math.min(end - i, this.chunkRemaining);
+                        int accepted = this.sink.write(data, i, offered);
+                        this.streamed += accepted;
+                        this.chunkRemaining -= accepted;
+                        i += accepted;
+                        if (this.chunkRemaining == 0)
+                            this.state = CHUNK_END;
+                        else if (accepted < offered)
+                            return i - offset;
+                        break;
+                    }
+                    int chunkCount = Math.min(end - i, this.chunkRemaining);
+                    System.arraycopy(data, i, this.body, this.bodyLength, chunkCount);
+                    this.bodyLength += chunkCount;
+                    this.chunkRemaining -= chunkCount;
+                    i += chunkCount;
+                    if (this.chunkRemaining == 0)
+                        this.state = CHUNK_END;
+                    break;
+            }
+        }
+        return i - offset;
+    }
+
+    /**
+     * Indica ao analisador que a ligação foi fechada, terminando as respostas cujo corpo vai até ao fim da ligação
+     * @return true caso a mensagem esteja completa, false caso tenha ficado incompleta
+     */
+    public boolean finish() {
+        if (this.state == BODY_UNTIL_CLOSE)
+            this.state = COMPLETE;
+        return isComplete();
+    }
+
+    /**
+     * Verifica se a mensagem atual já foi totalmente recebida
+     * @return true caso a mensagem esteja completa
+     */
+    public boolean isComplete() {
+        return this.state == COMPLETE;
+    }
+
+    /**
+     * Verifica se a mensagem atual está mal formatada
+     * @return true caso a mensagem esteja mal formatada
+     */
+    public boolean isMalformed() {
+        return this.malformed;
+    }
+
+    /**
+     * Retorna o código de estado com que deve ser respondida a mensagem mal formatada
+     * @return 413 caso o corpo (ou a soma dos chunks) exceda o tamanho máximo, 431 caso os cabeçalhos excedam
+     * o número ou o tamanho máximo, 501 caso o pedido use uma codificação de transferência não suportada,
+     * 400 nos restantes casos
+     */
+    public int getErrorStatus() {
+        return this.errorStatus != 0 ? this.errorStatus : 400;
+    }
+
+    /**
+     * Verifica se a mensagem atual foi abandonada antes do fim, não sendo possivel saber onde começa a
+     * mensagem seguinte. A ligação deve ser fechada depois de responder
+     * @return true caso a mensagem tenha sido abandonada
+     */
+    public boolean isAbandoned() {
+        return this.errorStatus != 0;
+    }
+
+    /**
+     * Verifica se algum byte da mensagem atual já foi consumido
+     * @return true caso a mensagem já tenha começado a ser recebida
+     */
+    public boolean hasStarted() {
+        return this.state != START_LINE || this.lineLength != 0;
+    }
+
+    /**
+     * Verifica se os cabeçalhos da mensagem atual já foram recebidos e falta receber o corpo
+     * @return true caso o analisador esteja a receber o corpo
+     */
+    public boolean isReadingBody() {
+        return this.state >= BODY && this.state < COMPLETE;
+    }
+
+    /**
+     * Verifica se o corpo da mensagem atual está a ser entregue a um {@link BodySink}
+     * @return true caso o corpo esteja em streaming
+     */
+    public boolean isStreamingBody() {
+        return this.sink != null;
+    }
+
+    /**
+     * Retorna o pedido analisado. Caso o corpo tenha sido entregue em streaming o pedido é o mesmo que foi dado
+     * ao {@link BodyStreamer}, sem corpo
+     * @return HttpRequest caso o pedido esteja completo e bem formatado, null caso contrário
+     */
+    public HttpRequest getRequest() {
+        if (!this.parsesRequests || !isComplete() || this.malformed)
+            return null;
+        if (this.streamedHead != null)
+            return this.streamedHead;
+        return new HttpRequest(this.startLine1, this.startLine2, this.startLine3, bodyBytes(), this.headers);
+    }
+
+    /**
+     * Retorna a resposta analisada
+     * @return HttpResponse caso a resposta esteja completa e bem formatada, null caso contrário
+     */
+    public HttpResponse getResponse() {
+        if (this.parsesRequests || !isComplete() || this.malformed)
+            return null;
+        return new HttpResponse(this.startLine1, Integer.parseInt(this.startLine2), this.startLine3, bodyBytes(), this.headers);
+    }
+
+    /**
+     * Adiciona um byte à linha atual, abandonando a mensagem caso a linha seja demasiado longa, com 431 caso
+     * seja um cabeçalho
+     * @param b O byte a ser adicionado
+     */
+    private void appendToLine(byte b) {
+        if (this.lineLength == this.line.length) {
+            if (this.lineLength == MAX_LINE_LENGTH) {
+                reject(this.state == HEADERS || this.state == TRAILERS ? 431 : 400);
+                return;
+            }
+            byte[] bigger = new byte[Math.min(this.line.length * 2, MAX_LINE_LENGTH)];
+            System.arraycopy(this.line, 0, bigger, 0, this.lineLength);
+            this.line = bigger;
+        }
+        this.line[this.lineLength++] = b;
+    }
+
+    /**
+     * Processa a linha terminada pelo '\n' acabado de ler. Uma mensagem com a linha inicial ou os cabeçalhos mal
+     * formatados é abandonada logo nessa linha, já que o seu corpo não pode ser delimitado com segurança e seria
+     * lido como o pedido seguinte
+     */
+    private void endOfLine() {
+        boolean endsWithCR = this.lineLength > 0 && this.line[this.lineLength - 1] == CR;
+        int length = endsWithCR ? this.lineLength - 1 : this.lineLength;
+        this.lineLength = 0;
+        if ((this.state == START_LINE || this.state == HEADERS || this.state == TRAILERS) && exceedsHeaderLimits(length)) {
+            reject(431);
+        } else if (this.state == CHUNK_SIZE || this.state == CHUNK_END || this.state == TRAILERS) {
+            endOfChunkLine(length, endsWithCR);
+        } else if (this.state == START_LINE) {
+            if (length == 0 && endsWithCR)
+                return;
+            if (endsWithCR && parseStartLine(length))
+                this.state = HEADERS;
+            else
+                reject(400);
+        } else if (length == 0 && endsWithCR) {
+            endOfHeaders();
+        } else if (!endsWithCR || !parseHeader(length)) {
+            reject(400);
+        }
+    }
+
+    /**
+     * Conta uma linha da linha inicial ou dos cabeçalhos nos limites da mensagem
+     * @param length O tamanho da linha, sem o fim de linha
+     * @return true caso a mensagem tenha excedido o número máximo de cabeçalhos ou o seu tamanho máximo
+     */
+    private boolean exceedsHeaderLimits(int length) {
+        this.headerBytes += length + 2;
+        return this.headerBytes > MAX_HEADER_BYTES || (length > 0 && this.headers.size() >= MAX_HEADERS);
+    }
+
+    /**
+     * Analisa a linha inicial da mensagem. Nos pedidos deve ter três campos separados por um único espaço,
+     * nas respostas a mensagem do código de estado pode conter espaços ou estar vazia
+     * @param length O tamanho da linha
+     * @return true caso a linha esteja bem formatada
+     */
+    private boolean parseStartLine(int length) {
+        int firstSpace = indexOf(SP, 0, length);
+        if (firstSpace <= 0)
+            return false;
+        int secondSpace = indexOf(SP, firstSpace + 1, length);
+        if (!this.parsesRequests) {
+            int codeEnd = secondSpace == -1 ? length : secondSpace;
+            this.startLine1 = ascii(0, firstSpace);
+            this.startLine2 = ascii(firstSpace + 1, codeEnd);
+            this.startLine3 = secondSpace == -1 ? "" : ascii(secondSpace + 1, length);
+            return isStatusCode(this.startLine2);
+        }
+        if (secondSpace == -1 || secondSpace == firstSpace + 1 || secondSpace == length - 1
+                || indexOf(SP, secondSpace + 1, length) != -1)
+            return false;
+        this.startLine1 = ascii(0, firstSpace);
+        this.startLine2 = ascii(firstSpace + 1, secondSpace);
+        this.startLine3 = ascii(secondSpace + 1, length);
+        return this.startLine3.equals("HTTP/1.1") || this.startLine3.equals("HTTP/1.0");
+    }
+
+    /**
+     * Analisa uma linha de cabeçalho no formato {@code nome: valor}
+     * @param length O tamanho da linha
+     * @return true caso a linha esteja bem formatada
+     */
+    private boolean parseHeader(int length) {
+        int colon = indexOf((byte) ':', 0, length);
+        if (colon <= 0)
+            return false;
+        int valueStart = colon + 1;
+        while (valueStart < length && (this.line[valueStart] == SP || this.line[valueStart] == '\t'))
+            valueStart++;
+        int valueEnd = length;
+        while (valueEnd > valueStart && (this.line[valueEnd - 1] == SP || this.line[valueEnd - 1] == '\t'))
+            valueEnd--;
+        this.headers.add(HttpHeaders.intern(this.line, 0, colon), ascii(valueStart, valueEnd));
+        return true;
+    }
+
+    /**
+     * Decide como ler o corpo da mensagem depois da linha vazia que termina os cabeçalhos. Como um pedido
+     * enquadrado de forma ambígua poderia ser lido de outra forma por um intermediário, os pedidos com uma
+     * codificação de transferência desconhecida são rejeitados com 501 e os que têm {@code Content-Length}
+     * com valores diferentes ou inválidos, ou em conjunto com {@code Transfer-Encoding}, com 400
+     */
+    private void endOfHeaders() {
+        if (!this.parsesRequests && !hasBody()) {
+            this.state = COMPLETE;
+            return;
+        }
+        String transferEncoding = joinedValues(HttpHeaders.TRANSFER_ENCODING);
+        String contentLength = joinedValues(HttpHeaders.CONTENT_LENGTH);
+        if (transferEncoding != null) {
+            int chunked = chunkedCoding(transferEncoding);
+            if (!this.parsesRequests) {
+                // numa resposta sem chunked no fim o corpo vai até ao fim da ligação
+                if (chunked == 1) {
+                    if (!openSink())
+                        this.body = new byte[MAX_LINE_LENGTH];
+                    this.state = CHUNK_SIZE;
+                } else {
+                    this.body = new byte[MAX_LINE_LENGTH];
+                    this.state = BODY_UNTIL_CLOSE;
+                }
+            } else if (chunked == -1) {
+                reject(501);
+            } else if (chunked == 0 || contentLength != null) {
+                reject(400);
+            } else {
+                if (!openSink())
+                    this.body = new byte[MAX_LINE_LENGTH];
+                this.state = CHUNK_SIZE;
+            }
+        } else if (contentLength != null) {
+            long length = parseContentLength(contentLength);
+            if (length < 0) {
+                reject(400);
+            } else if (length == 0) {
+                this.state = COMPLETE;
+            } else if (openSink()) {
+                this.bodyRemaining = length;
+                this.state = BODY;
+            } else if (length > this.maxBodySize) {
+                reject(413);
+            } else {
+                // o array cresce à medida que o corpo chega, em vez de confiar no tamanho anunciado
+                this.body = new byte[(int) Math.min(length, MAX_LINE_LENGTH)];
+                this.bodyRemaining = length;
+                this.state = BODY;
+            }
+        } else if (this.parsesRequests) {
+            this.state = COMPLETE;
+        } else {
+            this.body = new byte[MAX_LINE_LENGTH];
+            this.state = BODY_UNTIL_CLOSE;
+        }
+    }
+
+    /**
+     * Junta os valores de todos os cabeçalhos com o nome dado, separados por vírgulas
+     * @param name O nome do cabeçalho
+     * @return Os valores dos cabeçalhos, null caso não exista nenhum
+     */
+    private String joinedValues(String name) {
+        String joined = null;
+        for (int i = 0; i < this.headers.size(); i++) {
+            if (this.headers.getName(i).equalsIgnoreCase(name))
+                joined = joined == null ? this.headers.getValue(i) : joined + "," + this.headers.getValue(i);
+        }
+        return joined;
+    }
+
+    /**
+     * Verifica as codificações de transferência de uma mensagem, separadas por vírgulas
+     * @param codings O valor de {@code Transfer-Encoding}
+     * @return 1 caso a única codificação seja chunked, ou nas respostas caso chunked seja a última;
+     * -1 caso um pedido use outra codificação; 0 caso a lista seja inválida
+     */
+    private int chunkedCoding(String codings) {
+        String[] tokens = codings.split(",");
+        int count = 0;
+        boolean chunkedLast = false;
+        boolean unknown = false;
+        for (String token : tokens) {
+            String coding = token.trim();
+            if (coding.isEmpty())
+                continue;
+            count++;
+            chunkedLast = coding.equalsIgnoreCase("chunked");
+            unknown |= !chunkedLast;
+        }
+        if (!this.parsesRequests)
+            return chunkedLast ? 1 : 0;
+        return unknown ? -1 : count == 1 ? 1 : 0;
+    }
+
+    /**
+     * Lê o valor de {@code Content-Length}, que pode ter sido repetido desde que com o mesmo valor
+     * @param values Os valores dos cabeçalhos, separados por vírgulas
+     * @return O tamanho do corpo, -1 caso algum valor não seja um número ou os valores sejam diferentes
+     */
+    private static long parseContentLength(String values) {
+        long length = -1;
+        for (String token : values.split(",", -1)) {
+            String value = token.trim();
+            // sem sinal e com no máximo 18 digitos, para que o valor caiba num long
+            if (value.isEmpty() || value.length() > 18)
+                return -1;
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9')
+                    return -1;
+            }
+            long parsed = Long.parseLong(value);
+            if (length != -1 && parsed != length)
+                return -1;
+            length = parsed;
+        }
+        return length;
+    }
+
+    /**
+     * Pergunta ao {@link BodyStreamer} se o corpo do pedido atual deve ser entregue em streaming
+     * @return true caso o corpo vá ser entregue a um {@link BodySink}
+     */
+    private boolean openSink() {
+        if (!this.parsesRequests || this.streamer == null)
+            return false;
+        HttpRequest head = new HttpRequest(this.startLine1, this.startLine2, this.startLine3, new byte[0], this.headers);
+        this.sink = this.streamer.open(head);
+        if (this.sink != null)
+            this.streamedHead = head;
+        return this.sink != null;
+    }
+
+    /**
+     * Processa uma linha do corpo em chunks: o tamanho em hexadecimal de cada chunk, a linha vazia depois dos
+     * dados de cada chunk ou os cabeçalhos finais. No fim o corpo fica descodificado e os cabeçalhos passam a
+     * indicar o seu tamanho com Content-Length. Um corpo mal formatado, ou guardado em memória cujos chunks
+     * excedem no total o tamanho máximo, abandona a mensagem, já que não é possivel saber onde começa a seguinte
+     * @param length O tamanho da linha
+     * @param endsWithCR Se a linha terminava em "\r\n"
+     */
+    private void endOfChunkLine(int length, boolean endsWithCR) {
+        if (!endsWithCR) {
+            reject(400);
+        } else if (this.state == CHUNK_END) {
+            if (length != 0)
+                reject(400);
+            else
+                this.state = CHUNK_SIZE;
+        } else if (this.state == TRAILERS) {
+            if (length == 0) {
+                this.headers.remove(HttpHeaders.TRANSFER_ENCODING);
+                this.headers.set(HttpHeaders.CONTENT_LENGTH, String.valueOf(this.sink != null ? this.streamed : this.bodyLength));
+                this.state = COMPLETE;
+            } else if (!parseHeader(length)) {
+                reject(400);
+            }
+        } else {
+            int size = parseChunkSize(length);
+            if (size < 0) {
+                reject(400);
+            } else if (size == 0) {
+                this.state = TRAILERS;
+            } else if (this.sink == null && size > this.maxBodySize - this.bodyLength) {
+                // comparado sem somar, para que o total não possa exceder o maior int
+                reject(413);
+            } else {
+                if (this.sink == null)
+                    ensureBodyCapacity(this.bodyLength + size);
+                this.chunkRemaining = size;
+                this.state = CHUNK_DATA;
+            }
+        }
+    }
+
+    /**
+     * Lê o tamanho em hexadecimal de um chunk, ignorando as extensões depois de ';'. Só são aceites espaços
+     * depois do último digito, antes das extensões ou do fim da linha
+     * @param length O tamanho da linha
+     * @return O tamanho do chunk, -1 caso a linha seja inválida ou o tamanho não caiba num int
+     */
+    private int parseChunkSize(int length) {
+        int size = 0;
+        int i = 0;
+        for (; i < length; i++) {
+            int digit = Character.digit(this.line[i], 16);
+            if (digit == -1)
+                break;
+            if (size > (Integer.MAX_VALUE >> 4))
+                return -1;
+            size = (size << 4) | digit;
+        }
+        if (i == 0)
+            return -1;
+        while (i < length && (this.line[i] == SP || this.line[i] == '\t'))
+            i++;
+        return i == length || this.line[i] == ';' ? size : -1;
+    }
+
+    /**
+     * Verifica se a resposta atual pode ter corpo, o que não acontece nas respostas 1xx, 204 e 304
+     * @return true caso a resposta possa ter corpo
+     */
+    private boolean hasBody() {
+        int statusCode = Integer.parseInt(this.startLine2);
+        return statusCode >= 200 && statusCode != 204 && statusCode != 304;
+    }
+
+    /**
+     * Abandona a mensagem atual, que fica mal formatada e completa
+     * @param status O código de estado com que a mensagem deve ser respondida
+     */
+    private void reject(int status) {
+        this.malformed = true;
+        this.errorStatus = status;
+        this.state = COMPLETE;
+    }
+
+    /**
+     * Garante que o array do corpo tem espaço para o número de bytes dado
+     * @param capacity O número de bytes necessário, no máximo o tamanho máximo do corpo
+     */
+    private void ensureBodyCapacity(int capacity) {
+        if (capacity > this.body.length) {
+            int doubled = (int) Math.min(this.body.length * 2L, this.maxBodySize);
+            byte[] bigger = new byte[Math.max(capacity, doubled)];
+            System.arraycopy(this.body, 0, bigger, 0, this.bodyLength);
+            this.body = bigger;
+        }
+    }
+
+    /**
+     * Procura um byte na linha atual
+     * @param b O byte a procurar
+     * @param from A posição onde começar a procura
+     * @param to A posição onde terminar a procura (exclusiva)
+     * @return A posição do byte ou -1 caso não exista
+     */
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (this.line[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Cria uma string a partir de uma parte da linha atual
+     * @param from A posição inicial
+     * @param to A posição final (exclusiva)
+     * @return A string com os caracteres ASCII da linha
+     */
+    private String ascii(int from, int to) {
+        return new String(this.line, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Retorna os bytes do corpo recebido
+     * @return O corpo da mensagem
+     */
+    private byte[] bodyBytes() {
+        return this.body == null ? new byte[0]
+            : this.bodyLength == this.body.length ? this.body : Arrays.copyOf(this.body, this.bodyLength);
+    }
+
+    /**
+     * Verifica se o texto dado é um código de estado de três digitos
+     * @param text O texto a verificar
+     * @return true caso seja um código de estado válido
+     */
+    private static boolean isStatusCode(String text) {
+        if (text.length() != 3)
+            return false;
+        for (int i = 0; i < 3; i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Destino dos bytes de um corpo em streaming, já sem a codificação em chunks
+     */
+    public interface BodySink {
+
+        /**
+         * Recebe bytes do corpo
+         * @param data O array com os bytes
+         * @param offset A posição do primeiro byte
+         * @param length O número de bytes
+         * @return O número de bytes aceites. Caso seja menor que length o analisador pára e
+         * {@link HttpParser#feed(byte[], int, int)} retorna, devendo os restantes bytes ser dados de novo mais tarde
+         */
+        int write(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Decide, no fim dos cabeçalhos de cada pedido com corpo, se o corpo é entregue em streaming
+     */
+    public interface BodyStreamer {
+
+        /**
+         * Escolhe o destino do corpo de um pedido
+         * @param head O pedido, ainda sem corpo
+         * @return O destino do corpo, null para o guardar em memória
+         * @requires {@code head != null}
+         */
+        BodySink open(HttpRequest head);
+    }
+
+}
@@ -1,5 +1,4 @@
-import java.util.Date;
-import java.util.HashMap;
+import java.nio.charset.Charset;
 
 /**
  * @author Rodrigo Correia - 58180
@@ -13,7 +12,9 @@ public class HttpRequest {
     private static final String LINE_FEED = "\r\n";
 
     private String method, url, version, body;
-    private HashMap<String, String> headers;
+    private byte[] bodyBytes;
+    private RequestBody bodyStream;
+    private HttpHeaders headers;
     
     /**
      * Cria um novo objeto HttpResquest com os parametros dados
@@ -24,7 +25,7 @@ public class HttpRequest {
      * @param headers Os cabeçalhos do pedido
      * @requires {@code method != null && url != null && version != null && body != null && headers != null}
      */
-    public HttpRequest(String method, String url, String version, String body, HashMap<String, String> headers) {
+    public HttpRequest(String method, String url, String version, String body, HttpHeaders headers) {
         this.method = method;
         this.url = url;
         this.version = version;
@@ -32,6 +33,23 @@ public class HttpRequest {
         this.headers = headers;
     }
 
+    /**
+     * Cria um pedido recebido pelo servidor, guardando o corpo tal como foi recebido
+     * @param method O método HTTP do pedido
+     * @param url O url do pedido
+     * @param version A versão de HTTP a ser usada
+     * @param body Os bytes do corpo do pedido
+     * @param headers Os cabeçalhos do pedido
+     * @requires {@code method != null && url != null && version != null && body != null && headers != null}
+     */
+    HttpRequest(String method, String url, String version, byte[] body, HttpHeaders headers) {
+        this.method = method;
+        this.url = url;
+        this.version = version;
+        this.bodyBytes = body;
+        this.headers = headers;
+    }
+
     /**
      * Cria um objeto HttpRequest com os parametros dados e os cabeçalhos standard usados
      * @param method O método HTTP do pedido
@@ -44,11 +62,11 @@ public class HttpRequest {
      * @ensures {@code \result != null}
      */
     public static HttpRequest createDefaultHeaders(String method, String url, String version, String body, String host) {
-        HashMap<String, String> headers = new HashMap<>();
-        headers.put("Content-Length", body.length() + "");
-        headers.put("Date", new Date().toString());
-        headers.put("Connection", "keep-alive");
-        headers.put("Host", host);
+        HttpHeaders headers = new HttpHeaders()
+            .set(HttpHeaders.CONTENT_LENGTH, body.getBytes(Charset.defaultCharset()).length + "")
+            .set(HttpHeaders.DATE, HttpDate.now())
+            .set(HttpHeaders.CONNECTION, "keep-alive")
+            .set(HttpHeaders.HOST, host);
         HttpRequest request = new HttpRequest(method, url, version, body, headers);
         return request;
     }
@@ -61,46 +79,21 @@ public class HttpRequest {
      * @requires {@code key != null && value != null}
      */
     public HttpRequest setHeader(String key, String value) {
-        this.headers.put(key, value);
+        this.headers.set(key, value);
         return this;
     }
     /**
      * Transforma uma string num objeto HttpRequest
      * @param text A string a ser transformada
-     * @return HttpRequest caso a string seja um pedido bem formatada, null caso contrário
+     * @return HttpRequest caso a string seja exatamente um pedido bem formatado, null caso contrário
      * @requires {@code text != null}
+     * @see HttpParser
      */
     public static HttpRequest parseRequest(String text) {
-        String[] lines = text.split("\n");
-        String[] requestLine = lines[0].split(" ");
-        if (requestLine.length == 3) {
-            String method = requestLine[0];
-            String url = requestLine[1];
-            String version = requestLine[2];
-            if (version.equals("HTTP/1.1\r") || version.equals("HTTP/1.0\r")) {
-                HashMap<String, String> headers = new HashMap<>();
-                int index = 0;
-                for (int i = 1; i < lines.length && !lines[i].equals("\r"); i++) {
-                    String[] headerLine = lines[i].split(": ", 2);
-                    if (!headerLine[1].endsWith("\r"))
-                        return null;
-                    String header = headerLine[0].substring(0, headerLine[0].length());
-                    String value = headerLine[1].substring(0, headerLine[1].length() - 1);
-                    headers.put(header, value);
-                    index = i;
-                }
-                if (lines[index+1].equals("\r")) {
-                    StringBuilder bodyBuilder = new StringBuilder();
-                    for (int i = index + 2; i < lines.length; i++) {
-                        bodyBuilder.append(lines[i]);
-                        if (i != lines.length - 1 || text.endsWith("\n"))
-                            bodyBuilder.append('\n');
-                    }
-                    return new HttpRequest(method, url, version, bodyBuilder.toString(), headers);
-                }
-            }
-        }
-        return null;
+        byte[] bytes = text.getBytes(Charset.defaultCharset());
+        HttpParser parser = HttpParser.forRequests();
+        int consumed = parser.feed(bytes, 0, bytes.length);
+        return consumed == bytes.length ? parser.getRequest() : null;
     }
 
     /**
@@ -135,11 +128,9 @@ public class HttpRequest {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append(method + " " + url + " " + version + LINE_FEED);
-        for (String key : this.headers.keySet()) {
-            sb.append(key + ": " + this.headers.get(key) + LINE_FEED);
-        }
+        sb.append(this.headers);
         sb.append(LINE_FEED);
-        sb.append(body);
+        sb.append(getBody());
         return sb.toString();
     }
 
@@ -160,10 +151,10 @@ public class HttpRequest {
     }
 
     /**
-     * Retorna um hashmap contendo os cabeçalhos e valores do pedido HTTP
-     * @return O hashmap com os cabeçalhos http
+     * Retorna os cabeçalhos do pedido HTTP, cujos nomes não distinguem maiúsculas de minúsculas
+     * @return Os cabeçalhos http
      */
-    public HashMap<String, String> getHeaders() {
+    public HttpHeaders getHeaders() {
         return headers;
     }
 
@@ -176,11 +167,64 @@ public class HttpRequest {
     }
 
     /**
-     * Retorna o corpo do pedido HTTP
+     * Verifica se o cliente quer manter a ligação aberta depois da resposta. Nos pedidos HTTP/1.1 a ligação é
+     * mantida a menos que o cabeçalho Connection tenha a opção close, e nos pedidos HTTP/1.0 só é mantida caso
+     * tenha a opção keep-alive
+     * @return true caso a ligação possa continuar a ser usada depois da resposta
+     */
+    public boolean isKeepAlive() {
+        boolean keepAlive = false;
+        for (int i = 0; i < this.headers.size(); i++) {
+            if (!this.headers.getName(i).equalsIgnoreCase(HttpHeaders.CONNECTION))
+                continue;
+            for (String option : this.headers.getValue(i).split(",")) {
+                if (option.trim().equalsIgnoreCase("close"))
+                    return false;
+                keepAlive |= option.trim().equalsIgnoreCase("keep-alive");
+            }
+        }
+        return keepAlive || !"HTTP/1.0".equals(this.version);
+    }
+
+    /**
+     * Retorna o corpo do pedido HTTP. Nas rotas com corpo em streaming o corpo deve ser lido com {@link #getBodyStream()}
      * @return O corpo do pedido HTTP
      */
     public String getBody() {
+        if (this.body == null)
+            this.body = new String(this.bodyBytes, Charset.defaultCharset());
         return body;
     }
 
+    /**
+     * Retorna os bytes do corpo do pedido HTTP, cujo número é o que deve ser comparado com o Content-Length
+     * @return Os bytes do corpo do pedido HTTP
+     */
+    public byte[] getBodyBytes() {
+        if (this.bodyBytes == null)
+            this.bodyBytes = this.body.getBytes(Charset.defaultCharset());
+        return bodyBytes;
+    }
+
+    /**
+     * Retorna o corpo do pedido HTTP como um stream. Nas rotas com corpo em streaming os bytes são lidos do socket
+     * à medida que são pedidos, nas restantes o stream lê o corpo já recebido
+     * @return O stream do corpo
+     * @ensures {@code \result != null}
+     */
+    public RequestBody getBodyStream() {
+        if (this.bodyStream == null)
+            this.bodyStream = RequestBody.of(this, getBodyBytes());
+        return bodyStream;
+    }
+
+    /**
+     * Define o stream do corpo de um pedido com corpo em streaming
+     * @param bodyStream O stream do corpo
+     * @requires {@code bodyStream != null}
+     */
+    void setBodyStream(RequestBody bodyStream) {
+        this.bodyStream = bodyStream;
+    }
+
 }
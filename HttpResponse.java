@@ -1,5 +1,13 @@
-import java.util.Date;
-import java.util.HashMap;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
 /**
  * @author Rodrigo Correia - 58180
@@ -10,11 +18,18 @@ import java.util.HashMap;
  */
 public class HttpResponse {
 
-    private static final String LINE_FEED = "\r\n";
+    private static final byte[] LINE_FEED = {'\r', '\n'};
+    private static final int MAX_CACHED_STATUS = 600;
+    private static final StatusLine[] STATUS_LINES = new StatusLine[MAX_CACHED_STATUS];
+    private static final ThreadLocal<ByteBuffer> HEAD_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(512));
 
-    private String message, version, body;
+    private String message, version;
+    private byte[] body;
+    private Path bodyFile;
+    private long bodyFileLength;
+    private BodyWriter bodyWriter;
     private int statusCode;
-    private HashMap<String, String> headers;
+    private HttpHeaders headers;
     
     /**
      * Cria um novo objeto HttpResponse com os parametros dados
@@ -25,13 +40,65 @@ public class HttpResponse {
      * @param headers Os cabeçalhos da resposta
      * @requires {@code version != null && message != null && body != null && headers != null}
      */
-    public HttpResponse(String version, int statusCode, String message, String body, HashMap<String, String> headers) {
+    public HttpResponse(String version, int statusCode, String message, String body, HttpHeaders headers) {
+        this(version, statusCode, message, body.getBytes(Charset.defaultCharset()), headers);
+    }
+
+    /**
+     * Cria um novo objeto HttpResponse com um corpo já codificado em bytes, que é enviado sem ser copiado
+     * @param version A versão de HTTP a ser usada
+     * @param statusCode O código de estado da resposta
+     * @param message A mensagem associada ao código da resposta
+     * @param body Os bytes do corpo da resposta
+     * @param headers Os cabeçalhos da resposta
+     * @requires {@code version != null && message != null && body != null && headers != null}
+     */
+    public HttpResponse(String version, int statusCode, String message, byte[] body, HttpHeaders headers) {
         this.message = message;
         this.statusCode = statusCode;
         this.version = version;
         this.body = body;
         this.headers = headers;
-        this.headers.put("Content-Length", body.length() + "");
+        this.headers.set(HttpHeaders.CONTENT_LENGTH, body.length + "");
+    }
+
+    /**
+     * Cria um objeto HttpResponse com os cabeçalhos standard usados cujo corpo é o conteúdo de um ficheiro,
+     * que só é lido quando a resposta é enviada e é transferido diretamente para o socket
+     * @param version Versão do HTTP usada na resposta
+     * @param statusCode Código de estado da resposta
+     * @param message Mensagem do resposta
+     * @param file O ficheiro a ser enviado no corpo
+     * @return HttpResponse com os parametros dados
+     * @requires {@code version != null && message != null && file != null}
+     * @ensures {@code \result != null}
+     */
+    public static HttpResponse createDefaultHeaders(String version, int statusCode, String message, File file) {
+        HttpResponse response = createDefaultHeaders(version, statusCode, message, new byte[0]);
+        response.bodyFile = file.toPath();
+        response.bodyFileLength = file.length();
+        response.headers.set(HttpHeaders.CONTENT_LENGTH, response.bodyFileLength + "");
+        return response;
+    }
+
+    /**
+     * Cria um objeto HttpResponse com os cabeçalhos standard usados cujo corpo é criado apenas quando a resposta é
+     * enviada, escrito pelo BodyWriter dado. O corpo é enviado com {@code Transfer-Encoding: chunked}, pelo que o
+     * seu tamanho não precisa de ser conhecido e o cliente começa a recebê-lo enquanto ainda está a ser criado
+     * @param version Versão do HTTP usada na resposta
+     * @param statusCode Código de estado da resposta
+     * @param message Mensagem do resposta
+     * @param writer O código que escreve o corpo
+     * @return HttpResponse com os parametros dados
+     * @requires {@code version != null && message != null && writer != null}
+     * @ensures {@code \result != null}
+     */
+    public static HttpResponse createStreaming(String version, int statusCode, String message, BodyWriter writer) {
+        HttpResponse response = createDefaultHeaders(version, statusCode, message, new byte[0]);
+        response.bodyWriter = writer;
+        response.headers.remove(HttpHeaders.CONTENT_LENGTH);
+        response.headers.set(HttpHeaders.TRANSFER_ENCODING, "chunked");
+        return response;
     }
 
     /**
@@ -45,11 +112,24 @@ public class HttpResponse {
      * @ensures {@code \result != null}
      */
     public static HttpResponse createDefaultHeaders(String version, int statusCode, String message, String body) {
-        HashMap<String, String> headers = new HashMap<>();
-        headers.put("Content-Length", body.length() + "");
-        headers.put("Date", new Date().toString());
-        headers.put("Connection", "keep-alive");
-        headers.put("Server", "MyHttpServer");
+        return createDefaultHeaders(version, statusCode, message, body.getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * Cria um objeto HttpResponse com os cabeçalhos standard usados e um corpo já codificado em bytes
+     * @param version Versão do HTTP usada na resposta
+     * @param statusCode Código de estado da resposta
+     * @param message Mensagem do resposta
+     * @param body Bytes do corpo da resposta
+     * @return HttpResponse com os parametros dados
+     * @requires {@code version != null && message != null & body != null}
+     * @ensures {@code \result != null}
+     */
+    public static HttpResponse createDefaultHeaders(String version, int statusCode, String message, byte[] body) {
+        HttpHeaders headers = new HttpHeaders()
+            .set(HttpHeaders.DATE, HttpDate.now())
+            .set(HttpHeaders.CONNECTION, "keep-alive")
+            .set(HttpHeaders.SERVER, "MyHttpServer");
         HttpResponse response = new HttpResponse(version, statusCode, message, body, headers);
         return response;
     }
@@ -62,57 +142,293 @@ public class HttpResponse {
      * @requires {@code key != null && value != null}
      */
     public HttpResponse setHeader(String key, String value) {
-        this.headers.put(key, value);
+        this.headers.set(key, value);
+        return this;
+    }
+
+    /**
+     * Remove um cabeçalho da resposta
+     * @param key O nome do campo de cabeçalho
+     * @return O próprio HttpResponse com o cabeçalho removido
+     * @requires {@code key != null}
+     */
+    public HttpResponse removeHeader(String key) {
+        this.headers.remove(key);
+        return this;
+    }
+
+    /**
+     * Substitui o corpo da resposta, atualizando o cabeçalho Content-Length
+     * @param body Os bytes do novo corpo
+     * @return O próprio HttpResponse com o corpo alterado
+     * @requires {@code body != null}
+     */
+    public HttpResponse setBody(byte[] body) {
+        this.body = body;
+        this.bodyFile = null;
+        this.bodyWriter = null;
+        this.headers.remove(HttpHeaders.TRANSFER_ENCODING);
+        this.headers.set(HttpHeaders.CONTENT_LENGTH, body.length + "");
         return this;
     }
 
+    /**
+     * Cria já o corpo de uma resposta com corpo em streaming e guarda-o em memória, para ser enviado com
+     * Content-Length a clientes HTTP/1.0, que não aceitam chunks
+     * @return O próprio HttpResponse com o corpo em memória
+     * @throws IOException Caso não seja possivel criar o corpo
+     */
+    public HttpResponse bufferBody() throws IOException {
+        if (this.bodyWriter == null)
+            return this;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.bodyWriter.writeTo(out);
+        return setBody(out.toByteArray());
+    }
+
+    /**
+     * Retorna os bytes do corpo da resposta HTTP, vazio caso o corpo seja um ficheiro ou seja criado em streaming
+     * @return Os bytes do corpo
+     */
+    public byte[] getBodyBytes() {
+        return body;
+    }
+
+    /**
+     * Retorna o código de estado da resposta HTTP
+     * @return O código de estado
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Retorna os cabeçalhos da resposta HTTP, cujos nomes não distinguem maiúsculas de minúsculas
+     * @return Os cabeçalhos http
+     */
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
     /**
      * Transforma uma string num objeto de HttpResponse
      * @param text A string a ser transformada
-     * @return HttpResponse com os atributos lidos da string
+     * @return HttpResponse com os atributos lidos da string, null caso a resposta esteja mal formatada ou incompleta
      * @requires {@code text != null}
-     * @ensures {@code \result != null}
+     * @see HttpParser
      */
     public static HttpResponse parseResponse(String text) {
-        String[] lines = text.split("\n");
-        String[] requestLine = lines[0].split(" ", 3);
-        String version = requestLine[0];
-        int statusCode = Integer.parseInt(requestLine[1]);
-        String message = requestLine[2];
-        HashMap<String, String> headers = new HashMap<>();
-        int index = 0;
-        for (int i = 1; i < lines.length && !lines[i].equals("\r"); i++) {
-            String[] headerLine = lines[i].split(": ", 2);
-            if (!headerLine[1].endsWith("\r"))
-                return null;
-            String header = headerLine[0].substring(0, headerLine[0].length());
-            String value = headerLine[1].substring(0, headerLine[1].length() - 1);
-            headers.put(header, value);
-            index = i;
+        byte[] bytes = text.getBytes(Charset.defaultCharset());
+        HttpParser parser = HttpParser.forResponses();
+        parser.feed(bytes, 0, bytes.length);
+        parser.finish();
+        return parser.getResponse();
+    }
+
+    /**
+     * Escreve a resposta HTTP no OutputStream dado, com os cabeçalhos em ASCII e o corpo tal como está guardado.
+     * O corpo de um ficheiro é copiado em blocos, sem ser lido todo para memória, e um corpo em streaming é
+     * escrito em chunks à medida que é criado
+     * @param out O OutputStream onde escrever
+     * @throws IOException Caso não seja possivel escrever ou criar o corpo
+     * @requires {@code out != null}
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writeHeadTo(out);
+        out.write(this.body);
+        if (this.bodyWriter != null)
+            writeStreamingBody(out);
+        if (this.bodyFile != null) {
+            try (FileRegion file = openFileBody()) {
+                WritableByteChannel channel = Channels.newChannel(out);
+                while (!file.isDone())
+                    file.transferTo(channel);
+            }
+        }
+    }
+
+    /**
+     * Escreve apenas a linha de estado e os cabeçalhos da resposta no OutputStream dado,
+     * usando um buffer reutilizado por cada thread
+     * @param out O OutputStream onde escrever
+     * @throws IOException Caso não seja possivel escrever
+     * @requires {@code out != null}
+     */
+    public void writeHeadTo(OutputStream out) throws IOException {
+        int length = headLength();
+        ByteBuffer buffer = HEAD_BUFFER.get();
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            HEAD_BUFFER.set(buffer);
         }
-        StringBuilder bodyBuilder = new StringBuilder();
-        for (int i = index + 2; i < lines.length; i++) {
-            bodyBuilder.append(lines[i]);
-            if (i != lines.length - 1 || text.endsWith("\n"))
-                bodyBuilder.append('\n');
+        buffer.clear();
+        writeHeadTo(buffer);
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Escreve a linha de estado e os cabeçalhos da resposta diretamente em bytes ASCII no buffer dado.
+     * As linhas de estado e os nomes dos cabeçalhos conhecidos são escritos a partir de bytes já codificados
+     * @param buffer O buffer onde escrever, com pelo menos {@link #headLength()} bytes livres
+     * @throws java.nio.BufferOverflowException Caso o buffer não tenha espaço suficiente
+     * @requires {@code buffer != null}
+     */
+    public void writeHeadTo(ByteBuffer buffer) {
+        buffer.put(statusLine());
+        this.headers.writeTo(buffer);
+        buffer.put(LINE_FEED);
+    }
+
+    /**
+     * Calcula o número de bytes da linha de estado e dos cabeçalhos
+     * @return O número de bytes escritos por {@link #writeHeadTo(ByteBuffer)}
+     */
+    public int headLength() {
+        return statusLine().length + this.headers.encodedLength() + LINE_FEED.length;
+    }
+
+    /**
+     * Cria os buffers com os bytes da resposta HTTP, para serem escritos num canal. Os cabeçalhos e um corpo
+     * pequeno são escritos num único buffer do pool, enviado com uma só escrita; um corpo que não caiba no maior
+     * buffer do pool é enviado a partir do seu próprio array, sem ser copiado. O corpo de um ficheiro não está
+     * incluido, devendo ser enviado com {@link #openFileBody()}
+     * @param pool O pool de onde são obtidos os buffers, que lhe devem ser devolvidos depois de escritos
+     * @return Array com o buffer dos cabeçalhos e, caso não esteja no mesmo buffer, o buffer do corpo
+     * @requires {@code pool != null}
+     * @ensures {@code \result != null && \result.length >= 1}
+     */
+    public ByteBuffer[] toBuffers(BufferPool pool) {
+        int headLength = headLength();
+        if (headLength + this.body.length <= BufferPool.MAX_POOLED_SIZE) {
+            ByteBuffer buffer = pool.acquire(headLength + this.body.length);
+            writeHeadTo(buffer);
+            buffer.put(this.body);
+            buffer.flip();
+            return new ByteBuffer[] { buffer };
         }
-        return new HttpResponse(version, statusCode, message, bodyBuilder.toString(), headers);
+        ByteBuffer head = pool.acquire(headLength);
+        writeHeadTo(head);
+        head.flip();
+        return new ByteBuffer[] { head, ByteBuffer.wrap(this.body) };
+    }
+
+    /**
+     * Verifica se o corpo da resposta é o conteúdo de um ficheiro
+     * @return true caso o corpo seja um ficheiro
+     */
+    public boolean hasFileBody() {
+        return this.bodyFile != null;
+    }
+
+    /**
+     * Verifica se a ligação deve ser fechada depois de enviar esta resposta
+     * @return true caso a resposta tenha o cabeçalho {@code Connection: close}
+     */
+    public boolean closesConnection() {
+        return "close".equalsIgnoreCase(this.headers.get(HttpHeaders.CONNECTION));
     }
 
     /**
-     * Converte o objeto HttpResponse para uma representação textual de uma resposta HTTP
+     * Verifica se o corpo da resposta é criado em streaming por um {@link BodyWriter}
+     * @return true caso o corpo seja enviado em chunks à medida que é criado
+     */
+    public boolean hasStreamingBody() {
+        return this.bodyWriter != null;
+    }
+
+    /**
+     * Cria o corpo em streaming e escreve-o codificado em chunks no OutputStream dado, terminando-o com o
+     * chunk vazio. O OutputStream não é fechado
+     * @param out O OutputStream onde escrever
+     * @throws IOException Caso não seja possivel escrever ou criar o corpo
+     * @requires {@code out != null && hasStreamingBody()}
+     */
+    public void writeStreamingBody(OutputStream out) throws IOException {
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+        this.bodyWriter.writeTo(chunked);
+        chunked.finish();
+    }
+
+    /**
+     * Abre o ficheiro do corpo da resposta para ser transferido para o socket
+     * @return FileRegion com o conteúdo do ficheiro, null caso o corpo não seja um ficheiro
+     * @throws IOException Caso não seja possivel abrir o ficheiro
+     */
+    public FileRegion openFileBody() throws IOException {
+        return this.bodyFile == null ? null : new FileRegion(this.bodyFile, this.bodyFileLength);
+    }
+
+    /**
+     * Converte o objeto HttpResponse para uma representação textual de uma resposta HTTP,
+     * sem o conteúdo caso o corpo seja um ficheiro ou seja criado em streaming
      * @ensures {@code \result != null}
      */
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(version + " " + statusCode + " " + message + LINE_FEED);
-        for (String key : this.headers.keySet()) {
-            sb.append(key + ": " + this.headers.get(key) + LINE_FEED);
+        return headText() + new String(this.body, Charset.defaultCharset());
+    }
+
+    /**
+     * Cria o texto da linha de estado e dos cabeçalhos, terminado pela linha vazia
+     * @return O texto da linha de estado e dos cabeçalhos
+     */
+    private String headText() {
+        ByteBuffer head = ByteBuffer.allocate(headLength());
+        writeHeadTo(head);
+        return new String(head.array(), 0, head.position(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Retorna os bytes da linha de estado. As linhas de estado HTTP/1.1 são codificadas uma única vez
+     * por código de estado e reutilizadas pelas respostas seguintes com a mesma mensagem
+     * @return Os bytes da linha de estado, terminada por "\r\n"
+     */
+    private byte[] statusLine() {
+        boolean cacheable = this.statusCode >= 0 && this.statusCode < MAX_CACHED_STATUS && this.version.equals("HTTP/1.1");
+        if (cacheable) {
+            StatusLine cached = STATUS_LINES[this.statusCode];
+            if (cached != null && cached.message.equals(this.message))
+                return cached.bytes;
+        }
+        byte[] bytes = (this.version + " " + this.statusCode + " " + this.message + "\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+        if (cacheable && STATUS_LINES[this.statusCode] == null)
+            STATUS_LINES[this.statusCode] = new StatusLine(this.message, bytes);
+        return bytes;
+    }
+
+    /**
+     * Código que escreve o corpo de uma resposta em streaming
+     */
+    public interface BodyWriter {
+
+        /**
+         * Escreve o corpo. Os bytes são enviados ao cliente em chunks à medida que o buffer do stream enche,
+         * ou quando é chamado {@link OutputStream#flush()}
+         * @param out O stream onde escrever o corpo. Fechar o stream apenas termina o corpo
+         * @throws IOException Caso não seja possivel criar ou escrever o corpo
+         * @requires {@code out != null}
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Linha de estado já codificada de um código de estado
+     */
+    private static class StatusLine {
+
+        private final String message;
+        private final byte[] bytes;
+
+        /**
+         * Guarda a linha de estado codificada
+         * @param message A mensagem do código de estado
+         * @param bytes Os bytes da linha de estado
+         */
+        private StatusLine(String message, byte[] bytes) {
+            this.message = message;
+            this.bytes = bytes;
         }
-        sb.append(LINE_FEED);
-        sb.append(body);
-        return sb.toString();
     }
 
 }
@@ -0,0 +1,128 @@
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Histograma de latências com precisão relativa fixa, no estilo do HdrHistogram: os valores até 128 têm um
+ * contador cada, e cada potência de 2 acima disso é dividida em 64 contadores, pelo que o erro de cada percentil
+ * é inferior a 1/64 do valor e o histograma ocupa sempre o mesmo espaço, independentemente do número de valores.
+ * Não é thread-safe: cada thread deve usar o seu histograma, juntando-os no fim com {@link #add(LatencyHistogram)}
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Regista um valor
+     * @param value O valor, por exemplo uma latência em microssegundos
+     * @requires {@code value >= 0}
+     */
+    public void record(long value) {
+        this.counts[index(value)]++;
+        this.count++;
+        this.sum += value;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * Junta os valores de outro histograma a este
+     * @param other O outro histograma
+     * @requires {@code other != null}
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            this.counts[i] += other.counts[i];
+        this.count += other.count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+    }
+
+    /**
+     * Retorna o valor abaixo do qual está a percentagem dada dos valores registados
+     * @param percentile A percentagem, entre 0 e 100
+     * @return O maior valor equivalente ao percentil, 0 caso não existam valores
+     * @requires {@code percentile >= 0 && percentile <= 100}
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (this.count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if (seen >= target)
+                return Math.min(highestEquivalentValue(i), this.max);
+        }
+        return this.max;
+    }
+
+    /**
+     * Retorna o número de valores registados
+     * @return O número de valores
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Retorna a média dos valores registados
+     * @return A média, 0 caso não existam valores
+     */
+    public double getMean() {
+        return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * Retorna o menor valor registado
+     * @return O menor valor, 0 caso não existam valores
+     */
+    public long getMin() {
+        return this.count == 0 ? 0 : this.min;
+    }
+
+    /**
+     * Retorna o maior valor registado
+     * @return O maior valor
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Retorna o contador de um valor
+     * @param value O valor
+     * @return O índice do contador
+     */
+    private static int index(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Retorna o maior valor contado por um contador
+     * @param index O índice do contador
+     * @return O maior valor do contador
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
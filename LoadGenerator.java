@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Gerador de carga sem interface, feito sobre o MyHttpClient, que substitui o menu do TestMP1 quando se quer
+ * reproduzir carga real. Cada ligação é usada por um thread que envia uma mistura configurável de pedidos GET,
+ * POST e mal formatados, em ciclo fechado (o próximo pedido é enviado quando chega a resposta) ou a um débito
+ * alvo (em ciclo aberto). No fim são escritos o débito, os códigos de resposta e os percentis das latências.
+ * Em ciclo aberto a latência é medida desde o momento em que o pedido devia ter sido enviado, para que um
+ * servidor lento não esconda a espera dos pedidos atrasados (coordinated omission).
+ *
+ * Uso: java LoadGenerator <host name> <port number> [option=value...]
+ * Opções: connections, duration e warmup (em segundos), rate (pedidos por segundo, 0 para ciclo fechado),
+ * mix (pesos no formato get:80,post:15,bad:5) e path (objeto dos pedidos GET)
+ */
+public class LoadGenerator {
+
+    private static final int GET = 0, POST = 1, BAD = 2;
+
+    private final String hostName;
+    private final MyHttpClient client;
+    private final int connections;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final double rate;
+    private final int[] mix = {80, 15, 5};
+    private String path = "index.html";
+
+    /**
+     * Cria o gerador de carga a partir das opções dadas
+     * @param hostName O nome do servidor
+     * @param portNumber A porta do servidor
+     * @param options As opções no formato option=value
+     * @throws IllegalArgumentException Caso alguma opção seja inválida
+     */
+    private LoadGenerator(String hostName, int portNumber, String[] options) {
+        int connections = 8;
+        double duration = 10, warmup = 1, rate = 0;
+        for (String arg : options) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2)
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            switch (option[0]) {
+                case "connections": connections = Integer.parseInt(option[1]); break;
+                case "duration": duration = Double.parseDouble(option[1]); break;
+                case "warmup": warmup = Double.parseDouble(option[1]); break;
+                case "rate": rate = Double.parseDouble(option[1]); break;
+                case "path": this.path = option[1]; break;
+                case "mix": parseMix(option[1]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+        if (connections <= 0 || duration <= 0 || warmup < 0 || rate < 0)
+            throw new IllegalArgumentException("Invalid option values");
+        this.hostName = hostName;
+        this.connections = connections;
+        this.durationNanos = (long) (duration * 1e9);
+        this.warmupNanos = (long) (warmup * 1e9);
+        this.rate = rate;
+        this.client = new MyHttpClient(hostName, portNumber,
+            new HttpConnectionPool(connections, HttpConnectionPool.DEFAULT_IDLE_TIMEOUT, HttpConnectionPool.DEFAULT_VALIDATE_AFTER));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: java LoadGenerator <host name> <port number> [connections=8] [duration=10] [warmup=1] [rate=0] [mix=get:80,post:15,bad:5] [path=index.html]");
+            System.exit(1);
+        }
+        try {
+            String[] options = new String[args.length - 2];
+            System.arraycopy(args, 2, options, 0, options.length);
+            new LoadGenerator(args[0], Integer.parseInt(args[1]), options).run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Lê os pesos da mistura de pedidos
+     * @param value Os pesos no formato get:80,post:15,bad:5
+     * @throws IllegalArgumentException Caso os pesos sejam inválidos
+     */
+    private void parseMix(String value) {
+        this.mix[GET] = this.mix[POST] = this.mix[BAD] = 0;
+        for (String entry : value.split(",")) {
+            String[] weight = entry.split(":", 2);
+            if (weight.length != 2)
+                throw new IllegalArgumentException("Invalid mix: " + value);
+            int kind = weight[0].equals("get") ? GET : weight[0].equals("post") ? POST : weight[0].equals("bad") ? BAD : -1;
+            if (kind == -1 || Integer.parseInt(weight[1]) < 0)
+                throw new IllegalArgumentException("Invalid mix: " + value);
+            this.mix[kind] = Integer.parseInt(weight[1]);
+        }
+        if (this.mix[GET] + this.mix[POST] + this.mix[BAD] == 0)
+            throw new IllegalArgumentException("Invalid mix: " + value);
+    }
+
+    /**
+     * Corre a carga e escreve os resultados
+     * @throws InterruptedException Caso o thread seja interrompido
+     */
+    private void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "Running %.1fs (+%.1fs warmup) with %d connections, %s%n",
+            this.durationNanos / 1e9, this.warmupNanos / 1e9, this.connections,
+            this.rate == 0 ? "closed loop" : String.format(Locale.ROOT, "%.0f requests/s", this.rate));
+        long start = System.nanoTime() + 50_000_000;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < this.connections; i++) {
+            Worker worker = new Worker(i, start);
+            workers.add(worker);
+            worker.start();
+        }
+        LatencyHistogram latencies = new LatencyHistogram();
+        TreeMap<Integer, Long> statusCodes = new TreeMap<>();
+        long errors = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            latencies.add(worker.latencies);
+            worker.statusCodes.forEach((code, count) -> statusCodes.merge(code, count, Long::sum));
+            errors += worker.errors;
+        }
+        this.client.close();
+        report(latencies, statusCodes, errors);
+    }
+
+    /**
+     * Escreve o débito, os códigos de resposta e os percentis das latências
+     * @param latencies As latências em microssegundos
+     * @param statusCodes O número de respostas de cada código
+     * @param errors O número de pedidos sem resposta
+     */
+    private void report(LatencyHistogram latencies, TreeMap<Integer, Long> statusCodes, long errors) {
+        double seconds = this.durationNanos / 1e9;
+        System.out.printf(Locale.ROOT, "Requests: %d (%.1f requests/s), errors: %d%n",
+            latencies.getCount(), latencies.getCount() / seconds, errors);
+        statusCodes.forEach((code, count) -> System.out.printf("  %d: %d%n", code, count));
+        System.out.printf(Locale.ROOT, "Latency (ms): min %.3f  mean %.3f  max %.3f%n",
+            latencies.getMin() / 1e3, latencies.getMean() / 1e3, latencies.getMax() / 1e3);
+        for (double percentile : new double[] {50, 90, 99, 99.9, 99.99})
+            System.out.printf(Locale.ROOT, "  p%-6s %10.3f%n", percentile, latencies.getValueAtPercentile(percentile) / 1e3);
+    }
+
+    /**
+     * Thread que envia pedidos por uma ligação e regista as respectivas latências
+     */
+    private class Worker extends Thread {
+
+        private final SplittableRandom random;
+        private final long start;
+        private final String[] requests = new String[5];
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final TreeMap<Integer, Long> statusCodes = new TreeMap<>();
+        private long errors;
+
+        /**
+         * Prepara os pedidos do thread
+         * @param id O id do thread
+         * @param start O momento em que os pedidos começam a ser enviados
+         */
+        private Worker(int id, long start) {
+            this.random = new SplittableRandom(id);
+            this.start = start;
+            setName("LoadWorker-" + id);
+            this.requests[0] = HttpRequest.createDefaultHeaders("GET", "/" + path, "HTTP/1.1", "", hostName).toString();
+            this.requests[1] = HttpRequest.createDefaultHeaders("POST", "/simpleForm.html", "HTTP/1.1",
+                new FormData().add("StudentName", "Load").add("StudentID", String.valueOf(id)).encode(), hostName)
+                .setHeader("Content-Type", FormData.URLENCODED).toString();
+            for (int type = 1; type <= 3; type++)
+                this.requests[1 + type] = HttpRequest.createBadRequest(type, hostName);
+        }
+
+        @Override
+        public void run() {
+            // em ciclo aberto cada thread envia uma parte igual do débito alvo, a intervalos fixos
+            long interval = rate == 0 ? 0 : (long) (connections * 1e9 / rate);
+            long measureFrom = this.start + warmupNanos;
+            long end = measureFrom + durationNanos;
+            long intended = this.start + (interval == 0 ? 0 : this.random.nextLong(interval));
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (interval != 0) {
+                    if (now < intended) {
+                        LockSupport.parkNanos(intended - now);
+                        continue;
+                    }
+                } else {
+                    intended = now;
+                }
+                HttpResponse response = null;
+                boolean failed = false;
+                try {
+                    response = client.execute(nextRequest());
+                } catch (IOException e) {
+                    failed = true;
+                }
+                long latency = System.nanoTime() - intended;
+                // os pedidos atrasados pelo aquecimento também contam, com a latência desde o momento previsto
+                if (now >= measureFrom) {
+                    if (failed)
+                        this.errors++;
+                    else
+                        this.statusCodes.merge(response == null ? 0 : response.getStatusCode(), 1L, Long::sum);
+                    this.latencies.record(latency / 1000);
+                }
+                intended += interval;
+            }
+        }
+
+        /**
+         * Escolhe o próximo pedido de acordo com os pesos da mistura
+         * @return O texto do pedido
+         */
+        private String nextRequest() {
+            int pick = this.random.nextInt(mix[GET] + mix[POST] + mix[BAD]);
+            if (pick < mix[GET])
+                return this.requests[0];
+            if (pick < mix[GET] + mix[POST])
+                return this.requests[1];
+            return this.requests[2 + this.random.nextInt(3)];
+        }
+    }
+
+}
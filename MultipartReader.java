@@ -0,0 +1,332 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Leitor de corpos multipart/form-data, usados pelos formulários HTML com ficheiros. As partes são lidas
+ * uma de cada vez diretamente do stream do corpo, através de um buffer de tamanho fixo onde é procurado o
+ * delimitador, pelo que um ficheiro enviado pelo formulário nunca está todo em memória
+ */
+public class MultipartReader {
+
+    public static final String MULTIPART = "multipart/form-data";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final int MAX_BOUNDARY = 70;
+
+    private final InputStream in;
+    // "\r\n--" seguido do boundary
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int position, limit;
+    private boolean eof;
+    private boolean finished;
+    private Part current;
+
+    /**
+     * Cria o leitor para um corpo com o boundary dado
+     * @param in O stream do corpo
+     * @param boundary O boundary indicado no Content-Type
+     * @requires {@code in != null && boundary != null}
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[BUFFER_SIZE + this.delimiter.length];
+        // o primeiro delimitador não é precedido de "\r\n", que é acrescentado para ser procurado como os restantes
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Obtém o boundary do cabeçalho Content-Type de um corpo multipart/form-data
+     * @param contentType O valor do cabeçalho Content-Type, pode ser null
+     * @return O boundary, null caso o corpo não seja multipart/form-data ou o boundary seja inválido
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith(MULTIPART))
+            return null;
+        String boundary = parameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY ? null : boundary;
+    }
+
+    /**
+     * Obtém um parâmetro de um cabeçalho no formato {@code valor; nome=valor; nome="valor entre aspas"}
+     * @param header O valor do cabeçalho
+     * @param name O nome do parâmetro, sem distinção entre maiúsculas e minúsculas
+     * @return O valor do parâmetro, sem aspas, null caso não exista
+     * @requires {@code header != null && name != null}
+     */
+    static String parameter(String header, String name) {
+        int i = header.indexOf(';');
+        while (i != -1 && i < header.length()) {
+            i++;
+            while (i < header.length() && header.charAt(i) == ' ')
+                i++;
+            int equals = header.indexOf('=', i);
+            if (equals == -1)
+                return null;
+            String key = header.substring(i, equals).trim();
+            StringBuilder value = new StringBuilder();
+            i = equals + 1;
+            if (i < header.length() && header.charAt(i) == '"') {
+                for (i++; i < header.length() && header.charAt(i) != '"'; i++) {
+                    if (header.charAt(i) == '\\' && i + 1 < header.length())
+                        i++;
+                    value.append(header.charAt(i));
+                }
+                i = header.indexOf(';', i);
+            } else {
+                int end = header.indexOf(';', i);
+                value.append(header, i, end == -1 ? header.length() : end);
+                i = end;
+            }
+            if (key.equalsIgnoreCase(name))
+                return value.toString().trim();
+        }
+        return null;
+    }
+
+    /**
+     * Avança para a próxima parte, descartando o que não tiver sido lido da parte atual
+     * @return A próxima parte, null caso não existam mais partes
+     * @throws IOException Caso não seja possivel ler do stream ou o corpo esteja mal formatado
+     */
+    public Part next() throws IOException {
+        if (this.finished)
+            return null;
+        if (this.current != null) {
+            this.current.discard();
+        } else {
+            // preâmbulo antes do primeiro delimitador
+            byte[] skipped = new byte[BUFFER_SIZE];
+            while (readPart(skipped, 0, skipped.length) != -1) { }
+        }
+        this.position += this.delimiter.length;
+        if (!fill(2))
+            throw new EOFException("Unexpected end of multipart body");
+        if (this.buffer[this.position] == '-' && this.buffer[this.position + 1] == '-') {
+            this.finished = true;
+            this.current = null;
+            return null;
+        }
+        readLine();
+        HttpHeaders headers = new HttpHeaders();
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new IOException("Malformed multipart header");
+            headers.set(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        this.current = new Part(headers);
+        return this.current;
+    }
+
+    /**
+     * Lê bytes da parte atual, até ao próximo delimitador, sem o consumir
+     * @param b Onde guardar os bytes
+     * @param off A posição onde guardar o primeiro byte
+     * @param len O número máximo de bytes a ler
+     * @return O número de bytes lidos, -1 caso a parte tenha terminado
+     * @throws IOException Caso não seja possivel ler do stream ou o corpo termine antes do delimitador
+     */
+    private int readPart(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            int found = indexOfDelimiter();
+            int available;
+            if (found != -1) {
+                available = found - this.position;
+                if (available == 0)
+                    return -1;
+            } else {
+                // os últimos bytes podem ser o inicio de um delimitador, ainda incompleto
+                available = this.limit - this.position - (this.delimiter.length - 1);
+            }
+            if (available > 0) {
+                int count = Math.min(len, available);
+                System.arraycopy(this.buffer, this.position, b, off, count);
+                this.position += count;
+                return count;
+            }
+            if (!fill(this.limit - this.position + 1))
+                throw new EOFException("Unexpected end of multipart body");
+        }
+    }
+
+    /**
+     * Procura o delimitador nos bytes do buffer ainda não lidos
+     * @return A posição do delimitador, -1 caso não esteja completo no buffer
+     */
+    private int indexOfDelimiter() {
+        int last = this.limit - this.delimiter.length;
+        for (int i = this.position; i <= last; i++) {
+            if (this.buffer[i] != '\r')
+                continue;
+            int j = 1;
+            while (j < this.delimiter.length && this.buffer[i + j] == this.delimiter[j])
+                j++;
+            if (j == this.delimiter.length)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Lê uma linha de cabeçalho terminada por "\r\n"
+     * @return A linha, sem o "\r\n"
+     * @throws IOException Caso não seja possivel ler do stream ou a linha seja demasiado longa
+     */
+    private String readLine() throws IOException {
+        int scanned = this.position;
+        while (true) {
+            for (; scanned + 1 < this.limit; scanned++) {
+                if (this.buffer[scanned] == '\r' && this.buffer[scanned + 1] == '\n') {
+                    String line = new String(this.buffer, this.position, scanned - this.position, StandardCharsets.UTF_8);
+                    this.position = scanned + 2;
+                    return line;
+                }
+            }
+            if (this.limit - this.position >= MAX_HEADER_LINE)
+                throw new IOException("Multipart header line too long");
+            int consumed = this.position;
+            if (!fill(this.limit - this.position + 1))
+                throw new EOFException("Unexpected end of multipart body");
+            scanned -= consumed - this.position;
+        }
+    }
+
+    /**
+     * Garante que o buffer tem pelo menos o número de bytes não lidos dado, movendo-os para o inicio do buffer
+     * @param needed O número de bytes necessários
+     * @return true caso o buffer tenha os bytes, false caso o stream termine antes
+     * @throws IOException Caso não seja possivel ler do stream
+     */
+    private boolean fill(int needed) throws IOException {
+        if (needed > this.buffer.length)
+            throw new IOException("Multipart header line too long");
+        if (this.limit - this.position >= needed)
+            return true;
+        if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        }
+        while (this.limit < needed && !this.eof) {
+            int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read == -1)
+                this.eof = true;
+            else
+                this.limit += read;
+        }
+        return this.limit >= needed;
+    }
+
+    /**
+     * Uma parte do corpo, lida como um stream até ao delimitador seguinte
+     */
+    public class Part extends InputStream {
+
+        private final HttpHeaders headers;
+        private final String name;
+        private final String fileName;
+
+        /**
+         * Cria a parte com os cabeçalhos dados
+         * @param headers Os cabeçalhos da parte
+         */
+        private Part(HttpHeaders headers) {
+            this.headers = headers;
+            String disposition = headers.get(HttpHeaders.CONTENT_DISPOSITION);
+            this.name = disposition == null ? null : parameter(disposition, "name");
+            this.fileName = disposition == null ? null : parameter(disposition, "filename");
+        }
+
+        /**
+         * Retorna o nome do campo do formulário
+         * @return O parâmetro name do Content-Disposition, null caso não exista
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Retorna o nome do ficheiro enviado
+         * @return O parâmetro filename do Content-Disposition, null caso a parte não seja um ficheiro
+         */
+        public String getFileName() {
+            return this.fileName;
+        }
+
+        /**
+         * Retorna o tipo do conteúdo da parte
+         * @return O Content-Type da parte, "text/plain" caso não seja indicado
+         */
+        public String getContentType() {
+            String contentType = this.headers.get(HttpHeaders.CONTENT_TYPE);
+            return contentType != null ? contentType : "text/plain";
+        }
+
+        /**
+         * Retorna um cabeçalho da parte
+         * @param name O nome do cabeçalho, sem distinção entre maiúsculas e minúsculas
+         * @return O valor do cabeçalho, null caso não exista
+         * @requires {@code name != null}
+         */
+        public String getHeader(String name) {
+            return this.headers.get(name);
+        }
+
+        /**
+         * Lê o conteúdo da parte como texto UTF-8, usado para os campos que não são ficheiros
+         * @param maxLength O número máximo de bytes aceites
+         * @return O conteúdo da parte
+         * @throws IOException Caso não seja possivel ler o corpo
+         * @throws IllegalArgumentException Caso a parte seja maior que maxLength
+         * @requires {@code maxLength >= 0}
+         */
+        public String readString(int maxLength) throws IOException {
+            byte[] value = readNBytes(maxLength);
+            if (read() != -1)
+                throw new IllegalArgumentException("Form field longer than " + maxLength + " bytes");
+            return new String(value, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this != MultipartReader.this.current)
+                return -1;
+            if (len == 0)
+                return 0;
+            return readPart(b, off, len);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        /**
+         * Lê e descarta o resto da parte
+         * @return O número de bytes descartados
+         * @throws IOException Caso não seja possivel ler o corpo
+         */
+        public long discard() throws IOException {
+            byte[] skipped = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = read(skipped, 0, skipped.length)) != -1)
+                total += read;
+            return total;
+        }
+    }
+
+}
@@ -1,45 +1,163 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Rodrigo Correia - 58180
  * @author Martim Pereira - 58223
  * @author Daniela Camarinha - 58199
  * 
- * Classe cliente usada para comunicar com o servidor
+ * Classe cliente usada para comunicar com o servidor. Os pedidos usam ligações keep-alive obtidas de um
+ * {@link HttpConnectionPool}, podendo o mesmo cliente ser usado por vários threads ao mesmo tempo
  */
 public class MyHttpClient {
 
-    private Socket socket;
-    private PrintWriter writer;
-    private BufferedReader reader;
-    private String hostName;
+    private static final int MAX_CACHED_RESPONSES = 64;
+
+    private final String hostName;
+    private final int portNumber;
+    private final HttpConnectionPool pool;
+    private final boolean ownsPool;
+    private AsyncHttpClient asyncClient;
+    private final Map<String, HttpResponse> responseCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, HttpResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HttpResponse> eldest) {
+                return size() > MAX_CACHED_RESPONSES;
+            }
+        });
 
     /**
-     * Construtor da classe que aceita o nome do servidor e o número da porto destino TCP
+     * Construtor da classe que aceita o nome do servidor e o número da porto destino TCP. O cliente cria o seu
+     * próprio pool de ligações e abre logo a primeira ligação
      * @param hostName nome servidor
      * @param portNumber número porto destino TCP
-     * @throws IOException
+     * @throws IOException Caso não seja possivel ligar ao servidor
      */
     public MyHttpClient(String hostName, int portNumber) throws IOException {
-        this.socket = new Socket(hostName, portNumber);
-        this.writer = new PrintWriter(this.socket.getOutputStream());
-        this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        this(hostName, portNumber, new HttpConnectionPool(), true);
+        this.pool.release(this.pool.acquire(hostName, portNumber), true);
+    }
+
+    /**
+     * Construtor da classe que usa um pool de ligações partilhado com outros clientes
+     * @param hostName nome servidor
+     * @param portNumber número porto destino TCP
+     * @param pool pool de ligações partilhado, que não é fechado por {@link #close()}
+     * @requires {@code hostName != null && pool != null}
+     */
+    public MyHttpClient(String hostName, int portNumber, HttpConnectionPool pool) {
+        this(hostName, portNumber, pool, false);
+    }
+
+    /**
+     * Construtor auxiliar
+     * @param hostName nome servidor
+     * @param portNumber número porto destino TCP
+     * @param pool pool de ligações
+     * @param ownsPool true caso o pool deva ser fechado com o cliente
+     */
+    private MyHttpClient(String hostName, int portNumber, HttpConnectionPool pool, boolean ownsPool) {
         this.hostName = hostName;
+        this.portNumber = portNumber;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Envia um pedido HTTP e retorna a resposta, sem a imprimir. Pode ser chamado por vários threads ao mesmo tempo,
+     * usando cada um a sua ligação do pool
+     * @param request o pedido a enviar
+     * @return a resposta do servidor, null caso esteja mal formatada
+     * @throws IOException Caso não seja possivel comunicar com o servidor
+     * @requires {@code request != null}
+     */
+    public HttpResponse execute(HttpRequest request) throws IOException {
+        return exchange(request.toString())[0];
+    }
+
+    /**
+     * Envia um pedido HTTP dado o texto que o representa, que pode estar mal formatado, e retorna a resposta
+     * @param request o texto do pedido
+     * @return a resposta do servidor, null caso esteja mal formatada
+     * @throws IOException Caso não seja possivel comunicar com o servidor
+     * @requires {@code request != null}
+     * @see #execute(HttpRequest)
+     */
+    public HttpResponse execute(String request) throws IOException {
+        return exchange(request)[0];
+    }
+
+    /**
+     * Envia um pedido HTTP sem bloquear, por ligações não bloqueantes partilhadas por todos os pedidos assíncronos
+     * deste cliente. O futuro é completado pelo thread de eventos do cliente, pelo que as funções encadeadas
+     * nele não devem bloquear
+     * @param request o pedido a enviar
+     * @return futuro completado com a resposta do servidor (null caso esteja mal formatada), ou com uma
+     * IOException caso não seja possivel comunicar com o servidor
+     * @throws IOException Caso não seja possivel iniciar o cliente assíncrono
+     * @requires {@code request != null}
+     */
+    public CompletableFuture<HttpResponse> sendAsync(HttpRequest request) throws IOException {
+        return asyncClient().send(request);
     }
 
     /**
-     * Envia um pedido GET HTTP para obter o objeto indicado pelo parâmetro
+     * Obtém o objeto indicado sem bloquear, usando a cópia local caso o servidor responda 304 Not Modified
+     * @param objectName nome do objeto a obter
+     * @return futuro completado com a resposta do servidor ou com a cópia local
+     * @throws IOException Caso não seja possivel iniciar o cliente assíncrono
+     * @requires {@code objectName != null}
+     * @see #getResource(String)
+     */
+    public CompletableFuture<HttpResponse> getResourceAsync(String objectName) throws IOException {
+        String url = "/" + objectName;
+        return sendAsync(conditionalGet(url)).thenApply(response -> validateCached(url, response));
+    }
+
+    /**
+     * Envia um pedido GET HTTP para obter o objeto indicado pelo parâmetro. Caso o objeto já tenha sido obtido
+     * antes, o pedido leva os cabeçalhos If-None-Match/If-Modified-Since e a cópia local é usada se o servidor
+     * responder 304 Not Modified
      * @param ObjectName nome do objeto a obter
      * @throws IOException
      * @requires {@code ObjectName != null}
      */
     public void getResource(String ObjectName) throws IOException {
-        sendRequest(HttpRequest.createDefaultHeaders("GET", "/" + ObjectName, "HTTP/1.1", "", this.hostName).toString());
-        readResponse();
+        String url = "/" + ObjectName;
+        printValidated(url, execute(conditionalGet(url)));
+    }
+
+    /**
+     * Envia vários pedidos GET HTTP seguidos sem esperar pelas respostas (pipelining), lendo depois
+     * as respostas pela ordem dos pedidos
+     * @param objectNames nomes dos objetos a obter
+     * @throws IOException
+     * @requires {@code objectNames != null}
+     */
+    public void getResources(String... objectNames) throws IOException {
+        List<HttpRequest> requests = new ArrayList<>();
+        for (String objectName : objectNames)
+            requests.add(conditionalGet("/" + objectName));
+        HttpResponse[] responses = exchange(toStrings(requests));
+        for (int i = 0; i < responses.length; i++)
+            printValidated(requests.get(i).getUrl(), responses[i]);
+    }
+
+    /**
+     * Envia uma lista de pedidos HTTP numa única escrita sem esperar pelas respostas, lendo depois
+     * as respostas pela ordem dos pedidos
+     * @param requests os pedidos a enviar
+     * @throws IOException
+     * @requires {@code requests != null}
+     */
+    public void sendPipelined(List<HttpRequest> requests) throws IOException {
+        for (HttpResponse response : exchange(toStrings(requests)))
+            printResponse(response);
     }
 
     /**
@@ -50,18 +168,13 @@ public class MyHttpClient {
      * @requires {@code data != null}
      */ 
     public void postData(String[] data) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        FormData form = new FormData();
         for (int i = 0; i < data.length; i++) {
             String[] dataArray = data[i].split(": ", 2);
-            String key = dataArray[0];
-            String value = dataArray[1];
-            sb.append(key).append('=').append(value);
-            if (i != data.length - 1)
-                sb.append('&');
+            form.add(dataArray[0], dataArray.length > 1 ? dataArray[1] : "");
         }
-        HttpRequest request = HttpRequest.createDefaultHeaders("POST", "/simpleForm.html", "HTTP/1.1", sb.toString(), this.hostName);
-        sendRequest(request.toString());
-        readResponse();
+        printResponse(execute(newRequest("POST", "/simpleForm.html", form.encode())
+            .setHeader("Content-Type", FormData.URLENCODED)));
     }
 
     /**
@@ -71,8 +184,7 @@ public class MyHttpClient {
      * @requires {@code wrongMethodName != null && wrongMethodName != GET && wrongMethodName != POST}
      */
     public void sendUnimplementedMethod(String wrongMethodName) throws IOException {
-        sendRequest(HttpRequest.createDefaultHeaders(wrongMethodName, "/index.html", "HTTP/1.1", "", this.hostName).toString());
-        readResponse();
+        printResponse(execute(newRequest(wrongMethodName, "/index.html", "")));
     }
 
     /**
@@ -85,45 +197,146 @@ public class MyHttpClient {
      * @requires {@code type == 1 || type == 2 || type == 3}
      */
     public void malformedRequest(int type) throws IOException {
-        sendRequest(HttpRequest.createBadRequest(type, this.hostName));
-        readResponse();
+        printResponse(exchange(HttpRequest.createBadRequest(type, this.hostName))[0]);
     }
 
     /**
-     * Fecha o canal de comunicação socket com o servidor
+     * Fecha as ligações ao servidor, caso o pool de ligações pertença a este cliente
      */
     public void close() {
+        if (this.ownsPool)
+            this.pool.close();
+        synchronized (this) {
+            if (this.asyncClient != null)
+                this.asyncClient.close();
+        }
+    }
+
+    /**
+     * Retorna o cliente assíncrono, criando-o no primeiro pedido assíncrono
+     * @return o cliente assíncrono
+     * @throws IOException Caso não seja possivel iniciar o cliente assíncrono
+     */
+    private synchronized AsyncHttpClient asyncClient() throws IOException {
+        if (this.asyncClient == null)
+            this.asyncClient = new AsyncHttpClient(this.hostName, this.portNumber);
+        return this.asyncClient;
+    }
+
+    /**
+     * Envia pedidos HTTP numa única escrita por uma ligação do pool e lê as respostas pela ordem dos pedidos.
+     * A ligação só volta ao pool se todas as respostas tiverem sido lidas e o servidor não a tiver fechado
+     * @param requests strings que representam os pedidos
+     * @return as respostas, pela ordem dos pedidos
+     * @throws IOException Caso não seja possivel comunicar com o servidor
+     * @requires {@code requests != null}
+     */
+    private HttpResponse[] exchange(String... requests) throws IOException {
+        HttpConnection connection = this.pool.acquire(this.hostName, this.portNumber);
+        boolean reusable = false;
         try {
-            this.writer.close();
-            this.reader.close();
-            this.socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            for (String request : requests)
+                connection.write(request);
+            connection.flush();
+            HttpResponse[] responses = new HttpResponse[requests.length];
+            reusable = true;
+            for (int i = 0; i < requests.length; i++) {
+                responses[i] = connection.readResponse();
+                reusable &= connection.isReusable(responses[i]);
+            }
+            return responses;
+        } finally {
+            this.pool.release(connection, reusable);
         }
     }
 
     /**
-     * Envia um pedido HTTP dada uma string que o representa
-     * @param request string que representa o pedido
-     * @throws IOException
-     * @requires {@code request != null}
+     * Converte uma lista de pedidos nas strings que os representam
+     * @param requests os pedidos
+     * @return as strings dos pedidos
      */
-    private void sendRequest(String request) throws IOException {
-        this.writer.write(request);
-        this.writer.flush();
+    private static String[] toStrings(List<HttpRequest> requests) {
+        String[] strings = new String[requests.size()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = requests.get(i).toString();
+        return strings;
     }
 
     /**
-     * Lê a resposta ao pedido HTTP imprimindo-a na consola (stdout)
-     * @throws IOException
+     * Cria um pedido HTTP com os cabeçalhos standard, indicando que o cliente aceita respostas comprimidas
+     * @param method o método do pedido
+     * @param url o url do pedido
+     * @param body o corpo do pedido
+     * @return o pedido a enviar
+     * @requires {@code method != null && url != null && body != null}
+     */
+    private HttpRequest newRequest(String method, String url, String body) {
+        return HttpRequest.createDefaultHeaders(method, url, "HTTP/1.1", body, this.hostName)
+            .setHeader("Accept-Encoding", ContentEncoding.ACCEPTED);
+    }
+
+    /**
+     * Cria um pedido GET HTTP com os validadores da cópia local do objeto, caso exista
+     * @param url o url do objeto
+     * @return o pedido a enviar
+     * @requires {@code url != null}
+     */
+    private HttpRequest conditionalGet(String url) {
+        HttpRequest request = newRequest("GET", url, "");
+        HttpResponse cached = this.responseCache.get(url);
+        if (cached != null) {
+            String etag = cached.getHeaders().get("ETag");
+            String lastModified = cached.getHeaders().get("Last-Modified");
+            if (etag != null)
+                request.setHeader("If-None-Match", etag);
+            if (lastModified != null)
+                request.setHeader("If-Modified-Since", lastModified);
+        }
+        return request;
+    }
+
+    /**
+     * Atualiza a cópia local de um objeto com a resposta recebida
+     * @param url o url do objeto
+     * @param response a resposta do servidor
+     * @return a cópia local caso o servidor tenha respondido 304 Not Modified, a própria resposta caso contrário
+     * @requires {@code url != null}
      */
-    private void readResponse() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        while (sb.length() == 0 || reader.ready()) {
-            char c = (char) reader.read();
-            sb.append(c);
+    private HttpResponse validateCached(String url, HttpResponse response) {
+        if (response == null)
+            return null;
+        if (response.getStatusCode() == 304) {
+            HttpResponse cached = this.responseCache.get(url);
+            if (cached != null)
+                return cached;
+        } else if (response.getStatusCode() == 200 && (response.getHeaders().contains("ETag")
+                || response.getHeaders().contains("Last-Modified"))) {
+            this.responseCache.put(url, response);
+        } else {
+            this.responseCache.remove(url);
         }
-        HttpResponse response = HttpResponse.parseResponse(sb.toString());
+        return response;
+    }
+
+    /**
+     * Atualiza a cópia local de um objeto com a resposta recebida e imprime a resposta na consola (stdout),
+     * indicando quando é usada a cópia local
+     * @param url o url do objeto
+     * @param response a resposta do servidor, ignorada caso seja null
+     * @requires {@code url != null}
+     */
+    private void printValidated(String url, HttpResponse response) {
+        HttpResponse validated = validateCached(url, response);
+        if (validated != response)
+            System.out.println("\n" + response.toString() + "(not modified, using the cached copy of " + url + ")");
+        printResponse(validated);
+    }
+
+    /**
+     * Imprime uma resposta na consola (stdout)
+     * @param response a resposta a imprimir, ignorada caso seja null
+     */
+    private void printResponse(HttpResponse response) {
         if (response != null)
             System.out.println("\n" + response.toString());
     }
@@ -1,14 +1,29 @@
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Date;
-import java.util.List;
-import java.util.Scanner;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * @author Rodrigo Correia - 58180
@@ -19,37 +34,881 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class MyHttpServer {
 
-    private final ServerSocket serverSocket;
-    private final List<ClientHandler> ACTIVE_CLIENTS = new CopyOnWriteArrayList<>();
+    private static final int READ_BUFFER_SIZE = 8192;
+    // tempo máximo de espera pelo pedido de uma ligação rejeitada
+    private static final long SHED_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    private static final int TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int DRAINING = 2;
+    private static final int STOPPED = 3;
+
+    private final int port;
+    private final ServerConfig config;
+    private final AtomicInteger nextClientId = new AtomicInteger(1);
+    private final AdmissionControl admission;
+    private final HashedWheelTimer timer = new HashedWheelTimer(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, "ConnectionTimer");
+    private final Router router;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final BufferPool bufferPool;
+    private final AccessLog accessLog;
+    private final boolean debug;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // clientes do motor blocking, para que as ligações inativas possam ser fechadas quando o servidor para
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private volatile Settings settings;
+    private volatile int state = NEW;
+    private ServerSocket serverSocket;
+    private NioServerEngine nioEngine;
 
     /**
-     * Cria e inicia um servidor socket
+     * Cria um servidor com as opções por omissão, que só aceita ligações depois de {@link #start()}
      * @param port A porta a ser usada pelo servidor
      * @throws IOException Caso não seja possivel criar o servidor
      */
     public MyHttpServer(int port) throws IOException {
-        this.serverSocket = new ServerSocket(port);
-        int clientId = 1;
-        while (!this.serverSocket.isClosed()) {
-            Socket client = this.serverSocket.accept();
-            ClientHandler handler = new ClientHandler(this.serverSocket, client, clientId);
-            Thread thread = new Thread(handler);
-            thread.setName("ClientThread-" + clientId);
-            thread.start();
-            clientId++;
+        this(port, new ServerConfig());
+    }
+
+    /**
+     * Cria um servidor com as opções de arranque dadas, que só aceita ligações depois de {@link #start()}
+     * @param port A porta a ser usada pelo servidor
+     * @param config As opções de arranque do servidor
+     * @throws IOException Caso não seja possivel criar o servidor
+     * @requires {@code config != null}
+     */
+    public MyHttpServer(int port, ServerConfig config) throws IOException {
+        this.port = port;
+        this.config = config;
+        this.admission = new AdmissionControl(config.getMaxClients(), config.getMaxQueued(),
+            config.getShedLatency(), config.getRetryAfter());
+        this.settings = new Settings(config, null);
+        this.accessLog = config.getAccessLog().equals(ServerConfig.ACCESS_LOG_OFF) ? null
+            : new AccessLog(config.getAccessLog(), config.getAccessLogBytes());
+        this.debug = config.isDebug();
+        this.bufferPool = new BufferPool(this.debug);
+        this.router = new Router()
+            .addStreaming("POST", "/simpleForm.html", this::handlePostRequest)
+            .add("GET", "/metrics", this::handleMetricsRequest);
+    }
+
+    /**
+     * Abre o socket do servidor e começa a aceitar ligações em threads próprios, retornando de imediato
+     * @throws IOException Caso não seja possivel abrir o socket na porta do servidor
+     * @throws IllegalStateException Caso o servidor já tenha sido iniciado
+     */
+    public synchronized void start() throws IOException {
+        if (this.state != NEW)
+            throw new IllegalStateException("The server was already started");
+        if (this.config.getEngine().equals(ServerConfig.ENGINE_NIO)) {
+            this.nioEngine = new NioServerEngine(this, this.port, this.config.getIoThreads());
+            this.nioEngine.start();
+        } else {
+            startBlocking();
+        }
+        registerMetrics();
+        this.state = RUNNING;
+    }
+
+    /**
+     * Para o servidor de forma ordenada, esperando no máximo o drainTimeout configurado
+     * @return true caso todas as ligações tenham terminado dentro do tempo
+     * @see #stop(long, TimeUnit)
+     */
+    public boolean stop() {
+        return stop(this.settings.drainTimeout, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Para o servidor de forma ordenada: deixa de aceitar ligações, fecha as ligações inativas e espera que os
+     * pedidos em curso sejam respondidos, sendo cada resposta enviada com {@code Connection: close}. As ligações
+     * que não terminarem dentro do tempo dado são fechadas
+     * @param timeout O tempo máximo de espera pelos pedidos em curso
+     * @param unit A unidade do tempo
+     * @return true caso todas as ligações tenham terminado dentro do tempo, false caso tenha sido preciso fechar
+     * alguma ou o servidor já estivesse a parar
+     * @requires {@code timeout >= 0 && unit != null}
+     */
+    public boolean stop(long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (this.state == NEW) {
+                this.state = STOPPED;
+                release();
+                return true;
+            }
+            if (this.state != RUNNING)
+                return false;
+            this.state = DRAINING;
+        }
+        if (this.debug)
+            System.out.println("\nServer draining " + this.metrics.getActiveConnections() + " connections\n");
+        if (this.nioEngine != null) {
+            this.nioEngine.drain();
+        } else {
+            try {
+                this.serverSocket.close();
+            } catch (IOException e) {
+                // ignored
+            }
+            for (ClientHandler handler : this.handlers)
+                handler.drain();
+        }
+        boolean drained = awaitConnections(unit.toNanos(timeout));
+        if (this.nioEngine != null) {
+            this.nioEngine.stop();
+        } else {
+            for (ClientHandler handler : this.handlers)
+                handler.closeSocket();
+        }
+        release();
+        this.state = STOPPED;
+        return drained;
+    }
+
+    /**
+     * Espera que o servidor pare
+     * @throws InterruptedException Caso o thread seja interrompido enquanto espera
+     */
+    public void await() throws InterruptedException {
+        this.stopped.await();
+    }
+
+    /**
+     * Aplica as opções de uma nova configuração sem parar o servidor nem fechar ligações: a raiz de documentos,
+     * a cache de ficheiros, os limites de zero-copy e de compressão, os tempos limite das ligações, maxRequests
+     * e drainTimeout. Os pedidos em curso terminam com as opções anteriores. As restantes opções só mudam
+     * quando o servidor é reiniciado
+     * @param config A nova configuração
+     * @throws IOException Caso a raiz de documentos não exista, mantendo-se a configuração anterior
+     * @requires {@code config != null}
+     */
+    public synchronized void reload(ServerConfig config) throws IOException {
+        this.settings = new Settings(config, this.settings);
+        if (this.debug)
+            System.out.println("\nConfiguration reloaded, serving " + config.getDocumentRoot() + "\n");
+    }
+
+    /**
+     * Verifica se o servidor está a parar, devendo as ligações ser fechadas depois do pedido em curso
+     * @return true caso o servidor esteja a parar ou já tenha parado
+     */
+    boolean isDraining() {
+        return this.state >= DRAINING;
+    }
+
+    /**
+     * Espera que todas as ligações sejam fechadas
+     * @param timeoutNanos O tempo máximo de espera em nanossegundos
+     * @return true caso todas as ligações tenham sido fechadas dentro do tempo
+     */
+    private synchronized boolean awaitConnections(long timeoutNanos) {
+        long end = System.nanoTime() + timeoutNanos;
+        try {
+            while (this.metrics.getActiveConnections() > 0) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Liberta os recursos partilhados pelas ligações depois de estas terem sido fechadas
+     */
+    private void release() {
+        this.timer.stop();
+        if (this.accessLog != null)
+            this.accessLog.close();
+        unregisterMetrics();
+        this.stopped.countDown();
+    }
+
+    /**
+     * Abre o socket do motor blocking e inicia o thread que aceita as ligações
+     * @throws IOException Caso não seja possivel abrir o socket
+     */
+    private void startBlocking() throws IOException {
+        // o socket é obtido de um canal para que os ficheiros possam ser enviados com sendfile
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(this.port));
+        this.serverSocket = serverChannel.socket();
+        ExecutorService executor = createExecutor(this.config);
+        // as ligações rejeitadas não ocupam os threads do executor, que podem estar todos com clientes admitidos
+        ExecutorService shedExecutor = Executors.newCachedThreadPool();
+        Thread acceptor = new Thread(() -> acceptConnections(executor, shedExecutor));
+        acceptor.setName("Acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Aceita ligações até o socket do servidor ser fechado, entregando cada cliente ao executor. Os clientes que
+     * já estão a ser servidos continuam até terminarem. Caso o socket falhe sem o servidor estar a parar, o
+     * servidor é parado
+     * @param executor O executor dos clientes admitidos e em espera
+     * @param shedExecutor O executor dos clientes rejeitados
+     */
+    private void acceptConnections(ExecutorService executor, ExecutorService shedExecutor) {
+        try {
+            while (!this.serverSocket.isClosed()) {
+                Socket client = this.serverSocket.accept();
+                // os ficheiros grandes são enviados depois do cabeçalho, o que com o algoritmo de Nagle atrasa o corpo
+                client.setTcpNoDelay(true);
+                ClientHandler handler = new ClientHandler(client, nextClientId());
+                if (handler.ticket.isShed()) {
+                    shedExecutor.execute(handler);
+                } else {
+                    executor.execute(handler);
+                }
+            }
+        } catch (IOException e) {
+            if (!isDraining()) {
+                System.err.println("Server stopped: " + e.getMessage());
+                stop();
+            }
+        } finally {
+            executor.shutdown();
+            shedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Cria o executor usado pelo motor blocking para correr cada ClientHandler
+     * @param config As opções de arranque do servidor
+     * @return Executor que cria um thread por cliente, um thread virtual por cliente ou usa um conjunto fixo de threads
+     * @requires {@code config != null}
+     * @ensures {@code \result != null}
+     */
+    private static ExecutorService createExecutor(ServerConfig config) {
+        switch (config.getExecutor()) {
+            case ServerConfig.EXECUTOR_VIRTUAL:
+                try {
+                    // obtido por reflexão para que o servidor continue a compilar em versões anteriores ao Java 21
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("Virtual threads are not supported", e);
+                }
+            case ServerConfig.EXECUTOR_POOL:
+                return Executors.newFixedThreadPool(config.getPoolSize());
+            default:
+                return Executors.newCachedThreadPool();
         }
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Invalid arguments. Please use only the port of the server has the startup argument.");
+        if (args.length < 1) {
+            System.err.println("Invalid arguments. Please use the port of the server has the first startup argument, optionally followed by option=value pairs.");
         } else {
             try {
                 int port = Integer.parseInt(args[0]);
-                new MyHttpServer(port);
+                String[] options = Arrays.copyOfRange(args, 1, args.length);
+                MyHttpServer server = new MyHttpServer(port, ServerConfig.parse(options));
+                server.start();
+                // ao terminar a JVM (Ctrl+C ou SIGTERM) os pedidos em curso ainda são respondidos
+                Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+                readCommands(server, options);
+                server.await();
             } catch (NumberFormatException e) {
                 System.err.println("Invalid port!");
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Lê comandos da consola num thread separado: {@code reload [opcao=valor ...]} aplica as opções de arranque
+     * com as alterações dadas e {@code stop} para o servidor de forma ordenada
+     * @param server O servidor controlado pelos comandos
+     * @param options As opções de arranque do servidor
+     */
+    private static void readCommands(MyHttpServer server, String[] options) {
+        Thread thread = new Thread(() -> {
+            BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while ((line = console.readLine()) != null) {
+                    String[] words = line.trim().split("\\s+");
+                    if (words[0].equals("stop")) {
+                        server.stop();
+                        return;
+                    } else if (words[0].equals("reload")) {
+                        String[] changes = Arrays.copyOfRange(words, 1, words.length);
+                        String[] reloaded = Arrays.copyOf(options, options.length + changes.length);
+                        System.arraycopy(changes, 0, reloaded, options.length, changes.length);
+                        try {
+                            // a confirmação é escrita por reload() em modo de depuração
+                            server.reload(ServerConfig.parse(reloaded));
+                        } catch (IllegalArgumentException | IOException e) {
+                            System.err.println("Could not reload the configuration: " + e.getMessage());
+                        }
+                    } else if (!words[0].isEmpty()) {
+                        System.err.println("Unknown command: " + words[0] + " (use reload or stop)");
+                    }
+                }
+            } catch (IOException e) {
+                // a consola deixou de estar disponivel
+            }
+        });
+        thread.setName("ConsoleCommands");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Regista as métricas do servidor no servidor de MBeans da plataforma, para que possam ser lidas por JMX.
+     * A porta do servidor distingue vários servidores na mesma JVM
+     */
+    private void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, metricsName());
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retira as métricas do servidor de MBeans, para que outro servidor possa usar a mesma porta
+     */
+    private void unregisterMetrics() {
+        try {
+            ObjectName name = metricsName();
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // ignored
+        }
+    }
+
+    /**
+     * Retorna o nome do MBean das métricas do servidor
+     * @return O nome do MBean
+     * @throws JMException Caso o nome não seja válido
+     */
+    private ObjectName metricsName() throws JMException {
+        return new ObjectName("MyHttpServer:type=ServerMetrics,port=" + this.port);
+    }
+
+    /**
+     * Retorna as métricas do servidor, atualizadas pelos motores de I/O
+     * @return As métricas do servidor
+     */
+    ServerMetrics metrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Retorna o conjunto de buffers diretos usado nas leituras e escritas dos sockets
+     * @return O conjunto de buffers do servidor
+     */
+    BufferPool bufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Retorna o tamanho máximo do corpo dos pedidos guardados em memória, a definir no analisador de cada ligação
+     * @return O tamanho máximo do corpo em bytes
+     */
+    long maxBodyBytes() {
+        return this.config.getMaxBodyBytes();
+    }
+
+    /**
+     * Indica se os pedidos e as ligações são escritos na consola
+     * @return true caso as mensagens de depuração estejam ativas
+     */
+    boolean isDebug() {
+        return this.debug;
+    }
+
+    /**
+     * Retorna um novo id de cliente
+     * @return O id a ser atribuido ao próximo cliente
+     */
+    int nextClientId() {
+        return this.nextClientId.getAndIncrement();
+    }
+
+    /**
+     * Regista um cliente como ativo e decide a sua admissão
+     * @param clientId O id do cliente
+     * @return O ticket de admissão da ligação, que deve ser entregue em cada pedido e ao fechar a ligação
+     * @ensures {@code \result != null}
+     */
+    AdmissionControl.Ticket clientConnected(int clientId) {
+        AdmissionControl.Ticket ticket = this.admission.connect(clientId);
+        this.metrics.connectionOpened();
+        if (ticket.isShed())
+            this.metrics.connectionShed();
+        if (this.debug)
+            System.out.println("\nClient #" + clientId + " connected" + (ticket.isAdmitted() ? "!\n"
+                : ticket.isShed() ? ", rejected!\n" : ", waiting for a free slot!\n"));
+        return ticket;
+    }
+
+    /**
+     * Remove um cliente dos clientes ativos, libertando o seu lugar
+     * @param ticket O ticket de admissão da ligação
+     * @requires {@code ticket != null}
+     */
+    void clientDisconnected(AdmissionControl.Ticket ticket) {
+        if (this.debug)
+            System.out.println("\nClient #" + ticket.getClientId() + " disconnected!\n");
+        ticket.release();
+        this.metrics.connectionClosed();
+        // o servidor pode estar à espera que as ligações terminem para parar
+        if (isDraining()) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Cria o prazo de leitura de uma ligação, controlado pelo temporizador partilhado por todas as ligações
+     * @param onExpired A tarefa executada no thread do temporizador quando o prazo expirar
+     * @return O prazo, inicialmente sem data
+     * @requires {@code onExpired != null}
+     * @ensures {@code \result != null}
+     */
+    HashedWheelTimer.Deadline newDeadline(Runnable onExpired) {
+        return this.timer.newDeadline(onExpired);
+    }
+
+    /**
+     * Define o prazo da próxima leitura de uma ligação conforme o estado do pedido em curso. Sem pedido começado
+     * a ligação está inativa (idleTimeout), a meio dos cabeçalhos o prazo conta desde o primeiro byte do pedido
+     * (headerTimeout) e a meio do corpo desde o último byte recebido (bodyTimeout). As ligações rejeitadas
+     * têm apenas um segundo para enviar o pedido. Os tempos são os da configuração em vigor
+     * @param deadline O prazo da ligação
+     * @param ticket O ticket de admissão da ligação
+     * @param parser O analisador da ligação
+     * @param parseStart O momento em que foi recebido o primeiro byte do pedido em curso
+     * @requires {@code deadline != null && ticket != null && parser != null}
+     */
+    void armReadDeadline(HashedWheelTimer.Deadline deadline, AdmissionControl.Ticket ticket, HttpParser parser,
+                         long parseStart) {
+        Settings settings = this.settings;
+        if (parser.isReadingBody()) {
+            setDeadline(deadline, settings.bodyTimeout);
+        } else if (ticket.isShed()) {
+            deadline.set(SHED_TIMEOUT);
+        } else if (!parser.hasStarted()) {
+            setDeadline(deadline, settings.idleTimeout);
+        } else if (settings.headerTimeout > 0) {
+            deadline.set(parseStart + settings.headerTimeout - System.nanoTime());
+        } else {
+            deadline.clear();
+        }
+    }
+
+    /**
+     * Define um prazo a partir do momento atual
+     * @param deadline O prazo
+     * @param timeout O tempo até o prazo expirar, em nanossegundos, 0 para retirar o prazo
+     */
+    private static void setDeadline(HashedWheelTimer.Deadline deadline, long timeout) {
+        if (timeout > 0)
+            deadline.set(timeout);
+        else
+            deadline.clear();
+    }
+
+    /**
+     * Acrescenta {@code Connection: close} à resposta caso o cliente tenha feito o número máximo de pedidos
+     * por ligação ou o servidor esteja a parar, para que a ligação seja fechada depois de a enviar
+     * @param response A resposta ao pedido
+     * @param served O número de pedidos da ligação, incluindo este
+     * @requires {@code response != null}
+     */
+    void limitRequests(HttpResponse response, int served) {
+        int maxRequests = this.settings.maxRequests;
+        if ((maxRequests > 0 && served >= maxRequests) || isDraining())
+            response.setHeader("Connection", "close");
+    }
+
+    /**
+     * Verifica se o corpo de um pedido deve ser lido em streaming pelo handler da sua rota, em vez de ser guardado
+     * em memória antes de o pedido ser respondido
+     * @param head O pedido, ainda sem corpo
+     * @return true caso a rota do pedido receba o corpo em streaming
+     * @requires {@code head != null}
+     */
+    boolean streamsBody(HttpRequest head) {
+        return this.router.isStreaming(head.getMethod(), DocumentRoot.pathOf(head.getUrl()));
+    }
+
+    /**
+     * Cria a resposta a um pedido HTTP já analisado de um cliente, usado por todos os motores de I/O do servidor.
+     * O pedido fica registado nas métricas e no registo de acessos. Caso a resposta tenha o cabeçalho
+     * {@code Connection: close} a ligação deve ser fechada depois de a enviar
+     * @param ticket O ticket de admissão da ligação do cliente
+     * @param remoteAddress O endereço do cliente
+     * @param request O pedido recebido, null caso esteja mal formatado
+     * @return A resposta HTTP a ser enviada ao cliente
+     * @throws IOException Caso não seja possivel ler o recurso pedido
+     * @requires {@code ticket != null && remoteAddress != null}
+     * @ensures {@code \result != null}
+     */
+    HttpResponse handleRequest(AdmissionControl.Ticket ticket, String remoteAddress, HttpRequest request) throws IOException {
+        return handleRequest(ticket, remoteAddress, request, 400);
+    }
+
+    /**
+     * Cria a resposta à mensagem completa de um analisador, usado por todos os motores de I/O do servidor.
+     * Caso a mensagem esteja mal formatada é respondida com o código de estado indicado pelo analisador, e caso
+     * tenha sido abandonada a resposta tem {@code Connection: close}, já que não é possivel ler o pedido seguinte
+     * @param ticket O ticket de admissão da ligação do cliente
+     * @param remoteAddress O endereço do cliente
+     * @param parser O analisador com a mensagem completa
+     * @return A resposta HTTP a ser enviada ao cliente
+     * @throws IOException Caso não seja possivel ler o recurso pedido
+     * @requires {@code ticket != null && remoteAddress != null && parser != null && parser.isComplete()}
+     * @ensures {@code \result != null}
+     */
+    HttpResponse handleRequest(AdmissionControl.Ticket ticket, String remoteAddress, HttpParser parser) throws IOException {
+        HttpResponse response = handleRequest(ticket, remoteAddress, parser.getRequest(), parser.getErrorStatus());
+        if (parser.isAbandoned())
+            response.setHeader("Connection", "close");
+        return response;
+    }
+
+    /**
+     * Cria a resposta a um pedido, registando-o nas métricas e no registo de acessos
+     * @param ticket O ticket de admissão da ligação do cliente
+     * @param remoteAddress O endereço do cliente
+     * @param request O pedido recebido, null caso esteja mal formatado
+     * @param errorStatus O código de estado da resposta caso o pedido esteja mal formatado
+     * @return A resposta HTTP a ser enviada ao cliente
+     * @throws IOException Caso não seja possivel ler o recurso pedido
+     */
+    private HttpResponse handleRequest(AdmissionControl.Ticket ticket, String remoteAddress, HttpRequest request,
+                                       int errorStatus) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = respond(ticket, request, errorStatus);
+        long elapsed = System.nanoTime() - start;
+        this.metrics.recordHandle(response.getStatusCode(), elapsed);
+        if (ticket.isAdmitted())
+            this.admission.recordLatency(elapsed);
+        if (this.accessLog != null)
+            this.accessLog.log(remoteAddress, request, response);
+        return response;
+    }
+
+    /**
+     * Cria a resposta a um pedido HTTP já analisado de um cliente. Os clientes em espera por um lugar recebem 503
+     * sem que o pedido seja processado, e as ligações rejeitadas recebem também {@code Connection: close}, tal
+     * como os clientes que pediram para fechar a ligação ou usam HTTP/1.0 sem keep-alive
+     * @param ticket O ticket de admissão da ligação do cliente
+     * @param request O pedido recebido, null caso esteja mal formatado
+     * @param errorStatus O código de estado da resposta caso o pedido esteja mal formatado
+     * @return A resposta HTTP a ser enviada ao cliente
+     * @throws IOException Caso não seja possivel ler o recurso pedido
+     * @ensures {@code \result != null}
+     */
+    private HttpResponse respond(AdmissionControl.Ticket ticket, HttpRequest request, int errorStatus) throws IOException {
+        if (this.debug) {
+            System.out.println("Request from client #" + ticket.getClientId() + ":\n\n"
+                + (request != null ? request.toString() : "(malformed request)"));
+        }
+        Settings settings = this.settings;
+        HttpResponse response = errorResponse(errorStatus);
+        if (ticket.isShed()) {
+            response = serviceUnavailable().setHeader("Connection", "close");
+        } else if (!ticket.admit()) {
+            response = serviceUnavailable();
+        } else if (request != null) {
+            Router.Handler handler = this.router.find(request.getMethod(), DocumentRoot.pathOf(request.getUrl()));
+            if (handler != null) {
+                HttpResponse routeResponse = handler.handle(request);
+                if (routeResponse != null)
+                    response = compress(settings, request, routeResponse);
+            } else if (request.getMethod().equals("GET")) {
+                response = handleGetRequest(settings, request);
+            } else if (this.router.hasMethod(request.getMethod())) {
+                response = HttpResponse.createDefaultHeaders("HTTP/1.1", 404, "Not Found", "");
+            } else {
+                response = HttpResponse.createDefaultHeaders("HTTP/1.1", 501, "Not Implemented", "");
             }
+            // os clientes HTTP/1.0 não aceitam corpos em chunks
+            if (response.hasStreamingBody() && request.getVersion().equals("HTTP/1.0"))
+                response.bufferBody();
+        }
+        if (request != null && !request.isKeepAlive())
+            response.setHeader("Connection", "close");
+        return response;
+    }
+
+    /**
+     * Cria a resposta a um pedido mal formatado
+     * @param status O código de estado indicado pelo analisador
+     * @return HttpResponse sem corpo com o código de estado dado
+     * @ensures {@code \result != null}
+     */
+    private static HttpResponse errorResponse(int status) {
+        switch (status) {
+            case 413:
+                return HttpResponse.createDefaultHeaders("HTTP/1.1", 413, "Content Too Large", "");
+            case 431:
+                return HttpResponse.createDefaultHeaders("HTTP/1.1", 431, "Request Header Fields Too Large", "");
+            case 501:
+                return HttpResponse.createDefaultHeaders("HTTP/1.1", 501, "Not Implemented", "");
+            default:
+                return HttpResponse.createDefaultHeaders("HTTP/1.1", 400, "Bad Request", "");
+        }
+    }
+
+    /**
+     * Cria a resposta enviada aos clientes que não foram admitidos
+     * @return HttpResponse 503 com o cabeçalho Retry-After
+     * @ensures {@code \result != null}
+     */
+    private HttpResponse serviceUnavailable() {
+        return HttpResponse.createDefaultHeaders("HTTP/1.1", 503, "Service unavailable", "")
+            .setHeader("Retry-After", this.admission.getRetryAfter());
+    }
+
+    /**
+     * Esta função irá procurar o ficheiro pedido na raiz de documentos e criar uma resposta http para enviá-lo para o cliente
+     * @param settings A configuração em vigor quando o pedido começou a ser respondido
+     * @param request O pedido HTTP do cliente
+     * @return HttpResponse contendo os cabeçalhos standard e no corpo o conteúdo do ficheiro, ou 404 caso não exista
+     * @ensures {@code \result != null}
+     * @requires {@code settings != null && request != null}
+     * @throws IOException Caso não seja possivel ler o ficheiro
+     */
+    private HttpResponse handleGetRequest(Settings settings, HttpRequest request) throws IOException {
+        File file = settings.documentRoot.resolve(request.getUrl());
+        if (file == null || !file.isFile())
+            return HttpResponse.createDefaultHeaders("HTTP/1.1", 404, "Not Found", "");
+        return fileResponse(settings, request, file)
+            .setHeader("Content-Type", DocumentRoot.contentType(file));
+    }
+
+    /**
+     * Cria uma resposta de sucesso cujo corpo é o conteúdo do ficheiro dado. Os ficheiros pequenos são servidos
+     * da cache de ficheiros e os maiores que o limite de zero-copy são transferidos diretamente do disco para o socket,
+     * exceto os ficheiros de texto pedidos com compressão, que são comprimidos à medida que são lidos e enviados em chunks.
+     * Caso o cliente já tenha a versão atual do ficheiro (If-None-Match ou If-Modified-Since) é enviado 304 sem corpo
+     * @param settings A configuração em vigor quando o pedido começou a ser respondido
+     * @param request O pedido HTTP do cliente
+     * @param file O ficheiro a ser enviado
+     * @return HttpResponse com os cabeçalhos standard, os cabeçalhos ETag e Last-Modified e o ficheiro no corpo
+     * @throws IOException Caso não seja possivel ler o ficheiro
+     * @requires {@code settings != null && request != null && file != null}
+     * @ensures {@code \result != null}
+     */
+    private HttpResponse fileResponse(Settings settings, HttpRequest request, File file) throws IOException {
+        HttpResponse response;
+        String etag, lastModified;
+        if (file.length() > settings.zeroCopyThreshold) {
+            if (!file.isFile())
+                throw new FileNotFoundException(file.getPath());
+            long modified = file.lastModified();
+            etag = StaticFileCache.entityTag(file.length(), modified);
+            lastModified = HttpDate.format(modified);
+            String encoding = null;
+            if (ContentEncoding.isCompressible(DocumentRoot.contentType(file)) && request.getVersion().equals("HTTP/1.1"))
+                encoding = ContentEncoding.negotiate(request.getHeaders().get("Accept-Encoding"));
+            if (encoding != null) {
+                String contentEncoding = encoding;
+                etag = StaticFileCache.entityTag(etag, encoding);
+                response = HttpResponse.createStreaming("HTTP/1.1", 200, "OK", out -> {
+                    try (InputStream in = Files.newInputStream(file.toPath())) {
+                        ContentEncoding.encode(in, out, contentEncoding);
+                    }
+                }).setHeader("Content-Encoding", encoding);
+            } else {
+                response = HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", file);
+            }
+            if (ContentEncoding.isCompressible(DocumentRoot.contentType(file)))
+                response.setHeader("Vary", "Accept-Encoding");
+        } else {
+            StaticFileCache.CachedFile cached = settings.fileCache.get(file);
+            etag = cached.getETag();
+            lastModified = cached.getLastModified();
+            response = HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", cached.getContent());
+            if (shouldCompress(settings, DocumentRoot.contentType(file), cached.getContent().length)) {
+                response.setHeader("Vary", "Accept-Encoding");
+                String encoding = ContentEncoding.negotiate(request.getHeaders().get("Accept-Encoding"));
+                if (encoding != null) {
+                    etag = StaticFileCache.entityTag(etag, encoding);
+                    response.setBody(settings.fileCache.getEncoded(cached, encoding))
+                        .setHeader("Content-Encoding", encoding);
+                }
+            }
+        }
+        if (isNotModified(request, etag, lastModified)) {
+            HttpResponse notModified = HttpResponse.createDefaultHeaders("HTTP/1.1", 304, "Not Modified", "")
+                .removeHeader("Content-Length");
+            String vary = response.getHeaders().get("Vary");
+            if (vary != null)
+                notModified.setHeader("Vary", vary);
+            response = notModified;
+        }
+        return response
+            .setHeader("ETag", etag)
+            .setHeader("Last-Modified", lastModified);
+    }
+
+    /**
+     * Comprime o corpo de uma resposta caso o cliente aceite compressão e o corpo seja texto com
+     * pelo menos o tamanho mínimo configurado. As respostas já comprimidas, os ficheiros e os corpos em streaming
+     * não são alterados
+     * @param settings A configuração em vigor quando o pedido começou a ser respondido
+     * @param request O pedido HTTP do cliente
+     * @param response A resposta a comprimir
+     * @return A própria resposta, com o corpo comprimido caso se justifique
+     * @requires {@code settings != null && request != null && response != null}
+     */
+    private HttpResponse compress(Settings settings, HttpRequest request, HttpResponse response) {
+        if (response.hasFileBody() || response.hasStreamingBody() || response.getHeaders().contains("Content-Encoding")
+                || !shouldCompress(settings, response.getHeaders().get("Content-Type"), response.getBodyBytes().length))
+            return response;
+        response.setHeader("Vary", "Accept-Encoding");
+        String encoding = ContentEncoding.negotiate(request.getHeaders().get("Accept-Encoding"));
+        if (encoding == null)
+            return response;
+        return response.setBody(ContentEncoding.encode(response.getBodyBytes(), encoding))
+            .setHeader("Content-Encoding", encoding);
+    }
+
+    /**
+     * Verifica se um corpo deve ser comprimido
+     * @param settings A configuração em vigor
+     * @param contentType O Content-Type do corpo
+     * @param length O tamanho do corpo
+     * @return true caso o corpo seja texto e tenha pelo menos o tamanho mínimo de compressão
+     */
+    private static boolean shouldCompress(Settings settings, String contentType, int length) {
+        return length >= settings.compressionThreshold && ContentEncoding.isCompressible(contentType);
+    }
+
+    /**
+     * Verifica se o cliente já tem a versão atual de um ficheiro. O If-None-Match tem prioridade sobre o If-Modified-Since
+     * @param request O pedido HTTP do cliente
+     * @param etag O ETag atual do ficheiro
+     * @param lastModified A data de modificação atual do ficheiro, no formato dos cabeçalhos HTTP
+     * @return true caso o ficheiro não tenha sido modificado desde a versão que o cliente tem
+     * @requires {@code request != null && etag != null && lastModified != null}
+     */
+    private static boolean isNotModified(HttpRequest request, String etag, String lastModified) {
+        String ifNoneMatch = request.getHeaders().get("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/"))
+                    tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeaders().get("If-Modified-Since");
+        if (ifModifiedSince == null)
+            return false;
+        long since = HttpDate.parse(ifModifiedSince);
+        return since != -1 && HttpDate.parse(lastModified) <= since;
+    }
+
+    /**
+     * Esta função irá receber o pedido POST do cliente, ler os campos do formulário e verificar se o corpo recebido
+     * tem o tamanho indicado no cabeçalho Content-Length, retornado uma HttpResponse caso isso se verifique. O corpo
+     * é lido em streaming, pelo que um upload grande não é guardado em memória. Um corpo maior que o maxBodySize
+     * recebe 413 e a ligação é fechada sem ler o resto do corpo
+     * @param request O pedido HTTP do cliente
+     * @return HttpResponse de uma resposta de sucesso caso o pedido esteja bem formatado, null caso contrário
+     * @throws IOException Caso a ligação seja fechada antes do fim do corpo ou o corpo esteja mal formatado
+     * @requires {@code request != null}
+     */
+    private HttpResponse handlePostRequest(HttpRequest request) throws IOException {
+        RequestBody body = request.getBodyStream();
+        long maxBytes = maxBodyBytes();
+        if (body.getContentLength() > maxBytes)
+            return errorResponse(413).setHeader("Connection", "close");
+        FormData form;
+        boolean validForm = true;
+        try {
+            form = FormData.of(request, maxBytes);
+        } catch (IllegalArgumentException | IOException e) {
+            // caso a ligação tenha falhado a exceção volta a ser lançada ao descartar o resto do corpo
+            form = null;
+            validForm = false;
+        }
+        // a leitura do formulário pára logo que o corpo excede o limite
+        if (body.getBytesRead() > maxBytes)
+            return errorResponse(413).setHeader("Connection", "close");
+        body.discard();
+        // no fim de um corpo em chunks o analisador coloca o tamanho recebido no Content-Length
+        String contentLengthStr = request.getHeaders().get("Content-Length");
+        if (validForm && contentLengthStr != null) {
+            try {
+                long contentLength = Long.parseLong(contentLengthStr);
+                if (this.debug)
+                    System.out.println("CC: " + contentLength + " | " + body.getBytesRead() + (form != null ? " | " + form : ""));
+                if (body.getBytesRead() == contentLength) {
+                    return HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", "");
+                }
+            } catch (NumberFormatException e) { }
+        }
+        return null;
+    }
+
+    /**
+     * Responde com as métricas do servidor no formato de texto do Prometheus
+     * @param request O pedido HTTP do cliente
+     * @return HttpResponse com as métricas no corpo
+     * @requires {@code request != null}
+     */
+    private HttpResponse handleMetricsRequest(HttpRequest request) {
+        return HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", this.metrics.toPrometheus())
+            .setHeader("Content-Type", ServerMetrics.PROMETHEUS_CONTENT_TYPE);
+    }
+
+    /**
+     * Opções do servidor que podem ser alteradas com {@link #reload(ServerConfig)}. Cada pedido usa a mesma
+     * instância do início ao fim, pelo que nunca vê uma mistura de opções antigas e novas
+     */
+    private static class Settings {
+
+        private final DocumentRoot documentRoot;
+        private final StaticFileCache fileCache;
+        private final long zeroCopyThreshold;
+        private final int compressionThreshold;
+        private final long idleTimeout;
+        private final long headerTimeout;
+        private final long bodyTimeout;
+        private final int maxRequests;
+        private final long drainTimeout;
+
+        /**
+         * Cria as opções a partir de uma configuração
+         * @param config A configuração
+         * @param previous As opções em vigor, cuja cache de ficheiros é mantida caso o tamanho não mude, ou null
+         * @throws IOException Caso a raiz de documentos não seja uma pasta válida
+         * @requires {@code config != null}
+         */
+        private Settings(ServerConfig config, Settings previous) throws IOException {
+            this.documentRoot = new DocumentRoot(config.getDocumentRoot());
+            // a cache é indexada pelo caminho completo e validada pela data e tamanho de cada ficheiro,
+            // pelo que continua correta depois de mudar a raiz
+            this.fileCache = previous != null && previous.fileCache.getMaxBytes() == config.getCacheBytes()
+                ? previous.fileCache : new StaticFileCache(config.getCacheBytes());
+            this.zeroCopyThreshold = config.getZeroCopyThreshold();
+            this.compressionThreshold = config.getCompressionThreshold();
+            this.idleTimeout = TimeUnit.SECONDS.toNanos(config.getIdleTimeout());
+            this.headerTimeout = TimeUnit.SECONDS.toNanos(config.getHeaderTimeout());
+            this.bodyTimeout = TimeUnit.SECONDS.toNanos(config.getBodyTimeout());
+            this.maxRequests = config.getMaxRequests();
+            this.drainTimeout = config.getDrainTimeout();
         }
     }
 
@@ -58,82 +917,162 @@ public class MyHttpServer {
      */
     private class ClientHandler implements Runnable {
 
-        private final ServerSocket serverSocket;
         private final Socket client;
+        private final SocketChannel channel;
         private final int id;
-        private final BufferedReader reader;
-        private final PrintWriter writer;
+        private final AdmissionControl.Ticket ticket;
+        private final OutputStream output;
+        private final String remoteAddress;
+        private final ByteBuffer buffer = bufferPool.acquire(READ_BUFFER_SIZE);
+        private final HttpParser parser = HttpParser.forRequests();
+        // fecha o socket quando o cliente demora demasiado a enviar um pedido, desbloqueando a leitura
+        private final HashedWheelTimer.Deadline deadline = newDeadline(this::onTimeout);
+        // corpo em streaming do pedido cujos cabeçalhos acabaram de ser analisados
+        private SocketBody streamedBody;
+        private long parseStart;
+        private int served;
         private boolean shouldClose = false;
+        // à espera do primeiro byte de um novo pedido, podendo a ligação ser fechada quando o servidor para
+        private volatile boolean idle = true;
 
         /**
          * Inicializa a classe 
-         * @param serverSocket O socket do servidor
          * @param client O socket que vai ser o cliente nesta classe
          * @param id O id do thread
-         * @throws IOException Caso não seja possivel criar BufferedReader ou PrintWriter para o cliente
-         * @requires {@code serverSocket != null && client != null}
+         * @requires {@code client != null && client.getChannel() != null}
          */
-        public ClientHandler(ServerSocket serverSocket, Socket client, int id) throws IOException {
+        public ClientHandler(Socket client, int id) {
             this.id = id;
-            this.serverSocket = serverSocket;
             this.client = client;
-            this.reader = new BufferedReader(new InputStreamReader(this.client.getInputStream()));
-            this.writer = new PrintWriter(this.client.getOutputStream());
-            ACTIVE_CLIENTS.add(this);
-            System.out.println("\nClient #" + this.id + " connected!\n");
+            this.channel = client.getChannel();
+            this.remoteAddress = client.getInetAddress().getHostAddress();
+            this.output = new ChannelOutputStream(this.channel, bufferPool, READ_BUFFER_SIZE);
+            this.parser.setBodyStreamer(this::openBody);
+            this.parser.setMaxBodySize(maxBodyBytes());
+            this.ticket = clientConnected(this.id);
+            handlers.add(this);
         }
 
         /**
          * O código neste método será executado num thread separado do principal e vai ler todos os pedidos efetuados pelo
-         * cliente e fornecer as respetivas respostas
+         * cliente e fornecer as respetivas respostas. Os bytes são lidos do canal em blocos, para um buffer direto do
+         * conjunto de buffers do servidor, e entregues ao HttpParser, que
+         * delimita cada pedido pela linha vazia depois dos cabeçalhos e pelo Content-Length (ou chunks) do corpo.
+         * Nas rotas com corpo em streaming o pedido é respondido logo depois dos cabeçalhos e o handler lê o corpo
+         * diretamente do socket. Quando o servidor está a parar a ligação termina antes de esperar por um novo pedido
          */
         @Override
         public void run() {
-            while (!this.serverSocket.isClosed() && !this.shouldClose) {
-                try {
-                    StringBuilder sb = new StringBuilder();
-                    int readCode;
-                    while ((readCode = this.reader.read()) != -1 && this.reader.ready()) {
-                        sb.append((char) readCode);
-                    }
-                    if (readCode != -1)
-                        sb.append((char) readCode);
-                    if (readCode == -1)
-                        this.shouldClose = true;
-                    else if (sb.length() != 0) {
-                        String requestText = sb.toString();
-                        System.out.println("Request from client #" + this.id + ":\n\n" + requestText);
-                        HttpRequest request = HttpRequest.parseRequest(requestText);
-                        HttpResponse response = HttpResponse.createDefaultHeaders("HTTP/1.1", 400, "Bad Request", "");
-                        if (ACTIVE_CLIENTS.indexOf(this) > 4) {
-                            response = HttpResponse.createDefaultHeaders("HTTP/1.1", 503, "Service unavailable", "");
-                        } else if (request != null) {
-                            if (request.getMethod().equals("GET")) {
-                                if (request.getUrl().equals("/index.html") || request.getUrl().equals("/"))
-                                    response = handleGetRequest(request);
-                                else
-                                    response = HttpResponse.createDefaultHeaders("HTTP/1.1", 404, "Not Found", "");
-                            } else if (request.getMethod().equals("POST") && request.getUrl().equals("/simpleForm.html")) {
-                                System.out.println("POST");
-                                HttpResponse postResponse = handlePostRequest(request);
-                                if (postResponse != null)
-                                    response = postResponse;
-                            } else if (!request.getMethod().equals("POST")) {
-                                response = HttpResponse.createDefaultHeaders("HTTP/1.1", 501, "Not Implemented", "");
+            Thread.currentThread().setName("ClientThread-" + this.id);
+            ByteBuffer buffer = this.buffer;
+            HttpParser parser = this.parser;
+            // momento em que cada resposta do bloco foi criada, para medir o tempo até ser enviada
+            long[] writeStarts = new long[4];
+            try {
+                while (!this.shouldClose) {
+                    try {
+                        // publicado antes de verificar o estado do servidor, para que drain() veja a ligação inativa
+                        // ou este thread veja o servidor a parar
+                        this.idle = !parser.hasStarted();
+                        if (this.idle && isDraining())
+                            break;
+                        armReadDeadline(this.deadline, this.ticket, parser, this.parseStart);
+                        buffer.clear();
+                        int read = this.channel.read(buffer);
+                        this.idle = false;
+                        this.deadline.clear();
+                        buffer.flip();
+                        if (read == -1)
+                            this.shouldClose = true;
+                        int responses = 0;
+                        // depois de uma resposta com Connection: close os restantes pedidos em pipeline são ignorados
+                        while (buffer.hasRemaining() && !this.shouldClose) {
+                            if (!parser.hasStarted())
+                                this.parseStart = System.nanoTime();
+                            parser.feed(buffer);
+                            if (this.streamedBody != null) {
+                                SocketBody body = this.streamedBody;
+                                this.streamedBody = null;
+                                metrics.recordParse(System.nanoTime() - this.parseStart);
+                                // as respostas anteriores são enviadas antes de o handler começar a ler o corpo
+                                this.output.flush();
+                                HttpResponse response = handleRequest(this.ticket, this.remoteAddress, body.head);
+                                // o resto do corpo só é lido caso a ligação continue a ser usada
+                                if (!response.closesConnection())
+                                    body.discard();
+                                limitRequests(response, ++this.served);
+                                if (responses == writeStarts.length)
+                                    writeStarts = Arrays.copyOf(writeStarts, responses * 2);
+                                writeStarts[responses++] = System.nanoTime();
+                                sendResponse(response);
+                                this.shouldClose = response.closesConnection();
+                                parser.reset();
+                            } else if (parser.isComplete()) {
+                                metrics.recordParse(System.nanoTime() - this.parseStart);
+                                HttpResponse response = handleRequest(this.ticket, this.remoteAddress, parser);
+                                limitRequests(response, ++this.served);
+                                if (responses == writeStarts.length)
+                                    writeStarts = Arrays.copyOf(writeStarts, responses * 2);
+                                writeStarts[responses++] = System.nanoTime();
+                                sendResponse(response);
+                                this.shouldClose = response.closesConnection();
+                                parser.reset();
                             }
                         }
-                        sendResponse(response);
+                        // os pedidos em pipeline lidos no mesmo bloco são respondidos por ordem e enviados de uma só vez
+                        this.output.flush();
+                        long written = System.nanoTime();
+                        for (int i = 0; i < responses; i++)
+                            metrics.recordWrite(written - writeStarts[i]);
+                    } catch (IOException e) {
+                        this.shouldClose = true;
                     }
+                }
+            } finally {
+                // também quando o pedido falha com uma exceção não verificada ou um erro, para que o lugar do
+                // cliente seja libertado e o servidor não fique à espera desta ligação ao parar
+                this.deadline.cancel();
+                handlers.remove(this);
+                clientDisconnected(this.ticket);
+                this.shouldClose = true;
+                try {
+                    this.output.close();
                 } catch (IOException e) {
-                    this.shouldClose = true;
+                    // ignored
                 }
+                try {
+                    this.client.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+                bufferPool.release(this.buffer);
             }
-            System.out.println("\nClient #" + this.id + " disconnected!\n");
-            ACTIVE_CLIENTS.remove(this);
-            this.shouldClose = true;
+        }
+
+        /**
+         * Chamado pelo temporizador quando o prazo de leitura expira. Fechar o socket faz com que a leitura
+         * bloqueada no thread do cliente lance uma exceção e a ligação seja terminada
+         */
+        private void onTimeout() {
+            if (debug)
+                System.out.println("\nClient #" + this.id + " timed out!\n");
+            closeSocket();
+        }
+
+        /**
+         * Chamado quando o servidor começa a parar, fecha a ligação caso esteja à espera de um novo pedido.
+         * As ligações com um pedido em curso terminam depois de enviar a resposta
+         */
+        private void drain() {
+            if (this.idle)
+                closeSocket();
+        }
+
+        /**
+         * Fecha o socket do cliente, fazendo com que a leitura ou escrita em curso lance uma exceção
+         */
+        private void closeSocket() {
             try {
-                this.writer.close();
-                this.reader.close();
                 this.client.close();
             } catch (IOException e) {
                 // ignored
@@ -141,69 +1080,111 @@ public class MyHttpServer {
         }
 
         /**
-         * Esta função irá ler o ficheiro index.html e criar uma resposta http para enviá-lo para o cliente
-         * @param request O pedido HTTP do cliente
-         * @return HttpResponse contendo os cabeçalhos standard e no corpo o código html presente no ficheiro lido
-         * @ensures {@code \result != null}
-         * @requires {@code request != null}
-         * @throws IOException Caso não seja possivel ler o ficheiro
+         * Chamado pelo analisador no fim dos cabeçalhos de cada pedido com corpo
+         * @param head O pedido, ainda sem corpo
+         * @return O corpo lido do socket caso a rota do pedido receba o corpo em streaming, null caso contrário
          */
-        private HttpResponse handleGetRequest(HttpRequest request) throws IOException {
-            File htmlFile = new File("index.html");
-            Date lastModified = new Date(htmlFile.lastModified());
-            String fileContent = readAllTextFile(htmlFile);
-            return HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", fileContent)
-                .setHeader("Content-Type", "text/html")
-                .setHeader("Last-Modified", lastModified.toString());
+        private HttpParser.BodySink openBody(HttpRequest head) {
+            if (!streamsBody(head))
+                return null;
+            this.streamedBody = new SocketBody(head);
+            head.setBodyStream(this.streamedBody);
+            return this.streamedBody;
         }
 
         /**
-         * Esta função irá ler todo o texto num ficheiro
-         * @param file O ficheiro a ser lido
-         * @return String contendo todo o texto lido do ficheiro
-         * @throws IOException Caso não seja possivel ler o ficheiro
-         * @requires {@code file != null}
-         * @ensures {@code \result != null}
+         * Este método vai escrever os bytes da resposta HTTP para o cliente, sendo enviada quando
+         * todos os pedidos do bloco lido tiverem sido respondidos. O corpo de um ficheiro é enviado
+         * de imediato com sendfile, depois dos cabeçalhos e das respostas anteriores
+         * @param response A resposta HTTP a ser enviada
+         * @throws IOException Caso não seja possivel escrever para o cliente
+         * @requires {@code response != null}
          */
-        private String readAllTextFile(File file) throws IOException {
-            StringBuilder sb = new StringBuilder();
-            try (Scanner sc = new Scanner(file)) {
-                while (sc.hasNextLine())
-                    sb.append(sc.nextLine()).append("\r\n");
+        private void sendResponse(HttpResponse response) throws IOException {
+            if (!response.hasFileBody()) {
+                response.writeTo(this.output);
+                return;
+            }
+            try (FileRegion file = response.openFileBody()) {
+                response.writeHeadTo(this.output);
+                this.output.flush();
+                while (!file.isDone())
+                    file.transferTo(this.channel);
             }
-            return sb.toString();
         }
 
         /**
-         * Esta função irá receber o pedido POST do cliente e verificar se o cabeçalho Content-Length é valido, 
-         * retornado uma HttpResponse caso isso se verifique
-         * @param request O pedido HTTP do cliente
-         * @return HttpResponse de uma resposta de sucesso caso o pedido esteja bem formatado, null caso contrário
-         * @requires {@code request != null}
+         * Corpo em streaming lido diretamente do socket pelo thread do cliente. Os bytes já lidos que ficaram no
+         * buffer de leitura são consumidos primeiro e, quando acabam, o buffer é reutilizado para ler o socket.
+         * A posição do buffer de leitura avança à medida que o corpo é consumido, pelo que no fim do corpo
+         * fica no primeiro byte do pedido seguinte
          */
-        private HttpResponse handlePostRequest(HttpRequest request) {
-            String contentLengthStr = request.getHeaders().get("Content-Length");
-            if (contentLengthStr != null) {
-                System.out.println("Has length");
-                try {
-                    int contentLength = Integer.parseInt(contentLengthStr);
-                    System.out.println("CC: " + contentLength + " | " + request.getBody().length());
-                    if (request.getBody().length() == contentLength) {
-                        return HttpResponse.createDefaultHeaders("HTTP/1.1", 200, "OK", "");
-                    }
-                } catch (NumberFormatException e) { }
+        private class SocketBody extends RequestBody implements HttpParser.BodySink {
+
+            private final HttpRequest head;
+            private boolean continued;
+            // destino da leitura em curso
+            private byte[] destination;
+            private int destinationOffset, destinationLength, copied;
+
+            /**
+             * Cria o corpo de um pedido
+             * @param head O pedido a que o corpo pertence
+             */
+            private SocketBody(HttpRequest head) {
+                super(head);
+                this.head = head;
             }
-            return null;
-        }
 
-        /**
-         * Este método vai enviar a resposta HTTP para o cliente usando o PrintWriter 
-         * @param response A resposta HTTP a ser enviada
-         * @requires {@code response != null}
-         */
-        private void sendResponse(HttpResponse response) {
-            this.writer.print(response.toString());
-            this.writer.flush();
+            /**
+             * Copia bytes do corpo para o destino da leitura em curso, aceitando apenas os que couberem
+             */
+            @Override
+            public int write(byte[] data, int offset, int length) {
+                if (this.destination == null)
+                    return 0;
+                int count = Math.min(length, this.destinationLength - this.copied);
+                System.arraycopy(data, offset, this.destination, this.destinationOffset + this.copied, count);
+                this.copied += count;
+                return count;
+            }
+
+            /**
+             * Lê bytes do corpo, lendo do socket quando o buffer de leitura estiver vazio. Na primeira leitura é
+             * enviado 100 Continue caso o cliente esteja à espera para enviar o corpo
+             */
+            @Override
+            protected int readBody(byte[] b, int off, int len) throws IOException {
+                if (expectsContinue() && !this.continued && !parser.isComplete()) {
+                    this.continued = true;
+                    output.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+                    output.flush();
+                }
+                while (!parser.isComplete()) {
+                    if (len == 0)
+                        return 0;
+                    if (!buffer.hasRemaining()) {
+                        armReadDeadline(deadline, ticket, parser, parseStart);
+                        buffer.clear();
+                        int read = channel.read(buffer);
+                        deadline.clear();
+                        buffer.flip();
+                        if (read == -1)
+                            throw new EOFException("Connection closed before the end of the request body");
+                    }
+                    this.destination = b;
+                    this.destinationOffset = off;
+                    this.destinationLength = len;
+                    this.copied = 0;
+                    parser.feed(buffer);
+                    this.destination = null;
+                    if (this.copied > 0)
+                        return this.copied;
+                }
+                if (parser.isMalformed())
+                    throw new IOException("Malformed request body");
+                return -1;
+            }
         }
     }
-}
+}
\ No newline at end of file
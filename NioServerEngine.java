@@ -0,0 +1,912 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Motor de I/O não bloqueante do servidor, usa um thread para aceitar ligações e um número fixo de threads
+ * de eventos (cada um com o seu Selector) para ler os pedidos e escrever as respostas, de forma a que o número
+ * de clientes ligados não determine o número de threads usados. Os pedidos das rotas com corpo em streaming são
+ * respondidos por threads de trabalho, que leem o corpo de um buffer limitado enquanto o thread de eventos o enche,
+ * deixando de ler do socket enquanto o buffer estiver cheio. Da mesma forma, os corpos de resposta em streaming são
+ * criados por threads de trabalho que esperam enquanto o socket não aceitar os chunks anteriores.
+ * Os buffers de leitura, das respostas e dos chunks são buffers diretos do conjunto de buffers do servidor; uma
+ * ligação inativa não guarda nenhum buffer de leitura.
+ * Quando o servidor começa a parar o motor deixa de aceitar ligações e cada ligação é fechada assim que fica
+ * inativa; as que restarem são fechadas por {@link #stop()}
+ */
+public class NioServerEngine {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int BODY_PIPE_SIZE = 64 * 1024;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+    private final MyHttpServer server;
+    private final BufferPool pool;
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final Thread[] threads;
+    private final AtomicInteger nextWorkerId = new AtomicInteger(1);
+    private final ExecutorService workers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task);
+        thread.setName("NioWorker-" + this.nextWorkerId.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Cria o motor nio para o servidor dado
+     * @param server O servidor que irá processar os pedidos
+     * @param port A porta a ser usada pelo servidor
+     * @param ioThreads O número de threads de eventos
+     * @throws IOException Caso não seja possivel abrir os selectors
+     * @requires {@code server != null && ioThreads > 0}
+     */
+    public NioServerEngine(MyHttpServer server, int port, int ioThreads) throws IOException {
+        this.server = server;
+        this.pool = server.bufferPool();
+        this.port = port;
+        this.eventLoops = new EventLoop[ioThreads];
+        this.threads = new Thread[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            this.eventLoops[i] = new EventLoop(i + 1);
+            this.threads[i] = new Thread(this.eventLoops[i]);
+            this.threads[i].setName("EventLoop-" + (i + 1));
+        }
+    }
+
+    /**
+     * Abre o socket do servidor e inicia os threads de eventos e o thread que aceita as ligações
+     * @throws IOException Caso não seja possivel abrir o socket na porta do servidor
+     */
+    public void start() throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            this.serverChannel.bind(new InetSocketAddress(this.port));
+        } catch (IOException e) {
+            this.serverChannel.close();
+            throw e;
+        }
+        for (Thread thread : this.threads)
+            thread.start();
+        Thread acceptor = new Thread(this::acceptConnections);
+        acceptor.setName("Acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Deixa de aceitar ligações e fecha as ligações inativas. As restantes são fechadas pelos threads de eventos
+     * assim que enviarem a resposta em curso
+     */
+    public void drain() {
+        try {
+            this.serverChannel.close();
+        } catch (IOException e) {
+            // ignored
+        }
+        for (EventLoop loop : this.eventLoops)
+            loop.execute(loop::drainConnections);
+    }
+
+    /**
+     * Fecha todas as ligações e termina os threads de eventos e de trabalho, esperando que os threads de
+     * eventos terminem
+     */
+    public void stop() {
+        for (EventLoop loop : this.eventLoops)
+            loop.stop();
+        this.workers.shutdownNow();
+        for (Thread thread : this.threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Aceita ligações e distribui-as pelos threads de eventos de forma circular, até o socket do servidor
+     * ser fechado
+     */
+    private void acceptConnections() {
+        int next = 0;
+        try {
+            while (true) {
+                SocketChannel channel = this.serverChannel.accept();
+                channel.configureBlocking(false);
+                // o cabeçalho e o corpo são escritos em separado, o que com o algoritmo de Nagle atrasa o corpo
+                channel.socket().setTcpNoDelay(true);
+                this.eventLoops[next].register(channel);
+                next = (next + 1) % this.eventLoops.length;
+            }
+        } catch (IOException e) {
+            // o socket é fechado quando o servidor começa a parar
+            if (!this.server.isDraining()) {
+                System.err.println("Server stopped: " + e.getMessage());
+                this.server.stop();
+            }
+        }
+    }
+
+    /**
+     * Thread de eventos que serve todas as ligações registadas no seu Selector
+     */
+    private class EventLoop implements Runnable {
+
+        private final int id;
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean stopped;
+
+        /**
+         * Inicializa o thread de eventos
+         * @param id O id do thread de eventos
+         * @throws IOException Caso não seja possivel abrir o Selector
+         */
+        public EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Entrega uma nova ligação a este thread de eventos
+         * @param channel A ligação aceite
+         * @requires {@code channel != null}
+         */
+        public void register(SocketChannel channel) {
+            this.pending.add(channel);
+            this.selector.wakeup();
+        }
+
+        /**
+         * Executa uma tarefa neste thread de eventos, usado pelos threads de trabalho para alterar o estado das ligações
+         * @param task A tarefa a ser executada
+         * @requires {@code task != null}
+         */
+        public void execute(Runnable task) {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+
+        /**
+         * Pede a este thread de eventos para fechar todas as ligações e terminar
+         */
+        public void stop() {
+            this.stopped = true;
+            this.selector.wakeup();
+        }
+
+        /**
+         * Fecha as ligações inativas, sendo as restantes fechadas depois da resposta em curso.
+         * Executado no thread de eventos
+         */
+        private void drainConnections() {
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.isValid())
+                    ((Connection) key.attachment()).drain();
+            }
+        }
+
+        /**
+         * Serve as ligações até o motor parar. Um erro ao servir uma ligação (incluindo exceções não verificadas
+         * e erros como falta de memória) fecha apenas essa ligação, para que as restantes ligações deste thread
+         * continuem a ser servidas
+         */
+        @Override
+        public void run() {
+            pool.useThreadCache();
+            while (!this.stopped) {
+                try {
+                    this.selector.select();
+                    SocketChannel channel;
+                    while ((channel = this.pending.poll()) != null) {
+                        Connection connection = new Connection(this, channel, server.clientConnected(server.nextClientId()));
+                        try {
+                            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+                            connection.updateDeadline();
+                            // aceite antes de o servidor começar a parar mas registada depois
+                            if (server.isDraining())
+                                connection.drain();
+                        } catch (Throwable e) {
+                            fail(connection, e);
+                        }
+                    }
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (Throwable e) {
+                            System.err.println("Event loop #" + this.id + " task failed: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        // a ligação pode ter sido fechada por uma das tarefas
+                        if (!key.isValid())
+                            continue;
+                        try {
+                            if (key.isReadable())
+                                connection.onReadable();
+                            if (key.isValid() && key.isWritable())
+                                connection.onWritable();
+                        } catch (Throwable e) {
+                            fail(connection, e);
+                        }
+                    }
+                } catch (Throwable e) {
+                    System.err.println("Event loop #" + this.id + " failed: " + e);
+                }
+            }
+            closeAll();
+        }
+
+        /**
+         * Fecha uma ligação cujo processamento falhou. As falhas de I/O são normais (o cliente fechou a ligação),
+         * as restantes são escritas na consola de erros
+         * @param connection A ligação
+         * @param cause A causa da falha
+         */
+        private void fail(Connection connection, Throwable cause) {
+            if (!(cause instanceof IOException))
+                System.err.println("Event loop #" + this.id + " closed a connection after an unexpected error: " + cause);
+            connection.close();
+        }
+
+        /**
+         * Fecha todas as ligações deste thread de eventos, incluindo as que ainda não foram registadas, e o Selector
+         */
+        private void closeAll() {
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.isValid())
+                    ((Connection) key.attachment()).close();
+            }
+            SocketChannel channel;
+            while ((channel = this.pending.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Estado de uma ligação servida por um thread de eventos
+     */
+    private class Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final AdmissionControl.Ticket ticket;
+        private final String remoteAddress;
+        // obtido do pool quando há bytes para ler e devolvido quando fica vazio
+        private ByteBuffer readBuffer;
+        private final HttpParser parser = HttpParser.forRequests();
+        // o prazo é verificado no thread de eventos, já que pode ter sido adiado depois de expirar
+        private final HashedWheelTimer.Deadline deadline;
+        // contém ByteBuffers, FileRegions, StreamedBodies e, depois de cada resposta, o momento em que foi criada (Long)
+        private final Queue<Object> toWrite = new ArrayDeque<>();
+        private SelectionKey key;
+        private long parseStart;
+        private int served;
+        // corpo em streaming ainda a ser recebido
+        private PipedBody body;
+        // um thread de trabalho está a responder a um pedido, os pedidos seguintes esperam pela sua resposta
+        private boolean awaitingResponse;
+        private boolean closeAfterResponse;
+        private boolean paused;
+
+        /**
+         * Inicializa o estado da ligação
+         * @param loop O thread de eventos que serve a ligação
+         * @param channel O canal do cliente
+         * @param ticket O ticket de admissão do cliente
+         * @requires {@code loop != null && channel != null && ticket != null}
+         */
+        public Connection(EventLoop loop, SocketChannel channel, AdmissionControl.Ticket ticket) {
+            this.loop = loop;
+            this.channel = channel;
+            this.ticket = ticket;
+            this.deadline = server.newDeadline(() -> loop.execute(this::onTimeout));
+            this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+            this.parser.setBodyStreamer(this::openBody);
+            this.parser.setMaxBodySize(server.maxBodyBytes());
+        }
+
+        /**
+         * Lê todos os bytes disponiveis e entrega-os ao analisador, respondendo a cada pedido completo
+         * @throws IOException Caso não seja possivel ler do canal
+         */
+        public void onReadable() throws IOException {
+            if (this.readBuffer == null)
+                this.readBuffer = pool.acquire(READ_BUFFER_SIZE);
+            int read;
+            do {
+                read = this.channel.read(this.readBuffer);
+            } while (process() && read > 0);
+            if (!this.paused && this.readBuffer.position() == 0)
+                releaseReadBuffer();
+            // com a leitura suspensa o fim da ligação é tratado depois de processados os bytes que ficaram no buffer
+            if (read == -1 && !this.paused) {
+                if (this.body != null)
+                    this.body.fail();
+                if (this.awaitingResponse) {
+                    // a resposta do pedido em curso ainda é enviada
+                    this.closeAfterResponse = true;
+                    pause();
+                } else {
+                    onWritable();
+                    close();
+                    return;
+                }
+            }
+            onWritable();
+        }
+
+        /**
+         * Entrega ao analisador os bytes do buffer de leitura, respondendo a cada pedido completo. Os bytes que
+         * não puderem ser consumidos ficam no buffer até a leitura ser retomada
+         * @return true caso seja possivel continuar a ler do canal, false caso a leitura tenha sido suspensa
+         * @throws IOException Caso não seja possivel criar uma resposta
+         */
+        private boolean process() throws IOException {
+            this.readBuffer.flip();
+            try {
+                while (this.readBuffer.hasRemaining()) {
+                    if (this.awaitingResponse && this.body == null)
+                        return pause();
+                    if (!this.parser.hasStarted())
+                        this.parseStart = System.nanoTime();
+                    boolean complete = this.parser.feed(this.readBuffer);
+                    if (this.body != null) {
+                        if (complete) {
+                            this.body.finish(this.parser.isMalformed());
+                            // não é possivel saber onde começa o pedido seguinte
+                            this.closeAfterResponse |= this.parser.isMalformed();
+                            this.body = null;
+                            this.parser.reset();
+                        } else if (this.readBuffer.hasRemaining()) {
+                            return pause();
+                        }
+                    } else if (complete) {
+                        server.metrics().recordParse(System.nanoTime() - this.parseStart);
+                        HttpResponse response = server.handleRequest(this.ticket, this.remoteAddress, this.parser);
+                        server.limitRequests(response, ++this.served);
+                        enqueue(response);
+                        this.parser.reset();
+                        if (response.closesConnection()) {
+                            // os restantes pedidos em pipeline são ignorados e a ligação é fechada depois da resposta
+                            this.closeAfterResponse = true;
+                            return pause();
+                        }
+                    }
+                }
+                return !this.paused;
+            } finally {
+                this.readBuffer.compact();
+            }
+        }
+
+        /**
+         * Chamado pelo analisador no fim dos cabeçalhos de cada pedido com corpo. Nas rotas com corpo em streaming
+         * o pedido é entregue a um thread de trabalho, que lê o corpo à medida que este thread o recebe
+         * @param head O pedido, ainda sem corpo
+         * @return O buffer onde o analisador deve colocar o corpo, null para o guardar em memória
+         */
+        private HttpParser.BodySink openBody(HttpRequest head) {
+            if (!server.streamsBody(head))
+                return null;
+            server.metrics().recordParse(System.nanoTime() - this.parseStart);
+            PipedBody pipe = new PipedBody(head, this);
+            head.setBodyStream(pipe);
+            this.body = pipe;
+            this.awaitingResponse = true;
+            workers.execute(() -> {
+                HttpResponse response = null;
+                try {
+                    response = server.handleRequest(this.ticket, this.remoteAddress, head);
+                    // o resto do corpo só é lido caso a ligação continue a ser usada
+                    if (!response.closesConnection())
+                        pipe.discard();
+                    server.limitRequests(response, ++this.served);
+                } catch (IOException | RuntimeException e) {
+                    response = null;
+                }
+                HttpResponse handled = response;
+                this.loop.execute(() -> onHandled(handled));
+            });
+            return pipe;
+        }
+
+        /**
+         * Envia a resposta criada por um thread de trabalho e retoma a leitura dos pedidos seguintes.
+         * Executado no thread de eventos
+         * @param response A resposta, null caso não tenha sido possivel criá-la
+         */
+        private void onHandled(HttpResponse response) {
+            if (!this.channel.isOpen())
+                return;
+            try {
+                if (response == null) {
+                    close();
+                    return;
+                }
+                enqueue(response);
+                this.awaitingResponse = false;
+                this.closeAfterResponse |= response.closesConnection();
+                // com closeAfterResponse a ligação é fechada por onWritable depois de enviada a resposta
+                onWritable();
+                resume();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Coloca uma resposta na fila de escrita
+         * @param response A resposta a ser enviada
+         * @throws IOException Caso não seja possivel abrir o ficheiro do corpo
+         */
+        private void enqueue(HttpResponse response) throws IOException {
+            Collections.addAll(this.toWrite, response.toBuffers(pool));
+            if (response.hasFileBody())
+                this.toWrite.add(response.openFileBody());
+            if (response.hasStreamingBody()) {
+                StreamedBody streamed = new StreamedBody(this);
+                this.toWrite.add(streamed);
+                streamed.start(response);
+            }
+            this.toWrite.add(System.nanoTime());
+        }
+
+        /**
+         * Deixa de ler do canal até a leitura ser retomada com {@link #resume()}
+         * @return false
+         */
+        private boolean pause() {
+            this.paused = true;
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+            return false;
+        }
+
+        /**
+         * Retoma a leitura do canal, processando primeiro os bytes que ficaram no buffer de leitura.
+         * Executado no thread de eventos
+         * @throws IOException Caso não seja possivel ler do canal
+         */
+        private void resume() throws IOException {
+            if (!this.paused || !this.channel.isOpen() || this.closeAfterResponse)
+                return;
+            this.paused = false;
+            onReadable();
+        }
+
+        /**
+         * Escreve as respostas pendentes, pedindo ao Selector para avisar quando o canal
+         * voltar a aceitar bytes caso não seja possivel escrever tudo
+         * @throws IOException Caso não seja possivel escrever no canal
+         */
+        public void onWritable() throws IOException {
+            if (!this.key.isValid())
+                return;
+            int readOps = this.paused ? 0 : SelectionKey.OP_READ;
+            Object next;
+            while ((next = this.toWrite.peek()) != null) {
+                boolean done;
+                if (next instanceof Long) {
+                    server.metrics().recordWrite(System.nanoTime() - (Long) next);
+                    done = true;
+                } else if (next instanceof FileRegion) {
+                    FileRegion file = (FileRegion) next;
+                    file.transferTo(this.channel);
+                    done = file.isDone();
+                    if (done)
+                        file.close();
+                } else if (next instanceof StreamedBody) {
+                    StreamedBody streamed = (StreamedBody) next;
+                    done = streamed.writeTo(this.channel);
+                    if (!done && streamed.isEmpty()) {
+                        // o socket aceitou tudo, o thread de trabalho avisa quando tiver mais chunks
+                        this.key.interestOps(readOps);
+                        updateDeadline();
+                        return;
+                    }
+                } else {
+                    ByteBuffer buffer = (ByteBuffer) next;
+                    this.channel.write(buffer);
+                    done = !buffer.hasRemaining();
+                    if (done)
+                        pool.release(buffer);
+                }
+                if (!done) {
+                    this.key.interestOps(readOps | SelectionKey.OP_WRITE);
+                    updateDeadline();
+                    return;
+                }
+                this.toWrite.poll();
+            }
+            if ((this.closeAfterResponse && !this.awaitingResponse) || (server.isDraining() && isIdle())) {
+                close();
+                return;
+            }
+            this.key.interestOps(readOps);
+            updateDeadline();
+        }
+
+        /**
+         * Define o prazo da próxima leitura conforme o estado da ligação. Enquanto um pedido está a ser respondido,
+         * há respostas por escrever ou a leitura está suspensa o cliente não está em falta e não há prazo
+         */
+        private void updateDeadline() {
+            if (this.paused || (this.awaitingResponse && this.body == null) || !this.toWrite.isEmpty())
+                this.deadline.clear();
+            else
+                server.armReadDeadline(this.deadline, this.ticket, this.parser, this.parseStart);
+        }
+
+        /**
+         * Fecha a ligação caso o prazo de leitura tenha expirado. Executado no thread de eventos
+         */
+        private void onTimeout() {
+            if (!this.deadline.isExpired())
+                return;
+            if (server.isDebug())
+                System.out.println("\nClient #" + this.ticket.getClientId() + " timed out!\n");
+            close();
+        }
+
+        /**
+         * Verifica se a ligação está à espera de um novo pedido, sem nada por ler, responder ou escrever
+         * @return true caso a ligação possa ser fechada sem interromper nenhum pedido
+         */
+        private boolean isIdle() {
+            return !this.parser.hasStarted() && this.body == null && !this.awaitingResponse && !this.paused
+                && this.toWrite.isEmpty() && (this.readBuffer == null || this.readBuffer.position() == 0);
+        }
+
+        /**
+         * Chamado quando o servidor começa a parar, fecha a ligação caso esteja inativa.
+         * Executado no thread de eventos
+         */
+        private void drain() {
+            if (isIdle())
+                close();
+        }
+
+        /**
+         * Devolve o buffer de leitura ao pool
+         */
+        private void releaseReadBuffer() {
+            pool.release(this.readBuffer);
+            this.readBuffer = null;
+        }
+
+        /**
+         * Fecha a ligação e remove o cliente da lista de clientes ativos, devolvendo os seus buffers ao pool
+         */
+        public void close() {
+            if (!this.channel.isOpen())
+                return;
+            // a chave não existe caso a ligação não tenha chegado a ser registada
+            if (this.key != null)
+                this.key.cancel();
+            this.deadline.cancel();
+            server.clientDisconnected(this.ticket);
+            if (this.body != null)
+                this.body.fail();
+            for (Object pending : this.toWrite) {
+                if (pending instanceof ByteBuffer)
+                    pool.release((ByteBuffer) pending);
+                if (pending instanceof StreamedBody)
+                    ((StreamedBody) pending).fail();
+                if (pending instanceof FileRegion) {
+                    try {
+                        ((FileRegion) pending).close();
+                    } catch (IOException e) {
+                        // ignored
+                    }
+                }
+            }
+            this.toWrite.clear();
+            releaseReadBuffer();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Corpo em streaming de um pedido, guardado num buffer circular limitado que o thread de eventos enche e o
+     * thread de trabalho esvazia. Quando o buffer enche o thread de eventos deixa de ler do socket, e volta a
+     * ler quando o thread de trabalho liberta espaço
+     */
+    private class PipedBody extends RequestBody implements HttpParser.BodySink {
+
+        private final Connection connection;
+        private final byte[] ring = new byte[BODY_PIPE_SIZE];
+        private int readPosition;
+        private int count;
+        private boolean writerBlocked;
+        private boolean finished;
+        private boolean malformed;
+        private boolean failed;
+        private boolean continued;
+
+        /**
+         * Cria o buffer do corpo de um pedido
+         * @param head O pedido a que o corpo pertence
+         * @param connection A ligação que recebe o corpo
+         */
+        private PipedBody(HttpRequest head, Connection connection) {
+            super(head);
+            this.connection = connection;
+        }
+
+        /**
+         * Copia para o buffer os bytes que couberem. Executado no thread de eventos
+         */
+        @Override
+        public synchronized int write(byte[] data, int offset, int length) {
+            int accepted = Math.min(length, this.ring.length - this.count);
+            int writePosition = (this.readPosition + this.count) % this.ring.length;
+            int first = Math.min(accepted, this.ring.length - writePosition);
+            System.arraycopy(data, offset, this.ring, writePosition, first);
+            System.arraycopy(data, offset + first, this.ring, 0, accepted - first);
+            this.count += accepted;
+            this.writerBlocked = accepted < length;
+            notifyAll();
+            return accepted;
+        }
+
+        /**
+         * Indica que o corpo foi totalmente recebido. Executado no thread de eventos
+         * @param malformed Se o corpo estava mal formatado
+         */
+        public synchronized void finish(boolean malformed) {
+            this.finished = true;
+            this.malformed = malformed;
+            notifyAll();
+        }
+
+        /**
+         * Indica que a ligação foi fechada antes do fim do corpo
+         */
+        public synchronized void fail() {
+            this.failed = true;
+            notifyAll();
+        }
+
+        /**
+         * Lê bytes do buffer, esperando que o thread de eventos os receba. Na primeira leitura é enviado
+         * 100 Continue caso o cliente esteja à espera para enviar o corpo
+         */
+        @Override
+        protected synchronized int readBody(byte[] b, int off, int len) throws IOException {
+            if (expectsContinue() && !this.continued && !this.finished) {
+                this.continued = true;
+                this.connection.loop.execute(this::sendContinue);
+            }
+            while (this.count == 0 && !this.finished && !this.failed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading the request body");
+                }
+            }
+            if (this.count == 0) {
+                if (this.failed)
+                    throw new IOException("Connection closed before the end of the request body");
+                if (this.malformed)
+                    throw new IOException("Malformed request body");
+                return -1;
+            }
+            if (len == 0)
+                return 0;
+            int read = Math.min(len, Math.min(this.count, this.ring.length - this.readPosition));
+            System.arraycopy(this.ring, this.readPosition, b, off, read);
+            this.readPosition = (this.readPosition + read) % this.ring.length;
+            this.count -= read;
+            if (this.writerBlocked) {
+                this.writerBlocked = false;
+                this.connection.loop.execute(this::resumeReading);
+            }
+            return read;
+        }
+
+        /**
+         * Envia a resposta 100 Continue. Executado no thread de eventos
+         */
+        private void sendContinue() {
+            if (!this.connection.channel.isOpen())
+                return;
+            this.connection.toWrite.add(ByteBuffer.wrap(CONTINUE));
+            try {
+                this.connection.onWritable();
+            } catch (IOException e) {
+                this.connection.close();
+            }
+        }
+
+        /**
+         * Retoma a leitura do socket depois de libertado espaço no buffer. Executado no thread de eventos
+         */
+        private void resumeReading() {
+            try {
+                this.connection.resume();
+            } catch (IOException e) {
+                this.connection.close();
+            }
+        }
+    }
+
+    /**
+     * Corpo de uma resposta em streaming, criado por um thread de trabalho e escrito no canal pelo thread de eventos.
+     * Os chunks já codificados passam por uma fila limitada a {@link #BODY_PIPE_SIZE} bytes: quando está cheia o
+     * thread de trabalho espera que o socket aceite os chunks anteriores. Cada chunk é copiado para um buffer do
+     * pool, que é devolvido depois de escrito
+     */
+    private class StreamedBody extends OutputStream {
+
+        private final Connection connection;
+        private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+        private final Semaphore space = new Semaphore(BODY_PIPE_SIZE);
+        private volatile boolean finished;
+        private volatile boolean failed;
+
+        /**
+         * Cria o corpo de uma resposta da ligação dada
+         * @param connection A ligação onde o corpo é enviado
+         */
+        private StreamedBody(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Começa a criar o corpo num thread de trabalho. Caso não seja possivel criá-lo a ligação é fechada,
+         * já que o cliente só pode saber que o corpo ficou incompleto pela falta do último chunk
+         * @param response A resposta com o corpo em streaming
+         */
+        private void start(HttpResponse response) {
+            workers.execute(() -> {
+                try {
+                    // junta o tamanho, os dados e o fim de cada chunk num só buffer
+                    OutputStream out = new BufferedOutputStream(this, ChunkedOutputStream.DEFAULT_CHUNK_SIZE + 64);
+                    response.writeStreamingBody(out);
+                    out.flush();
+                    this.finished = true;
+                    this.connection.loop.execute(this::flushToChannel);
+                } catch (IOException | RuntimeException e) {
+                    this.connection.loop.execute(this.connection::close);
+                }
+            });
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /**
+         * Coloca bytes na fila, esperando que haja espaço. Executado no thread de trabalho
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, BODY_PIPE_SIZE);
+                try {
+                    this.space.acquire(count);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing the response body");
+                }
+                if (this.failed)
+                    throw new IOException("Connection closed before the end of the response body");
+                ByteBuffer chunk = pool.acquire(count);
+                chunk.put(b, off, count).flip();
+                this.chunks.add(chunk);
+                // a ligação pode ter sido fechada depois da verificação anterior, sem que o chunk fosse devolvido
+                if (this.failed) {
+                    releaseChunks();
+                    throw new IOException("Connection closed before the end of the response body");
+                }
+                this.connection.loop.execute(this::flushToChannel);
+                off += count;
+                len -= count;
+            }
+        }
+
+        /**
+         * Escreve no canal os chunks que este aceitar, libertando o seu espaço na fila. Executado no thread de eventos
+         * @param channel O canal do cliente
+         * @return true caso o corpo tenha sido todo criado e escrito
+         * @throws IOException Caso não seja possivel escrever no canal
+         */
+        private boolean writeTo(SocketChannel channel) throws IOException {
+            // lido antes da fila, para que nenhum chunk colocado antes de o corpo terminar fique por escrever
+            boolean finished = this.finished;
+            ByteBuffer chunk;
+            while ((chunk = this.chunks.peek()) != null) {
+                channel.write(chunk);
+                if (chunk.hasRemaining())
+                    return false;
+                this.chunks.poll();
+                this.space.release(chunk.limit());
+                pool.release(chunk);
+            }
+            return finished;
+        }
+
+        /**
+         * Verifica se todos os chunks já criados foram escritos
+         * @return true caso a fila esteja vazia
+         */
+        private boolean isEmpty() {
+            return this.chunks.isEmpty();
+        }
+
+        /**
+         * Indica que a ligação foi fechada, fazendo com que o thread de trabalho deixe de esperar por espaço
+         */
+        private void fail() {
+            this.failed = true;
+            this.space.release(BODY_PIPE_SIZE);
+            releaseChunks();
+        }
+
+        /**
+         * Devolve ao pool os chunks que ficaram por escrever
+         */
+        private void releaseChunks() {
+            ByteBuffer chunk;
+            while ((chunk = this.chunks.poll()) != null)
+                pool.release(chunk);
+        }
+
+        /**
+         * Escreve os chunks pendentes caso o corpo seja o próximo na fila de escrita. Executado no thread de eventos
+         */
+        private void flushToChannel() {
+            try {
+                this.connection.onWritable();
+            } catch (IOException e) {
+                this.connection.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Corpo de um pedido HTTP lido como um stream. Nas rotas com corpo em streaming os bytes são lidos do socket
+ * à medida que o handler os pede, já sem a codificação em chunks e limitados ao Content-Length, pelo que um
+ * upload de vários MB ocupa sempre a mesma memória. Nas restantes rotas o stream lê o corpo já recebido
+ */
+public abstract class RequestBody extends InputStream {
+
+    private final long contentLength;
+    private final boolean expectsContinue;
+    private long bytesRead;
+
+    /**
+     * Inicializa o corpo a partir dos cabeçalhos do pedido
+     * @param head O pedido a que o corpo pertence
+     * @requires {@code head != null}
+     */
+    protected RequestBody(HttpRequest head) {
+        String transferEncoding = head.getHeaders().get("Transfer-Encoding");
+        String contentLength = head.getHeaders().get("Content-Length");
+        long length = -1;
+        // o analisador já rejeitou os pedidos com os dois cabeçalhos e com valores de Content-Length diferentes
+        if (contentLength != null && transferEncoding == null) {
+            int comma = contentLength.indexOf(',');
+            try {
+                length = Long.parseLong((comma == -1 ? contentLength : contentLength.substring(0, comma)).trim());
+            } catch (NumberFormatException e) {
+                // o analisador já rejeitou os pedidos com Content-Length inválido
+            }
+        }
+        this.contentLength = length;
+        String expect = head.getHeaders().get("Expect");
+        this.expectsContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+    }
+
+    /**
+     * Cria o stream de um corpo já recebido
+     * @param head O pedido a que o corpo pertence
+     * @param body Os bytes do corpo
+     * @return O stream do corpo
+     * @requires {@code head != null && body != null}
+     * @ensures {@code \result != null}
+     */
+    static RequestBody of(HttpRequest head, byte[] body) {
+        return new BufferedBody(head, body);
+    }
+
+    /**
+     * Lê bytes do corpo, já descodificados
+     * @param b Onde guardar os bytes
+     * @param off A posição onde guardar o primeiro byte
+     * @param len O número máximo de bytes a ler
+     * @return O número de bytes lidos, -1 no fim do corpo
+     * @throws IOException Caso a ligação seja fechada antes do fim do corpo ou o corpo esteja mal formatado
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = readBody(b, off, len);
+        if (read > 0)
+            this.bytesRead += read;
+        return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    /**
+     * Lê e descarta o resto do corpo
+     * @return O número de bytes descartados
+     * @throws IOException Caso a ligação seja fechada antes do fim do corpo ou o corpo esteja mal formatado
+     */
+    public long discard() throws IOException {
+        byte[] skipped = new byte[8192];
+        long total = 0;
+        int read;
+        while ((read = read(skipped, 0, skipped.length)) != -1)
+            total += read;
+        return total;
+    }
+
+    /**
+     * Retorna o corpo como um canal, para ser lido para ByteBuffers ou transferido para um ficheiro
+     * @return Canal que lê deste stream
+     * @ensures {@code \result != null}
+     */
+    public ReadableByteChannel channel() {
+        return Channels.newChannel(this);
+    }
+
+    /**
+     * Retorna o tamanho do corpo indicado pelo Content-Length
+     * @return O tamanho do corpo em bytes, -1 caso o corpo seja enviado em chunks
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Retorna o número de bytes do corpo já lidos
+     * @return O número de bytes lidos, já descodificados
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Indica se o cliente espera uma resposta 100 Continue antes de enviar o corpo
+     * @return true caso o pedido tenha o cabeçalho {@code Expect: 100-continue}
+     */
+    protected boolean expectsContinue() {
+        return expectsContinue;
+    }
+
+    /**
+     * Lê bytes do corpo, implementado por cada tipo de corpo
+     * @param b Onde guardar os bytes
+     * @param off A posição onde guardar o primeiro byte
+     * @param len O número máximo de bytes a ler
+     * @return O número de bytes lidos, -1 no fim do corpo
+     * @throws IOException Caso não seja possivel ler o corpo
+     */
+    protected abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Corpo já recebido e guardado em memória
+     */
+    private static class BufferedBody extends RequestBody {
+
+        private final byte[] body;
+        private int position;
+
+        /**
+         * Cria o stream do corpo
+         * @param head O pedido a que o corpo pertence
+         * @param body Os bytes do corpo
+         */
+        private BufferedBody(HttpRequest head, byte[] body) {
+            super(head);
+            this.body = body;
+        }
+
+        @Override
+        protected int readBody(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (this.position == this.body.length)
+                return -1;
+            int count = Math.min(len, this.body.length - this.position);
+            System.arraycopy(this.body, this.position, b, off, count);
+            this.position += count;
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Tabela de rotas do servidor, que associa cada par (método, caminho) ao código que cria a resposta.
+ * A procura é feita em tempo constante com uma tabela de dispersão por método. Nas rotas com corpo em streaming
+ * o handler é chamado assim que os cabeçalhos chegam e lê o corpo com {@link HttpRequest#getBodyStream()}
+ */
+public class Router {
+
+    private final HashMap<String, HashMap<String, Handler>> routes = new HashMap<>();
+    private final HashMap<String, HashSet<String>> streaming = new HashMap<>();
+
+    /**
+     * Código que cria a resposta a um pedido de uma rota
+     */
+    public interface Handler {
+
+        /**
+         * Cria a resposta ao pedido dado
+         * @param request O pedido HTTP do cliente
+         * @return A resposta HTTP, null caso o pedido seja inválido para esta rota
+         * @throws IOException Caso não seja possivel criar a resposta
+         * @requires {@code request != null}
+         */
+        HttpResponse handle(HttpRequest request) throws IOException;
+    }
+
+    /**
+     * Adiciona uma rota à tabela, substituindo a anterior com o mesmo método e caminho
+     * @param method O método HTTP da rota
+     * @param path O caminho da rota, sem query string
+     * @param handler O código que cria a resposta
+     * @return O próprio Router com a rota adicionada
+     * @requires {@code method != null && path != null && handler != null}
+     */
+    public Router add(String method, String path, Handler handler) {
+        this.routes.computeIfAbsent(method, m -> new HashMap<>()).put(path, handler);
+        HashSet<String> streamingPaths = this.streaming.get(method);
+        if (streamingPaths != null)
+            streamingPaths.remove(path);
+        return this;
+    }
+
+    /**
+     * Adiciona uma rota cujo corpo não é guardado em memória: o handler é chamado assim que os cabeçalhos do pedido
+     * chegam e deve ler o corpo com {@link HttpRequest#getBodyStream()}. O que o handler não ler é descartado
+     * @param method O método HTTP da rota
+     * @param path O caminho da rota, sem query string
+     * @param handler O código que cria a resposta
+     * @return O próprio Router com a rota adicionada
+     * @requires {@code method != null && path != null && handler != null}
+     */
+    public Router addStreaming(String method, String path, Handler handler) {
+        add(method, path, handler);
+        this.streaming.computeIfAbsent(method, m -> new HashSet<>()).add(path);
+        return this;
+    }
+
+    /**
+     * Verifica se a rota com o método e caminho dados recebe o corpo em streaming
+     * @param method O método HTTP do pedido
+     * @param path O caminho do pedido, sem query string
+     * @return true caso a rota exista e tenha sido adicionada com {@link #addStreaming(String, String, Handler)}
+     * @requires {@code method != null && path != null}
+     */
+    public boolean isStreaming(String method, String path) {
+        HashSet<String> streamingPaths = this.streaming.get(method);
+        return streamingPaths != null && streamingPaths.contains(path);
+    }
+
+    /**
+     * Procura a rota com o método e caminho dados
+     * @param method O método HTTP do pedido
+     * @param path O caminho do pedido, sem query string
+     * @return O Handler da rota, null caso não exista
+     * @requires {@code method != null && path != null}
+     */
+    public Handler find(String method, String path) {
+        HashMap<String, Handler> methodRoutes = this.routes.get(method);
+        return methodRoutes == null ? null : methodRoutes.get(path);
+    }
+
+    /**
+     * Verifica se existe alguma rota com o método dado
+     * @param method O método HTTP
+     * @return true caso exista pelo menos uma rota com o método
+     * @requires {@code method != null}
+     */
+    public boolean hasMethod(String method) {
+        return this.routes.containsKey(method);
+    }
+
+}
@@ -0,0 +1,371 @@
+import java.util.concurrent.Executors;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Classe usada para guardar as opções de arranque do servidor
+ */
+public class ServerConfig {
+
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_NIO = "nio";
+    public static final String EXECUTOR_THREAD = "thread";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    public static final String EXECUTOR_POOL = "pool";
+    public static final String ACCESS_LOG_STDOUT = "-";
+    public static final String ACCESS_LOG_OFF = "off";
+
+    private String engine = ENGINE_BLOCKING;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private String executor = EXECUTOR_THREAD;
+    private int poolSize = 0;
+    private int maxClients = 5;
+    private int maxQueued = -1;
+    private int shedLatency = 0;
+    private int retryAfter = 1;
+    private int idleTimeout = 60;
+    private int headerTimeout = 10;
+    private int bodyTimeout = 30;
+    private int maxRequests = 0;
+    private int drainTimeout = 30;
+    private int maxBodySize = 10;
+    private int cacheSize = 16;
+    private int zeroCopyThreshold = 64;
+    private String documentRoot = ".";
+    private int compressionThreshold = 1024;
+    private String accessLog = ACCESS_LOG_STDOUT;
+    private int accessLogSize = 10;
+    private boolean debug = false;
+
+    /**
+     * Transforma os argumentos de arranque no formato {@code opcao=valor} num objeto ServerConfig
+     * Opções suportadas:
+     * engine - motor de I/O a usar, "blocking" (um thread por cliente) ou "nio" (selector);
+     * threads - número de threads de eventos usados pelo motor nio;
+     * executor - como o motor blocking executa cada cliente, "thread" (um thread criado por cliente),
+     * "virtual" (um thread virtual por cliente, requer Java 21) ou "pool" (conjunto fixo de threads);
+     * pool - número de threads do conjunto fixo, por omissão maxClients mais maxQueued para que os clientes
+     * em espera ainda tenham um thread que lhes responda com 503;
+     * maxClients - número máximo de clientes servidos ao mesmo tempo, os restantes recebem 503;
+     * maxQueued - número máximo de clientes em espera por um lugar, por omissão igual a maxClients, os restantes
+     * recebem 503 no primeiro pedido e a ligação é fechada;
+     * shedLatency - tempo médio de resposta em ms acima do qual não são admitidos novos clientes, 0 para não limitar;
+     * retryAfter - tempo em segundos indicado no cabeçalho Retry-After das respostas 503;
+     * idleTimeout - tempo em segundos que uma ligação pode ficar sem pedidos antes de ser fechada, 0 para não limitar;
+     * headerTimeout - tempo em segundos para receber a linha de pedido e os cabeçalhos, 0 para não limitar;
+     * bodyTimeout - tempo máximo em segundos sem receber bytes do corpo de um pedido, 0 para não limitar;
+     * maxRequests - número máximo de pedidos por ligação, 0 para não limitar;
+     * drainTimeout - tempo máximo em segundos que o servidor espera, ao parar, que os pedidos em curso terminem;
+     * maxBodySize - tamanho máximo em MB do corpo dos pedidos guardados em memória, os maiores recebem 413;
+     * cacheSize - tamanho máximo em MB da cache de ficheiros em memória;
+     * zeroCopyThreshold - tamanho em KB a partir do qual os ficheiros não são guardados na cache e são
+     * transferidos diretamente do disco para o socket;
+     * root - diretoria cujos ficheiros são servidos pelo servidor;
+     * compressionThreshold - tamanho mínimo em bytes dos corpos de texto comprimidos com gzip/deflate;
+     * accessLog - ficheiro do registo de acessos, "-" para a consola ou "off" para o desativar;
+     * accessLogSize - tamanho em MB a partir do qual o ficheiro do registo de acessos é rodado;
+     * debug - "true" para escrever na consola cada pedido recebido e cada ligação aberta e fechada.
+     * @param args Os argumentos a serem lidos
+     * @return ServerConfig com as opções lidas, usando os valores por omissão para as restantes
+     * @throws IllegalArgumentException Caso algum argumento seja inválido
+     * @requires {@code args != null}
+     * @ensures {@code \result != null}
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2)
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            switch (option[0]) {
+                case "engine":
+                    if (!option[1].equals(ENGINE_BLOCKING) && !option[1].equals(ENGINE_NIO))
+                        throw new IllegalArgumentException("Invalid engine: " + option[1]);
+                    config.engine = option[1];
+                    break;
+                case "threads":
+                    config.ioThreads = parsePositive(option);
+                    break;
+                case "executor":
+                    if (option[1].equals(EXECUTOR_VIRTUAL) && !supportsVirtualThreads())
+                        throw new IllegalArgumentException("Virtual threads require Java 21 or newer");
+                    if (!option[1].equals(EXECUTOR_THREAD) && !option[1].equals(EXECUTOR_VIRTUAL)
+                            && !option[1].equals(EXECUTOR_POOL))
+                        throw new IllegalArgumentException("Invalid executor: " + option[1]);
+                    config.executor = option[1];
+                    break;
+                case "pool":
+                    config.poolSize = parsePositive(option);
+                    break;
+                case "maxClients":
+                    config.maxClients = parsePositive(option);
+                    break;
+                case "maxQueued":
+                    config.maxQueued = parseNonNegative(option);
+                    break;
+                case "shedLatency":
+                    config.shedLatency = parseNonNegative(option);
+                    break;
+                case "retryAfter":
+                    config.retryAfter = parseNonNegative(option);
+                    break;
+                case "idleTimeout":
+                    config.idleTimeout = parseNonNegative(option);
+                    break;
+                case "headerTimeout":
+                    config.headerTimeout = parseNonNegative(option);
+                    break;
+                case "bodyTimeout":
+                    config.bodyTimeout = parseNonNegative(option);
+                    break;
+                case "maxRequests":
+                    config.maxRequests = parseNonNegative(option);
+                    break;
+                case "drainTimeout":
+                    config.drainTimeout = parseNonNegative(option);
+                    break;
+                case "maxBodySize":
+                    config.maxBodySize = parsePositive(option);
+                    break;
+                case "cacheSize":
+                    config.cacheSize = parsePositive(option);
+                    break;
+                case "zeroCopyThreshold":
+                    config.zeroCopyThreshold = parsePositive(option);
+                    break;
+                case "root":
+                    config.documentRoot = option[1];
+                    break;
+                case "compressionThreshold":
+                    config.compressionThreshold = parsePositive(option);
+                    break;
+                case "accessLog":
+                    config.accessLog = option[1];
+                    break;
+                case "accessLogSize":
+                    config.accessLogSize = parsePositive(option);
+                    break;
+                case "debug":
+                    if (!option[1].equals("true") && !option[1].equals("false"))
+                        throw new IllegalArgumentException("Invalid value for debug: " + option[1]);
+                    config.debug = option[1].equals("true");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Lê o valor de uma opção como um inteiro positivo
+     * @param option A opção no formato {nome, valor}
+     * @return O valor da opção
+     * @throws IllegalArgumentException Caso o valor não seja um inteiro positivo
+     */
+    private static int parsePositive(String[] option) {
+        int value = parseNonNegative(option);
+        if (value == 0)
+            throw new IllegalArgumentException("Invalid value for " + option[0] + ": " + option[1]);
+        return value;
+    }
+
+    /**
+     * Lê o valor de uma opção como um inteiro maior ou igual a zero
+     * @param option A opção no formato {nome, valor}
+     * @return O valor da opção
+     * @throws IllegalArgumentException Caso o valor não seja um inteiro maior ou igual a zero
+     */
+    private static int parseNonNegative(String[] option) {
+        try {
+            int value = Integer.parseInt(option[1]);
+            if (value >= 0)
+                return value;
+        } catch (NumberFormatException e) { }
+        throw new IllegalArgumentException("Invalid value for " + option[0] + ": " + option[1]);
+    }
+
+    /**
+     * Verifica se a JVM atual suporta threads virtuais
+     * @return true caso seja possivel criar threads virtuais, false caso contrário
+     */
+    public static boolean supportsVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retorna o motor de I/O a ser usado pelo servidor
+     * @return {@link #ENGINE_BLOCKING} ou {@link #ENGINE_NIO}
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Retorna o número de threads de eventos do motor nio
+     * @return O número de threads de eventos
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Retorna como o motor blocking executa cada cliente
+     * @return {@link #EXECUTOR_THREAD}, {@link #EXECUTOR_VIRTUAL} ou {@link #EXECUTOR_POOL}
+     */
+    public String getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Retorna o número de threads do conjunto fixo usado pelo executor "pool"
+     * @return O número de threads do conjunto fixo
+     */
+    public int getPoolSize() {
+        return poolSize == 0 ? maxClients + getMaxQueued() : poolSize;
+    }
+
+    /**
+     * Retorna o número máximo de clientes servidos ao mesmo tempo
+     * @return O número máximo de clientes
+     */
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    /**
+     * Retorna o número máximo de clientes em espera por um lugar
+     * @return O número máximo de clientes em espera
+     */
+    public int getMaxQueued() {
+        return maxQueued == -1 ? maxClients : maxQueued;
+    }
+
+    /**
+     * Retorna o tempo médio de resposta acima do qual não são admitidos novos clientes
+     * @return O tempo em ms, 0 caso não haja limite
+     */
+    public int getShedLatency() {
+        return shedLatency;
+    }
+
+    /**
+     * Retorna o tempo indicado no cabeçalho Retry-After das respostas 503
+     * @return O tempo em segundos
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Retorna o tempo que uma ligação pode ficar sem pedidos antes de ser fechada
+     * @return O tempo em segundos, 0 caso não haja limite
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Retorna o tempo máximo para receber a linha de pedido e os cabeçalhos de um pedido
+     * @return O tempo em segundos, 0 caso não haja limite
+     */
+    public int getHeaderTimeout() {
+        return headerTimeout;
+    }
+
+    /**
+     * Retorna o tempo máximo sem receber bytes do corpo de um pedido
+     * @return O tempo em segundos, 0 caso não haja limite
+     */
+    public int getBodyTimeout() {
+        return bodyTimeout;
+    }
+
+    /**
+     * Retorna o número máximo de pedidos por ligação
+     * @return O número máximo de pedidos, 0 caso não haja limite
+     */
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Retorna o tempo máximo que o servidor espera, ao parar, que os pedidos em curso terminem
+     * @return O tempo em segundos
+     */
+    public int getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Retorna o tamanho máximo do corpo dos pedidos guardados em memória
+     * @return O tamanho máximo do corpo em bytes
+     */
+    public long getMaxBodyBytes() {
+        return maxBodySize * 1024L * 1024L;
+    }
+
+    /**
+     * Retorna o tamanho máximo da cache de ficheiros
+     * @return O tamanho máximo da cache em bytes
+     */
+    public long getCacheBytes() {
+        return cacheSize * 1024L * 1024L;
+    }
+
+    /**
+     * Retorna o tamanho a partir do qual os ficheiros são transferidos diretamente do disco para o socket
+     * @return O tamanho em bytes
+     */
+    public long getZeroCopyThreshold() {
+        return zeroCopyThreshold * 1024L;
+    }
+
+    /**
+     * Retorna a diretoria cujos ficheiros são servidos pelo servidor
+     * @return O caminho da diretoria
+     */
+    public String getDocumentRoot() {
+        return documentRoot;
+    }
+
+    /**
+     * Retorna o tamanho mínimo dos corpos de texto que são comprimidos
+     * @return O tamanho mínimo em bytes
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Retorna onde é escrito o registo de acessos
+     * @return O caminho do ficheiro, {@link #ACCESS_LOG_STDOUT} ou {@link #ACCESS_LOG_OFF}
+     */
+    public String getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Retorna o tamanho a partir do qual o ficheiro do registo de acessos é rodado
+     * @return O tamanho em bytes
+     */
+    public long getAccessLogBytes() {
+        return accessLogSize * 1024L * 1024L;
+    }
+
+    /**
+     * Indica se os pedidos e as ligações são escritos na consola
+     * @return true caso as mensagens de depuração estejam ativas
+     */
+    public boolean isDebug() {
+        return debug;
+    }
+
+}
@@ -0,0 +1,260 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Métricas do servidor: contadores de pedidos e respostas por código, ligações ativas e histogramas do tempo
+ * gasto a analisar cada pedido, a criar a resposta e a escrevê-la. Todos os valores são LongAdders, que dividem
+ * as atualizações por várias células quando há contenção, para que os threads do servidor não disputem a mesma
+ * cache line. As métricas são exportadas no formato de texto do Prometheus e por JMX
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // limites dos intervalos dos histogramas, em segundos
+    private static final double[] LATENCY_BOUNDS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5
+    };
+
+    private final LongAdder requestsTotal = new LongAdder();
+    private final LongAdder connectionsTotal = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connectionsShed = new LongAdder();
+    private final AtomicReferenceArray<LongAdder> responses = new AtomicReferenceArray<>(600);
+    private final Histogram parse = new Histogram();
+    private final Histogram handle = new Histogram();
+    private final Histogram write = new Histogram();
+
+    /**
+     * Regista uma ligação aceite
+     */
+    public void connectionOpened() {
+        this.connectionsTotal.increment();
+        this.activeConnections.increment();
+    }
+
+    /**
+     * Regista uma ligação fechada
+     */
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    /**
+     * Regista uma ligação rejeitada pelo controlo de admissão
+     */
+    public void connectionShed() {
+        this.connectionsShed.increment();
+    }
+
+    /**
+     * Regista o tempo desde o primeiro byte de um pedido até o pedido estar completo
+     * @param nanos O tempo em nanossegundos
+     */
+    public void recordParse(long nanos) {
+        this.parse.record(nanos);
+    }
+
+    /**
+     * Regista uma resposta criada e o tempo que demorou a criar
+     * @param statusCode O código da resposta
+     * @param nanos O tempo em nanossegundos
+     */
+    public void recordHandle(int statusCode, long nanos) {
+        this.requestsTotal.increment();
+        this.handle.record(nanos);
+        if (statusCode < 0 || statusCode >= this.responses.length())
+            return;
+        LongAdder counter = this.responses.get(statusCode);
+        if (counter == null) {
+            this.responses.compareAndSet(statusCode, null, new LongAdder());
+            counter = this.responses.get(statusCode);
+        }
+        counter.increment();
+    }
+
+    /**
+     * Regista o tempo desde que uma resposta foi criada até ter sido escrita no socket
+     * @param nanos O tempo em nanossegundos
+     */
+    public void recordWrite(long nanos) {
+        this.write.record(nanos);
+    }
+
+    /**
+     * Escreve as métricas no formato de texto do Prometheus
+     * @return O texto das métricas
+     * @ensures {@code \result != null}
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append("# HELP myhttpserver_requests_total Requests answered by the server.\n")
+            .append("# TYPE myhttpserver_requests_total counter\n")
+            .append("myhttpserver_requests_total ").append(getRequestsTotal()).append('\n');
+        sb.append("# HELP myhttpserver_responses_total Responses sent, by status code.\n")
+            .append("# TYPE myhttpserver_responses_total counter\n");
+        for (int code = 0; code < this.responses.length(); code++) {
+            LongAdder counter = this.responses.get(code);
+            if (counter != null)
+                sb.append("myhttpserver_responses_total{code=\"").append(code).append("\"} ").append(counter.sum()).append('\n');
+        }
+        sb.append("# HELP myhttpserver_connections_active Open client connections.\n")
+            .append("# TYPE myhttpserver_connections_active gauge\n")
+            .append("myhttpserver_connections_active ").append(getActiveConnections()).append('\n');
+        sb.append("# HELP myhttpserver_connections_total Client connections accepted.\n")
+            .append("# TYPE myhttpserver_connections_total counter\n")
+            .append("myhttpserver_connections_total ").append(getConnectionsTotal()).append('\n');
+        sb.append("# HELP myhttpserver_connections_shed_total Client connections rejected because the server was overloaded.\n")
+            .append("# TYPE myhttpserver_connections_shed_total counter\n")
+            .append("myhttpserver_connections_shed_total ").append(getConnectionsShed()).append('\n');
+        sb.append("# HELP myhttpserver_request_phase_seconds Time spent parsing requests, handling them and writing the responses.\n")
+            .append("# TYPE myhttpserver_request_phase_seconds histogram\n");
+        this.parse.appendTo(sb, "parse");
+        this.handle.appendTo(sb, "handle");
+        this.write.appendTo(sb, "write");
+        return sb.toString();
+    }
+
+    @Override
+    public long getRequestsTotal() {
+        return this.requestsTotal.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return this.activeConnections.sum();
+    }
+
+    @Override
+    public long getConnectionsTotal() {
+        return this.connectionsTotal.sum();
+    }
+
+    @Override
+    public long getConnectionsShed() {
+        return this.connectionsShed.sum();
+    }
+
+    @Override
+    public long getResponses2xx() {
+        return responsesOfClass(2);
+    }
+
+    @Override
+    public long getResponses3xx() {
+        return responsesOfClass(3);
+    }
+
+    @Override
+    public long getResponses4xx() {
+        return responsesOfClass(4);
+    }
+
+    @Override
+    public long getResponses5xx() {
+        return responsesOfClass(5);
+    }
+
+    @Override
+    public double getParseMeanMillis() {
+        return this.parse.meanMillis();
+    }
+
+    @Override
+    public double getHandleMeanMillis() {
+        return this.handle.meanMillis();
+    }
+
+    @Override
+    public double getWriteMeanMillis() {
+        return this.write.meanMillis();
+    }
+
+    /**
+     * Soma as respostas de uma classe de códigos
+     * @param digit O primeiro dígito dos códigos
+     * @return O número de respostas com códigos entre digit00 e digit99
+     */
+    private long responsesOfClass(int digit) {
+        long total = 0;
+        for (int code = digit * 100; code < (digit + 1) * 100; code++) {
+            LongAdder counter = this.responses.get(code);
+            if (counter != null)
+                total += counter.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Histograma de latências com intervalos fixos, atualizado sem locks
+     */
+    private static class Histogram {
+
+        private static final long[] BOUNDS_NANOS = new long[LATENCY_BOUNDS.length];
+
+        static {
+            for (int i = 0; i < LATENCY_BOUNDS.length; i++)
+                BOUNDS_NANOS[i] = (long) (LATENCY_BOUNDS[i] * 1e9);
+        }
+
+        // o último intervalo conta os valores acima do maior limite
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        /**
+         * Cria o histograma vazio
+         */
+        private Histogram() {
+            for (int i = 0; i < this.buckets.length; i++)
+                this.buckets[i] = new LongAdder();
+        }
+
+        /**
+         * Regista um valor
+         * @param nanos O valor em nanossegundos
+         */
+        private void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i])
+                i++;
+            this.buckets[i].increment();
+            this.sumNanos.add(nanos);
+        }
+
+        /**
+         * Retorna a média dos valores registados
+         * @return A média em milissegundos, 0 caso não existam valores
+         */
+        private double meanMillis() {
+            long count = 0;
+            for (LongAdder bucket : this.buckets)
+                count += bucket.sum();
+            return count == 0 ? 0 : this.sumNanos.sum() / 1e6 / count;
+        }
+
+        /**
+         * Escreve o histograma no formato de texto do Prometheus, com os intervalos cumulativos
+         * @param sb Onde escrever
+         * @param phase O valor da etiqueta phase
+         */
+        private void appendTo(StringBuilder sb, String phase) {
+            long cumulative = 0;
+            for (int i = 0; i < this.buckets.length; i++) {
+                cumulative += this.buckets[i].sum();
+                String bound = i < LATENCY_BOUNDS.length ? String.valueOf(LATENCY_BOUNDS[i]) : "+Inf";
+                sb.append("myhttpserver_request_phase_seconds_bucket{phase=\"").append(phase)
+                    .append("\",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append("myhttpserver_request_phase_seconds_sum{phase=\"").append(phase).append("\"} ")
+                .append(String.format(Locale.ROOT, "%.9f", this.sumNanos.sum() / 1e9)).append('\n');
+            sb.append("myhttpserver_request_phase_seconds_count{phase=\"").append(phase).append("\"} ")
+                .append(cumulative).append('\n');
+        }
+    }
+
+}
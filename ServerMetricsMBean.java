@@ -0,0 +1,65 @@
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Atributos das métricas do servidor expostos por JMX
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * @return O número de pedidos respondidos
+     */
+    long getRequestsTotal();
+
+    /**
+     * @return O número de ligações abertas
+     */
+    long getActiveConnections();
+
+    /**
+     * @return O número de ligações aceites desde o arranque
+     */
+    long getConnectionsTotal();
+
+    /**
+     * @return O número de ligações rejeitadas por sobrecarga
+     */
+    long getConnectionsShed();
+
+    /**
+     * @return O número de respostas 2xx
+     */
+    long getResponses2xx();
+
+    /**
+     * @return O número de respostas 3xx
+     */
+    long getResponses3xx();
+
+    /**
+     * @return O número de respostas 4xx
+     */
+    long getResponses4xx();
+
+    /**
+     * @return O número de respostas 5xx
+     */
+    long getResponses5xx();
+
+    /**
+     * @return O tempo médio em milissegundos desde o primeiro byte de um pedido até estar completo
+     */
+    double getParseMeanMillis();
+
+    /**
+     * @return O tempo médio em milissegundos a criar a resposta a um pedido
+     */
+    double getHandleMeanMillis();
+
+    /**
+     * @return O tempo médio em milissegundos desde que a resposta é criada até estar escrita no socket
+     */
+    double getWriteMeanMillis();
+
+}
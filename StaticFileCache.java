@@ -0,0 +1,225 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Cache em memória dos ficheiros servidos pelo servidor, guardando os bytes de cada ficheiro para que não seja
+ * preciso lê-lo do disco em cada pedido. Cada entrada é validada com a data de modificação e o tamanho do
+ * ficheiro, e quando o tamanho total excede o limite são removidos os ficheiros usados há mais tempo (LRU).
+ * As versões comprimidas de cada ficheiro também são guardadas, para que só sejam comprimidas uma vez
+ */
+public class StaticFileCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Cria uma cache vazia
+     * @param maxBytes O número máximo de bytes guardados em memória
+     * @requires {@code maxBytes > 0}
+     */
+    public StaticFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Retorna o limite da cache
+     * @return O número máximo de bytes guardados em memória
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Retorna o conteúdo do ficheiro dado, lendo-o do disco apenas se não estiver na cache ou
+     * se tiver sido modificado desde que foi lido
+     * @param file O ficheiro a ser lido
+     * @return CachedFile com os bytes e a data de modificação do ficheiro
+     * @throws IOException Caso não seja possivel ler o ficheiro
+     * @requires {@code file != null}
+     * @ensures {@code \result != null}
+     */
+    public CachedFile get(File file) throws IOException {
+        String key = file.getPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            CachedFile cached = this.entries.get(key);
+            if (cached != null && cached.lastModified == lastModified && cached.content.length == length)
+                return cached;
+        }
+        // o ficheiro é lido fora do lock para não bloquear os pedidos de ficheiros que já estão na cache
+        CachedFile loaded = new CachedFile(key, Files.readAllBytes(file.toPath()), lastModified);
+        if (loaded.content.length <= this.maxBytes)
+            put(key, loaded);
+        return loaded;
+    }
+
+    /**
+     * Retorna o conteúdo de um ficheiro da cache comprimido, comprimindo-o apenas da primeira vez que é pedido.
+     * A versão comprimida fica guardada junto da original e conta para o tamanho da cache
+     * @param file O ficheiro obtido da cache
+     * @param encoding {@link ContentEncoding#GZIP} ou {@link ContentEncoding#DEFLATE}
+     * @return Os bytes comprimidos do ficheiro
+     * @requires {@code file != null && encoding != null}
+     * @ensures {@code \result != null}
+     */
+    public byte[] getEncoded(CachedFile file, String encoding) {
+        byte[] encoded = file.getVariant(encoding);
+        if (encoded != null)
+            return encoded;
+        encoded = ContentEncoding.encode(file.content, encoding);
+        synchronized (this) {
+            if (file.getVariant(encoding) != null)
+                return file.getVariant(encoding);
+            file.setVariant(encoding, encoded);
+            if (this.entries.get(file.key) == file) {
+                this.totalBytes += encoded.length;
+                evict(file);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Cria o ETag de um ficheiro a partir do seu tamanho e data de modificação
+     * @param length O tamanho do ficheiro
+     * @param lastModified A data de modificação do ficheiro
+     * @return O ETag do ficheiro, entre aspas
+     * @ensures {@code \result != null}
+     */
+    public static String entityTag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Cria o ETag da versão comprimida de um ficheiro, que tem de ser diferente do ETag da versão original
+     * @param etag O ETag da versão original
+     * @param encoding A compressão usada
+     * @return O ETag da versão comprimida, entre aspas
+     * @requires {@code etag != null && encoding != null}
+     * @ensures {@code \result != null}
+     */
+    public static String entityTag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Guarda uma entrada na cache, removendo as entradas usadas há mais tempo até o total caber no limite
+     * @param key O caminho do ficheiro
+     * @param file A entrada a guardar
+     */
+    private synchronized void put(String key, CachedFile file) {
+        CachedFile previous = this.entries.put(key, file);
+        if (previous != null)
+            this.totalBytes -= previous.size();
+        this.totalBytes += file.size();
+        evict(file);
+    }
+
+    /**
+     * Remove as entradas usadas há mais tempo até o total caber no limite
+     * @param keep A entrada que não deve ser removida
+     */
+    private void evict(CachedFile keep) {
+        Iterator<Map.Entry<String, CachedFile>> eldest = this.entries.entrySet().iterator();
+        while (this.totalBytes > this.maxBytes && eldest.hasNext()) {
+            Map.Entry<String, CachedFile> entry = eldest.next();
+            if (entry.getValue() == keep)
+                continue;
+            this.totalBytes -= entry.getValue().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Conteúdo de um ficheiro guardado na cache
+     */
+    public static class CachedFile {
+
+        private final String key;
+        private final byte[] content;
+        private final long lastModified;
+        private final String lastModifiedHeader;
+        private final String etag;
+        private volatile byte[] gzip, deflate;
+
+        /**
+         * Cria uma entrada da cache
+         * @param key O caminho do ficheiro
+         * @param content Os bytes do ficheiro
+         * @param lastModified A data de modificação do ficheiro
+         * @requires {@code content != null}
+         */
+        private CachedFile(String key, byte[] content, long lastModified) {
+            this.key = key;
+            this.content = content;
+            this.lastModified = lastModified;
+            this.lastModifiedHeader = HttpDate.format(lastModified);
+            this.etag = entityTag(content.length, lastModified);
+        }
+
+        /**
+         * Retorna os bytes do ficheiro, que não devem ser alterados
+         * @return Os bytes do ficheiro
+         */
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Retorna a data de modificação do ficheiro já formatada para o cabeçalho Last-Modified
+         * @return A data de modificação do ficheiro
+         */
+        public String getLastModified() {
+            return lastModifiedHeader;
+        }
+
+        /**
+         * Retorna o ETag do ficheiro
+         * @return O ETag do ficheiro, entre aspas
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Retorna a versão comprimida do ficheiro, caso já tenha sido criada
+         * @param encoding A compressão
+         * @return Os bytes comprimidos, null caso ainda não existam
+         */
+        private byte[] getVariant(String encoding) {
+            return encoding.equals(ContentEncoding.GZIP) ? gzip : deflate;
+        }
+
+        /**
+         * Guarda a versão comprimida do ficheiro
+         * @param encoding A compressão
+         * @param encoded Os bytes comprimidos
+         */
+        private void setVariant(String encoding, byte[] encoded) {
+            if (encoding.equals(ContentEncoding.GZIP))
+                gzip = encoded;
+            else
+                deflate = encoded;
+        }
+
+        /**
+         * Retorna o número de bytes ocupados pelo ficheiro e pelas suas versões comprimidas
+         * @return O tamanho da entrada
+         */
+        private long size() {
+            byte[] gzip = this.gzip, deflate = this.deflate;
+            return content.length + (gzip == null ? 0 : gzip.length) + (deflate == null ? 0 : deflate.length);
+        }
+    }
+
+}
@@ -18,6 +18,7 @@ public class TestMP1 {
     		"3- POST request",
             "4- Request with an unimplemented method",
             "5- Malformed GET request",
+            "6- Pipelined GET requests",
     };
     
     // Auxiliary method used to print the menu on stdout
@@ -89,6 +90,10 @@ public class TestMP1 {
 					myClient.malformedRequest(typeOfRequest); // send a malformed GET request of the selected type
 					break;
 
+				case 6:
+					myClient.getResources("index.html", "nonExisting.html", "index.html"); // sends all requests before reading the replies, which must come back in order
+					break;
+
 				case 0:
 					// free the resources and terminates the client
 					myClient.close();
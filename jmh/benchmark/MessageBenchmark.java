@@ -0,0 +1,82 @@
+package benchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Benchmarks JMH do analisador e da serialização das mensagens, para vários tamanhos de corpo e números de
+ * cabeçalhos. A taxa de alocação é medida com o profiler do JMH:
+ * mvn test-compile exec:exec -Djmh.args="MessageBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    public int payload;
+
+    @Param({"4", "16", "64"})
+    public int headers;
+
+    private Callable<Object> parseRequest;
+    private Callable<Object> parseResponse;
+    private Callable<Object> responseToString;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        this.parseRequest = Operations.operation("parseRequest", this.payload, this.headers);
+        this.parseResponse = Operations.operation("parseResponse", this.payload, this.headers);
+        this.responseToString = Operations.operation("responseToString", this.payload, this.headers);
+    }
+
+    /**
+     * Mede HttpRequest.parseRequest de um POST
+     * @return O pedido analisado
+     * @throws Exception Nunca
+     */
+    @Benchmark
+    public Object parseRequest() throws Exception {
+        return this.parseRequest.call();
+    }
+
+    /**
+     * Mede HttpResponse.parseResponse de uma resposta 200
+     * @return A resposta analisada
+     * @throws Exception Nunca
+     */
+    @Benchmark
+    public Object parseResponse() throws Exception {
+        return this.parseResponse.call();
+    }
+
+    /**
+     * Mede HttpResponse.toString de uma resposta 200
+     * @return O texto da resposta
+     * @throws Exception Nunca
+     */
+    @Benchmark
+    public Object responseToString() throws Exception {
+        return this.responseToString.call();
+    }
+
+}
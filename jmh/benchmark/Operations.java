@@ -0,0 +1,52 @@
+package benchmark;
+
+import java.util.concurrent.Callable;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Acesso às operações medidas, definidas em HttpBenchmark. O JMH não aceita benchmarks no pacote por omissão,
+ * onde estão todas as classes do projeto, e o código de um pacote com nome não as pode referir, pelo que cada
+ * operação é criada uma única vez por reflexão e depois chamada como um {@link Callable}
+ */
+final class Operations {
+
+    private static final String HTTP_BENCHMARK = "HttpBenchmark";
+
+    private Operations() {
+    }
+
+    /**
+     * Cria uma das operações sem estado de HttpBenchmark
+     * @param name parseRequest, parseResponse ou responseToString
+     * @param size O tamanho do corpo
+     * @param headers O número de cabeçalhos
+     * @return A operação
+     * @throws ReflectiveOperationException Caso HttpBenchmark não esteja no classpath
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> operation(String name, int size, int headers) throws ReflectiveOperationException {
+        return (Callable<Object>) Class.forName(HTTP_BENCHMARK)
+            .getMethod("operation", String.class, int.class, int.class)
+            .invoke(null, name, size, headers);
+    }
+
+    /**
+     * Inicia um servidor local e abre uma ligação keep-alive até ele, com HttpBenchmark.roundTrip
+     * @param engine O motor do servidor
+     * @param port A porta do servidor
+     * @param size O tamanho do corpo da resposta
+     * @param headers O número de cabeçalhos do pedido
+     * @return A operação, que também é AutoCloseable e deve ser fechada para parar o servidor
+     * @throws ReflectiveOperationException Caso HttpBenchmark não esteja no classpath ou o servidor não inicie
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> roundTrip(String engine, int port, int size, int headers) throws ReflectiveOperationException {
+        return (Callable<Object>) Class.forName(HTTP_BENCHMARK)
+            .getMethod("roundTrip", String.class, int.class, int.class, int.class)
+            .invoke(null, engine, port, size, headers);
+    }
+
+}
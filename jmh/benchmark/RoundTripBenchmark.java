@@ -0,0 +1,69 @@
+package benchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Benchmark JMH de um GET e da sua resposta por uma ligação keep-alive a um MyHttpServer no mesmo processo,
+ * com cada motor de I/O. Como o servidor corre no mesmo JVM, {@code -prof gc} inclui as alocações do servidor
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoundTripBenchmark {
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"0", "1024", "65536"})
+    public int payload;
+
+    @Param({"4", "16", "64"})
+    public int headers;
+
+    @Param({"18080"})
+    public int port;
+
+    private Callable<Object> roundTrip;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        this.roundTrip = Operations.roundTrip(this.engine, this.port, this.payload, this.headers);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((AutoCloseable) this.roundTrip).close();
+    }
+
+    /**
+     * Mede o envio de um GET e a leitura da sua resposta
+     * @return A resposta
+     * @throws Exception Caso a resposta não seja 200
+     */
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return this.roundTrip.call();
+    }
+
+}
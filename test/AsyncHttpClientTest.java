@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Testes do cliente assíncrono contra um servidor falso que responde com os bytes dados
+ */
+class AsyncHttpClientTest {
+
+    private static final int TIMEOUT_SECONDS = 5;
+
+    @Test
+    void malformedResponseFailsTheFutureOutsideTheSelectorThread() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            answer(server, "garbage\r\n\r\n");
+            try (AsyncHttpClient client = new AsyncHttpClient("localhost", server.getLocalPort())) {
+                CompletableFuture<String> thread = new CompletableFuture<>();
+                CompletableFuture<HttpResponse> response = client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                response.whenComplete((r, e) -> thread.complete(Thread.currentThread().getName()));
+
+                ExecutionException failure = assertThrows(ExecutionException.class,
+                    () -> response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                assertInstanceOf(IOException.class, failure.getCause());
+                assertFalse(thread.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).startsWith("AsyncHttpClient-"));
+            }
+        }
+    }
+
+    @Test
+    void responseIsCompletedOutsideTheSelectorThread() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            answer(server, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+            try (AsyncHttpClient client = new AsyncHttpClient("localhost", server.getLocalPort())) {
+                CompletableFuture<String> thread = client.send("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .thenApply(r -> r.getStatusCode() + " " + Thread.currentThread().getName());
+
+                String result = thread.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                assertEquals("200", result.substring(0, 3));
+                assertFalse(result.substring(4).startsWith("AsyncHttpClient-"));
+            }
+        }
+    }
+
+    /**
+     * Aceita uma ligação num thread à parte, lê o cabeçalho de um pedido e responde com o texto dado
+     * @param server O socket do servidor falso
+     * @param response O texto da resposta
+     */
+    private static void answer(ServerSocket server, String response) {
+        Thread thread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                InputStream in = socket.getInputStream();
+                int matched = 0;
+                int read;
+                while (matched < 4 && (read = in.read()) != -1)
+                    matched = read == "\r\n\r\n".charAt(matched) ? matched + 1 : (read == '\r' ? 1 : 0);
+                OutputStream out = socket.getOutputStream();
+                out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                // mantém a ligação aberta até o cliente a fechar
+                while (in.read() != -1) {
+                }
+            } catch (IOException e) {
+                // o cliente fechou a ligação
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+}
@@ -0,0 +1,42 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Testes da negociação da compressão a partir do cabeçalho Accept-Encoding
+ */
+class ContentEncodingTest {
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "gzip|gzip",
+        "gzip, deflate, br|gzip",
+        "x-gzip|gzip",
+        "deflate|deflate",
+        "*|gzip",
+        "gzip;q=0, *|deflate",
+        "*, gzip;q=0|deflate",
+        "gzip;q=0, deflate|deflate",
+        "GZIP;Q=0.5|gzip",
+        "deflate, *;q=0|deflate",
+        "gzip;q=0, gzip|gzip"
+    })
+    void choosesAnAcceptedCoding(String acceptEncoding, String expected) {
+        assertEquals(expected, ContentEncoding.negotiate(acceptEncoding));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "identity", "br", "gzip;q=0", "gzip;q=0, deflate;q=0, *",
+        "*;q=0", "gzip;q=0.0, deflate;level=1;q=0"})
+    void refusedOrUnknownCodingsChooseNone(String acceptEncoding) {
+        assertNull(ContentEncoding.negotiate(acceptEncoding));
+    }
+
+}
@@ -0,0 +1,70 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Testes da descodificação dos formulários recebidos e dos seus limites
+ */
+class FormDataTest {
+
+    @Test
+    void fieldsAreDecoded() throws IOException {
+        FormData form = FormData.parse(stream("name=Jo%C3%A3o+Silva&nif=123&nif=456&flag"), 1024);
+
+        assertEquals("João Silva", form.get("name"));
+        assertEquals(2, form.getAll("nif").size());
+        assertEquals("", form.get("flag"));
+    }
+
+    @Test
+    void formWithMaxFieldsIsAccepted() throws IOException {
+        FormData form = FormData.parse(stream(fields(FormData.MAX_FIELDS)), Long.MAX_VALUE);
+
+        assertEquals(FormData.MAX_FIELDS, form.getAll("a").size());
+    }
+
+    @Test
+    void formWithTooManyFieldsIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+            () -> FormData.parse(stream(fields(FormData.MAX_FIELDS + 1)), Long.MAX_VALUE));
+    }
+
+    @Test
+    void formLongerThanMaxBytesIsRejectedBeforeReadingItAll() {
+        byte[] body = "a=".concat("b".repeat(10_000)).getBytes(StandardCharsets.US_ASCII);
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+
+        assertThrows(IllegalArgumentException.class, () -> FormData.parse(in, 1024));
+        assertTrue(in.available() > 0);
+    }
+
+    /**
+     * Cria um formulário com o número de campos dado
+     * @param count O número de campos
+     * @return O corpo do formulário
+     */
+    private static String fields(int count) {
+        return "a=b&".repeat(count);
+    }
+
+    /**
+     * Cria um stream com o texto dado em UTF-8
+     * @param text O texto
+     * @return O stream
+     */
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
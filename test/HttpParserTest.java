@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Testes do analisador incremental de pedidos
+ */
+class HttpParserTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {"1 0", "1\t0", " 10", "1 0;ext", "10 x", "x10"})
+    void chunkSizeWithWhitespaceOrJunkAmongDigitsIsRejected(String chunkSize) {
+        HttpParser parser = parse(chunked(chunkSize, "0123456789abcdef"));
+
+        assertTrue(parser.isAbandoned());
+        assertEquals(400, parser.getErrorStatus());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"10", "10 ", "10\t", "10 ;name=value", "10;name=value", "010"})
+    void chunkSizeWithWhitespaceAfterTheDigitsIsAccepted(String chunkSize) {
+        HttpParser parser = parse(chunked(chunkSize, "0123456789abcdef"));
+
+        HttpRequest request = parser.getRequest();
+        assertNotNull(request);
+        assertEquals("0123456789abcdef", request.getBody());
+    }
+
+    @Test
+    void malformedHeaderAbandonsTheMessage() {
+        HttpParser parser = parse("POST /x HTTP/1.1\r\nBad header line\r\nContent-Length: 5\r\n\r\nhello");
+
+        assertTrue(parser.isComplete());
+        assertTrue(parser.isAbandoned());
+        assertEquals(400, parser.getErrorStatus());
+    }
+
+    /**
+     * Cria um pedido com um único chunk com o tamanho escrito como dado
+     * @param chunkSize A linha do tamanho do chunk
+     * @param data Os dados do chunk
+     * @return O texto do pedido
+     */
+    private static String chunked(String chunkSize, String data) {
+        return "POST /x HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + chunkSize + "\r\n" + data + "\r\n0\r\n\r\n";
+    }
+
+    /**
+     * Dá o texto de um pedido a um novo analisador
+     * @param text O texto do pedido
+     * @return O analisador, depois de consumir o texto
+     */
+    private static HttpParser parse(String text) {
+        HttpParser parser = HttpParser.forRequests();
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        parser.feed(bytes, 0, bytes.length);
+        return parser;
+    }
+
+}
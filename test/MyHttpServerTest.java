@@ -0,0 +1,204 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * @author Rodrigo Correia - 58180
+ * @author Martim Pereira - 58223
+ * @author Daniela Camarinha - 58199
+ *
+ * Testes do servidor com os dois motores de I/O, enviando os pedidos byte a byte como um cliente os escreveria
+ * no socket
+ */
+class MyHttpServerTest {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private MyHttpServer server;
+    private int port;
+
+    @AfterEach
+    void stopServer() {
+        if (this.server != null)
+            this.server.stop(1, TimeUnit.SECONDS);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    void malformedHeaderClosesConnectionInsteadOfReadingBodyAsNextRequest(String engine) throws IOException {
+        startServer(engine);
+        String smuggled = "GET /metrics HTTP/1.1\r\n\r\n";
+        String request = "POST /x HTTP/1.1\r\n"
+            + "Bad header line\r\n"
+            + "Content-Length: " + smuggled.length() + "\r\n"
+            + "\r\n"
+            + smuggled;
+
+        List<String> responses = statusLines(exchange(request));
+
+        assertEquals(List.of("HTTP/1.1 400 Bad Request"), responses);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    void formLargerThanMaxBodySizeGets413WithoutReadingTheBody(String engine) throws IOException {
+        startServer(engine, "maxBodySize=1");
+        String request = "POST /simpleForm.html HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Content-Type: " + FormData.URLENCODED + "\r\n"
+            + "Content-Length: " + (2 * 1024 * 1024) + "\r\n"
+            + "\r\n";
+
+        String received = exchange(request);
+
+        assertEquals(List.of("HTTP/1.1 413 Content Too Large"), statusLines(received));
+        assertTrue(received.contains("Connection: close"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    void formWithTooManyFieldsGets400AndTheConnectionStaysUsable(String engine) throws IOException {
+        startServer(engine);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i <= FormData.MAX_FIELDS; i++)
+            body.append("a=b&");
+        HttpRequest post = HttpRequest.createDefaultHeaders("POST", "/simpleForm.html", "HTTP/1.1", body.toString(), "localhost");
+        post.setHeader("Content-Type", FormData.URLENCODED);
+        HttpRequest get = HttpRequest.createDefaultHeaders("GET", "/metrics", "HTTP/1.1", "", "localhost");
+
+        try (HttpConnection connection = new HttpConnection("localhost", this.port)) {
+            connection.write(post.toString());
+            connection.write(get.toString());
+            connection.flush();
+
+            assertEquals(400, connection.readResponse().getStatusCode());
+            assertEquals(200, connection.readResponse().getStatusCode());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    void connectionCloseRequestIsAnsweredAndClosed(String engine) throws IOException {
+        startServer(engine);
+
+        String received = exchange("GET /metrics HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+        assertEquals(List.of("HTTP/1.1 200 OK"), statusLines(received));
+        assertTrue(received.contains("Connection: close"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    void http10RequestWithoutKeepAliveIsAnsweredAndClosed(String engine) throws IOException {
+        startServer(engine);
+
+        String received = exchange("GET /metrics HTTP/1.0\r\n\r\n");
+
+        assertEquals(1, statusLines(received).size());
+        assertTrue(received.contains("Connection: close"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"blocking", "nio"})
+    void http10RequestWithKeepAliveKeepsTheConnection(String engine) throws IOException {
+        startServer(engine);
+        String request = "GET /metrics HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n";
+
+        String received = exchange(request + request + "GET /metrics HTTP/1.0\r\n\r\n");
+
+        assertEquals(3, statusLines(received).size());
+    }
+
+    /**
+     * Inicia um servidor numa porta livre, sem registo de acessos
+     * @param engine O motor do servidor
+     * @param options Opções de arranque adicionais
+     * @throws IOException Caso não seja possivel iniciar o servidor
+     */
+    private void startServer(String engine, String... options) throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+        String[] args = new String[options.length + 2];
+        args[0] = "engine=" + engine;
+        args[1] = "accessLog=off";
+        System.arraycopy(options, 0, args, 2, options.length);
+        this.server = new MyHttpServer(this.port, ServerConfig.parse(args));
+        this.server.start();
+    }
+
+    /**
+     * Envia os bytes dados numa nova ligação e lê tudo o que o servidor enviar até fechar a ligação
+     * @param request Os bytes a enviar, em ISO-8859-1
+     * @return Tudo o que foi recebido
+     * @throws IOException Caso a ligação falhe
+     */
+    private String exchange(String request) throws IOException {
+        return exchange(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Envia os bytes dados numa nova ligação e lê tudo o que o servidor enviar até fechar a ligação. O teste
+     * falha caso o servidor deixe a ligação aberta
+     * @param request Os bytes a enviar
+     * @return Tudo o que foi recebido, em ISO-8859-1
+     * @throws IOException Caso a ligação falhe
+     */
+    private String exchange(byte[] request) throws IOException {
+        try (Socket socket = new Socket("localhost", this.port)) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.getOutputStream().write(request);
+            socket.getOutputStream().flush();
+            return readUntilClosed(socket.getInputStream());
+        }
+    }
+
+    /**
+     * Lê uma ligação até ao fim
+     * @param in O stream da ligação
+     * @return Tudo o que foi recebido, em ISO-8859-1
+     * @throws IOException Caso a ligação falhe
+     */
+    private static String readUntilClosed(InputStream in) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                received.write(buffer, 0, read);
+        } catch (SocketTimeoutException e) {
+            fail("The server left the connection open after:\n" + received.toString(StandardCharsets.ISO_8859_1));
+        }
+        return received.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Retorna as linhas de estado das respostas recebidas
+     * @param received Tudo o que foi recebido numa ligação
+     * @return As linhas de estado, pela ordem em que foram recebidas
+     */
+    private static List<String> statusLines(String received) {
+        List<String> lines = new ArrayList<>();
+        for (String line : received.split("\r?\n")) {
+            if (line.startsWith("HTTP/1."))
+                lines.add(line);
+        }
+        return lines;
+    }
+
+}